@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Entry points for the JMH benchmarks. JMH refuses benchmark classes in the default package
+ * and named packages cannot see it, so the benchmarks in package {@code benchmarks} reach
+ * these public static methods through method handles. Values cross over as plain Objects.
+ */
+public final class BenchTargets {
+    private BenchTargets() {
+    }
+
+    // Networks are loaded with the result cache off so every call really runs inference
+    public static Object loadNetwork(String xmlFileName) throws Exception {
+        return new BayesianNetwork(xmlFileName, 0);
+    }
+
+    public static Object parse(String xmlFileName) throws Exception {
+        NetworkParser parser = new NetworkParser();
+        parser.parse(xmlFileName);
+        return parser;
+    }
+
+    public static double conditionalProbability(Object network, String query, int algorithm) {
+        return ((BayesianNetwork) network).conditionalProbability(query, algorithm).probability;
+    }
+
+    // The CPT with the most entries and the CPT of its first parent, which share that parent
+    public static Object[] factorPair(Object network) {
+        CompiledNetwork compiled = ((BayesianNetwork) network).getCompiledNetwork();
+        int child = largestCptWithParents(compiled);
+        int parent = compiled.getParents(child)[0];
+        return new Object[]{Factor.of(compiled, child), Factor.of(compiled, parent)};
+    }
+
+    public static Object multiply(Object a, Object b) {
+        return ((Factor) a).multiply((Factor) b, new int[2]);
+    }
+
+    public static int variableAt(Object factor, int position) {
+        return ((Factor) factor).getVariables()[position];
+    }
+
+    public static Object sumOut(Object factor, int variable) {
+        return ((Factor) factor).sumOut(variable, new int[2]);
+    }
+
+    public static Object restrict(Object factor, int variable, int value) {
+        return ((Factor) factor).restrict(variable, value);
+    }
+
+    // {CPT, parent assignment} for the largest CPT, with every parent at its last outcome
+    public static Object[] cptLookup(String xmlFileName) throws Exception {
+        NetworkParser parser = new NetworkParser();
+        parser.parse(xmlFileName);
+        CPT largest = null;
+        for (CPT cpt : parser.getCPTs().values()) {
+            if (largest == null || cpt.getTable().length > largest.getTable().length) {
+                largest = cpt;
+            }
+        }
+        Map<String, String> parentValues = new HashMap<>();
+        for (String parent : largest.getParents()) {
+            List<String> values = parser.getVariables().get(parent).getValues();
+            parentValues.put(parent, values.get(values.size() - 1));
+        }
+        return new Object[]{largest, parentValues};
+    }
+
+    public static String firstOutcome(Object cpt) {
+        CPT table = (CPT) cpt;
+        return table.getVariables().get(table.getVariableName()).getValues().get(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static double cptProbability(Object cpt, String value, Object parentValues) {
+        return ((CPT) cpt).getProbability(value, (Map<String, String>) parentValues);
+    }
+
+    /**
+     * Writes a random binary network in XMLBIF to a temp file. Each node takes up to
+     * maxParents parents among the previous window nodes, which keeps the treewidth small
+     * enough for exact inference while the network itself grows.
+     */
+    public static String writeSyntheticNetwork(int nodes, int maxParents, int window, long seed) throws IOException {
+        Random random = new Random(seed);
+        Path file = Files.createTempFile("synthetic-" + nodes + "-", ".xml");
+        file.toFile().deleteOnExit();
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("<NETWORK>");
+            for (int i = 0; i < nodes; i++) {
+                out.println("<VARIABLE>\n<NAME>N" + i + "</NAME>\n<OUTCOME>T</OUTCOME>\n<OUTCOME>F</OUTCOME>\n</VARIABLE>");
+            }
+            for (int i = 0; i < nodes; i++) {
+                out.println("<DEFINITION>\n<FOR>N" + i + "</FOR>");
+                int parents = Math.min(i, random.nextInt(maxParents + 1));
+                Set<Integer> chosen = new TreeSet<>();
+                while (chosen.size() < parents) {
+                    chosen.add(i - 1 - random.nextInt(Math.min(i, window)));
+                }
+                for (int parent : chosen) {
+                    out.println("<GIVEN>N" + parent + "</GIVEN>");
+                }
+                StringBuilder table = new StringBuilder();
+                for (int row = 0; row < (1 << parents); row++) {
+                    double p = 0.05 + 0.9 * random.nextDouble();
+                    table.append(p).append(' ').append(1 - p).append(' ');
+                }
+                out.println("<TABLE>" + table.toString().trim() + "</TABLE>\n</DEFINITION>");
+            }
+            out.println("</NETWORK>");
+        }
+        return file.toString();
+    }
+
+    // P(last node | a few observed nodes spread over the network), as an input.txt query line
+    public static String syntheticQuery(int nodes, int evidence) {
+        StringBuilder query = new StringBuilder("P(N" + (nodes - 1) + "=T|");
+        for (int i = 0; i < evidence; i++) {
+            if (i > 0) {
+                query.append(',');
+            }
+            query.append('N').append((i + 1) * (nodes - 1) / (evidence + 1)).append(i % 2 == 0 ? "=T" : "=F");
+        }
+        return query.append(')').toString();
+    }
+
+    private static int largestCptWithParents(CompiledNetwork network) {
+        int best = -1;
+        for (int var = 0; var < network.size(); var++) {
+            if (network.getParents(var).length > 0
+                    && (best == -1 || network.getTable(var).length > network.getTable(best).length)) {
+                best = var;
+            }
+        }
+        if (best == -1) {
+            throw new IllegalArgumentException("Network has no CPT with parents");
+        }
+        return best;
+    }
+}
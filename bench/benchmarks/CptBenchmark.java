@@ -0,0 +1,34 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// String-keyed CPT lookup as used at the parsing boundary
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CptBenchmark {
+    @Param({"alarm", "layered-200", "layered-2000"})
+    public String network;
+
+    private Object cpt;
+    private Object parentValues;
+    private String value;
+
+    @Setup
+    public void setUp() {
+        Object[] lookup = Targets.cptLookup(Networks.file(network));
+        cpt = lookup[0];
+        parentValues = lookup[1];
+        value = Targets.firstOutcome(cpt);
+    }
+
+    @Benchmark
+    public double getProbability() {
+        return Targets.cptProbability(cpt, value, parentValues);
+    }
+}
@@ -0,0 +1,46 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Factor kernels on the largest CPT of each network and the CPT of its first parent
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FactorBenchmark {
+    @Param({"alarm", "layered-200", "layered-2000"})
+    public String network;
+
+    private Object child;
+    private Object parent;
+    private Object product;
+    private int sharedVariable;
+
+    @Setup
+    public void setUp() {
+        Object[] pair = Targets.factorPair(Targets.loadNetwork(Networks.file(network)));
+        child = pair[0];
+        parent = pair[1];
+        product = Targets.multiply(child, parent);
+        sharedVariable = Targets.variableAt(parent, 0);
+    }
+
+    @Benchmark
+    public Object multiply() {
+        return Targets.multiply(child, parent);
+    }
+
+    @Benchmark
+    public Object sumOut() {
+        return Targets.sumOut(product, sharedVariable);
+    }
+
+    @Benchmark
+    public Object restrict() {
+        return Targets.restrict(product, sharedVariable, 0);
+    }
+}
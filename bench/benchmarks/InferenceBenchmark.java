@@ -0,0 +1,60 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// End-to-end conditional queries (string in, probability out) with the result cache disabled
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InferenceBenchmark {
+    // Enumeration is exponential in the hidden ancestors, so it only runs on the small networks
+    @State(Scope.Benchmark)
+    public static class SmallNetwork {
+        @Param({"alarm", "layered-20"})
+        public String network;
+
+        private Object loaded;
+        private String query;
+
+        @Setup
+        public void setUp() {
+            loaded = Targets.loadNetwork(Networks.file(network));
+            query = Networks.query(network);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LargeNetwork {
+        @Param({"alarm", "layered-200", "layered-2000"})
+        public String network;
+
+        private Object loaded;
+        private String query;
+
+        @Setup
+        public void setUp() {
+            loaded = Targets.loadNetwork(Networks.file(network));
+            query = Networks.query(network);
+        }
+    }
+
+    @Benchmark
+    public double enumeration(SmallNetwork state) {
+        return Targets.conditionalProbability(state.loaded, state.query, 1);
+    }
+
+    @Benchmark
+    public double variableElimination(LargeNetwork state) {
+        return Targets.conditionalProbability(state.loaded, state.query, 2);
+    }
+
+    @Benchmark
+    public double heuristicElimination(LargeNetwork state) {
+        return Targets.conditionalProbability(state.loaded, state.query, 3);
+    }
+}
@@ -0,0 +1,36 @@
+package benchmarks;
+
+/**
+ * Benchmark networks by name: "alarm" is alarm_net.xml from the working directory (override
+ * the directory with -Dbench.dir), "layered-N" is a generated N-node binary network.
+ */
+final class Networks {
+    private static final int MAX_PARENTS = 3;
+    private static final int PARENT_WINDOW = 6;
+    private static final long SEED = 42;
+    private static final int EVIDENCE = 3;
+
+    private Networks() {
+    }
+
+    static String file(String name) {
+        if (name.equals("alarm")) {
+            return System.getProperty("bench.dir", ".") + "/alarm_net.xml";
+        }
+        return Targets.writeSyntheticNetwork(nodes(name), MAX_PARENTS, PARENT_WINDOW, SEED);
+    }
+
+    static String query(String name) {
+        if (name.equals("alarm")) {
+            return "P(B=T|J=T,M=T)";
+        }
+        return Targets.syntheticQuery(nodes(name), EVIDENCE);
+    }
+
+    private static int nodes(String name) {
+        if (!name.startsWith("layered-")) {
+            throw new IllegalArgumentException("Unknown benchmark network: " + name);
+        }
+        return Integer.parseInt(name.substring("layered-".length()));
+    }
+}
@@ -0,0 +1,28 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({"alarm", "layered-200", "layered-2000"})
+    public String network;
+
+    private String file;
+
+    @Setup
+    public void setUp() {
+        file = Networks.file(network);
+    }
+
+    @Benchmark
+    public Object parse() {
+        return Targets.parse(file);
+    }
+}
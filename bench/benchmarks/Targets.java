@@ -0,0 +1,151 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Typed wrappers around {@code BenchTargets}, which lives in the default package. The handles
+ * are static final, so the JIT inlines straight through them into the measured code.
+ */
+final class Targets {
+    private static final MethodHandle LOAD_NETWORK = find("loadNetwork", Object.class, String.class);
+    private static final MethodHandle PARSE = find("parse", Object.class, String.class);
+    private static final MethodHandle CONDITIONAL = find("conditionalProbability", double.class, Object.class, String.class, int.class);
+    private static final MethodHandle FACTOR_PAIR = find("factorPair", Object[].class, Object.class);
+    private static final MethodHandle MULTIPLY = find("multiply", Object.class, Object.class, Object.class);
+    private static final MethodHandle VARIABLE_AT = find("variableAt", int.class, Object.class, int.class);
+    private static final MethodHandle SUM_OUT = find("sumOut", Object.class, Object.class, int.class);
+    private static final MethodHandle RESTRICT = find("restrict", Object.class, Object.class, int.class, int.class);
+    private static final MethodHandle CPT_LOOKUP = find("cptLookup", Object[].class, String.class);
+    private static final MethodHandle FIRST_OUTCOME = find("firstOutcome", String.class, Object.class);
+    private static final MethodHandle CPT_PROBABILITY = find("cptProbability", double.class, Object.class, String.class, Object.class);
+    private static final MethodHandle SYNTHETIC_NETWORK = find("writeSyntheticNetwork", String.class, int.class, int.class, int.class, long.class);
+    private static final MethodHandle SYNTHETIC_QUERY = find("syntheticQuery", String.class, int.class, int.class);
+
+    private Targets() {
+    }
+
+    private static MethodHandle find(String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            Class<?> targets = Class.forName("BenchTargets");
+            return MethodHandles.publicLookup().findStatic(targets, name, MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+
+    static Object loadNetwork(String xmlFileName) {
+        try {
+            return (Object) LOAD_NETWORK.invokeExact(xmlFileName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object parse(String xmlFileName) {
+        try {
+            return (Object) PARSE.invokeExact(xmlFileName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static double conditionalProbability(Object network, String query, int algorithm) {
+        try {
+            return (double) CONDITIONAL.invokeExact(network, query, algorithm);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object[] factorPair(Object network) {
+        try {
+            return (Object[]) FACTOR_PAIR.invokeExact(network);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object multiply(Object a, Object b) {
+        try {
+            return (Object) MULTIPLY.invokeExact(a, b);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int variableAt(Object factor, int position) {
+        try {
+            return (int) VARIABLE_AT.invokeExact(factor, position);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object sumOut(Object factor, int variable) {
+        try {
+            return (Object) SUM_OUT.invokeExact(factor, variable);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object restrict(Object factor, int variable, int value) {
+        try {
+            return (Object) RESTRICT.invokeExact(factor, variable, value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object[] cptLookup(String xmlFileName) {
+        try {
+            return (Object[]) CPT_LOOKUP.invokeExact(xmlFileName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String firstOutcome(Object cpt) {
+        try {
+            return (String) FIRST_OUTCOME.invokeExact(cpt);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static double cptProbability(Object cpt, String value, Object parentValues) {
+        try {
+            return (double) CPT_PROBABILITY.invokeExact(cpt, value, parentValues);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String writeSyntheticNetwork(int nodes, int maxParents, int window, long seed) {
+        try {
+            return (String) SYNTHETIC_NETWORK.invokeExact(nodes, maxParents, window, seed);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String syntheticQuery(int nodes, int evidence) {
+        try {
+            return (String) SYNTHETIC_QUERY.invokeExact(nodes, evidence);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+}
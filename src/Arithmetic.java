@@ -0,0 +1,24 @@
+// How an engine keeps long products of probabilities from underflowing
+public enum Arithmetic {
+    PLAIN("plain"),     // raw doubles, fastest, products below Double.MIN_VALUE become 0
+    SCALED("scaled");   // tables and partial products carry a power-of-two exponent
+
+    private final String label;
+
+    Arithmetic(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public static Arithmetic fromLabel(String label) {
+        for (Arithmetic arithmetic : values()) {
+            if (arithmetic.label.equals(label)) {
+                return arithmetic;
+            }
+        }
+        throw new IllegalArgumentException("Unknown arithmetic: " + label);
+    }
+}
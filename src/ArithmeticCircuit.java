@@ -0,0 +1,377 @@
+import java.util.Arrays;
+
+/**
+ * Algorithm 7. The network polynomial as an arithmetic circuit: a DAG whose leaves are one
+ * indicator per variable outcome and the distinct CPT parameters, and whose other nodes are
+ * sums and products. It is recorded once per network from a variable elimination (see
+ * {@link CircuitCompiler}) and can be saved and loaded as a .bac file (see {@link CircuitFile}).
+ *
+ * With the indicators that contradict the evidence set to 0, an upward pass evaluates every
+ * node and leaves P(evidence) at the root. A downward pass then accumulates the derivative of
+ * the root with respect to every node; for an unobserved variable X the derivative at the
+ * indicator of X=x is P(X=x, evidence), so one pair of passes gives every posterior marginal.
+ * Both passes walk flat arrays in node order, in time linear in the number of edges.
+ *
+ * Nodes are numbered children before parents: the indicators, by variable id and outcome,
+ * then the parameters, then the operations. Operation i is node leafCount + i and its
+ * children are children[childStart[i]] to children[childStart[i + 1] - 1].
+ *
+ * Counts per upward pass: k - 1 additions per sum and k - 1 multiplications per product of
+ * k children. Per downward pass: k additions per sum, and k additions and 3k - 4
+ * multiplications per product, whose derivatives come from prefix and suffix products
+ * rather than from dividing by a child that may be 0.
+ */
+public final class ArithmeticCircuit {
+    static final byte SUM = 0;
+    static final byte PRODUCT = 1;
+
+    final int[] cards;
+    final double[] parameters;
+    final byte[] operations;
+    final int[] childStart;
+    final int[] children;
+    final int root;
+    private final int[] indicatorBase;  // node of each variable's first outcome
+    private final int indicatorCount;
+    private final int leafCount;
+    private final int nodeCount;
+    private final int maxArity;
+    private final long[] passCounts;    // [up additions, up multiplications, down additions, down multiplications]
+
+    ArithmeticCircuit(int[] cards, double[] parameters, byte[] operations, int[] childStart, int[] children, int root) {
+        this.cards = cards;
+        this.parameters = parameters;
+        this.operations = operations;
+        this.childStart = childStart;
+        this.children = children;
+        this.root = root;
+
+        this.indicatorBase = new int[cards.length];
+        int indicators = 0;
+        for (int var = 0; var < cards.length; var++) {
+            indicatorBase[var] = indicators;
+            indicators += cards[var];
+        }
+        this.indicatorCount = indicators;
+        this.leafCount = indicators + parameters.length;
+        this.nodeCount = leafCount + operations.length;
+
+        int arity = 0;
+        long[] counts = new long[4];
+        for (int op = 0; op < operations.length; op++) {
+            int k = childStart[op + 1] - childStart[op];
+            arity = Math.max(arity, k);
+            if (operations[op] == SUM) {
+                counts[0] += k - 1;
+                counts[2] += k;
+            } else {
+                counts[1] += k - 1;
+                counts[2] += k;
+                counts[3] += 3L * k - 4;
+            }
+        }
+        this.maxArity = arity;
+        this.passCounts = counts;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getEdgeCount() {
+        return children.length;
+    }
+
+    public int getParameterCount() {
+        return parameters.length;
+    }
+
+    /**
+     * Expected cost of a posterior of the given variables: one upward and one downward pass
+     * for a single variable, one upward pass per joint assignment for several. The peak is
+     * the per-node values and derivatives the passes keep; a circuit has no induced width.
+     */
+    CostEstimate cost(int[] queryVars) {
+        long size = 1;
+        for (int var : queryVars) {
+            size *= cards[var];
+        }
+        long additions = size;
+        long multiplications;
+        if (queryVars.length == 1) {
+            additions += passCounts[0] + passCounts[2];
+            multiplications = passCounts[1] + passCounts[3];
+        } else {
+            additions += CostEstimate.saturatedMultiply(size, passCounts[0]);
+            multiplications = CostEstimate.saturatedMultiply(size, passCounts[1]);
+        }
+        return new CostEstimate(2L * nodeCount, additions, multiplications, -1);
+    }
+
+    // P(queryVars | evidence), the last query variable fastest. Per-node arrays come from the arena
+    double[] table(int[] queryVars, Query evidence, boolean scaled, int[] opCounts, QueryStats stats,
+                   FactorArena arena) {
+        long mark = stats == null ? 0 : System.nanoTime();
+        int[] assignment = evidence.toAssignment(cards.length);
+        double[] values = FactorArena.table(arena, nodeCount);
+        int[] exponents = scaled ? new int[nodeCount] : null;
+        ScaledDouble[] joints;
+        if (queryVars.length == 1) {
+            int var = queryVars[0];
+            double[] derivatives = FactorArena.table(arena, nodeCount);
+            int[] derivativeExponents = scaled ? new int[nodeCount] : null;
+            upward(assignment, values, exponents);
+            downward(values, exponents, derivatives, derivativeExponents, arena);
+            opCounts[0] += (int) (passCounts[0] + passCounts[2]);
+            opCounts[1] += (int) (passCounts[1] + passCounts[3]);
+
+            joints = new ScaledDouble[cards[var]];
+            for (int value = 0; value < joints.length; value++) {
+                int node = indicatorBase[var] + value;
+                joints[value] = new ScaledDouble(derivatives[node], scaled ? derivativeExponents[node] : 0);
+            }
+        } else {
+            // One pass per joint assignment with the query variables clamped like evidence
+            int size = 1;
+            for (int var : queryVars) {
+                size *= cards[var];
+                assignment[var] = 0;
+            }
+            joints = new ScaledDouble[size];
+            for (int i = 0; i < size; i++) {
+                upward(assignment, values, exponents);
+                joints[i] = new ScaledDouble(values[root], scaled ? exponents[root] : 0);
+                for (int d = queryVars.length - 1; d >= 0; d--) {
+                    if (++assignment[queryVars[d]] < cards[queryVars[d]]) {
+                        break;
+                    }
+                    assignment[queryVars[d]] = 0;
+                }
+            }
+            opCounts[0] += (int) (size * passCounts[0]);
+            opCounts[1] += (int) (size * passCounts[1]);
+        }
+        if (stats != null) {
+            mark = stats.endPhase(Phase.ELIMINATE, mark);
+        }
+
+        double[] table = normalize(joints, opCounts);
+        if (stats != null) {
+            stats.endPhase(Phase.NORMALIZE, mark);
+        }
+        return table;
+    }
+
+    /**
+     * Posterior marginal of every variable from one pair of passes, by variable id; observed
+     * variables get null. The counts are those of the shared passes plus every normalization.
+     */
+    double[][] marginals(Query evidence, boolean scaled, int[] opCounts, QueryStats stats, FactorArena arena) {
+        long mark = stats == null ? 0 : System.nanoTime();
+        int[] assignment = evidence.toAssignment(cards.length);
+        double[] values = FactorArena.table(arena, nodeCount);
+        double[] derivatives = FactorArena.table(arena, nodeCount);
+        int[] exponents = scaled ? new int[nodeCount] : null;
+        int[] derivativeExponents = scaled ? new int[nodeCount] : null;
+        upward(assignment, values, exponents);
+        downward(values, exponents, derivatives, derivativeExponents, arena);
+        opCounts[0] += (int) (passCounts[0] + passCounts[2]);
+        opCounts[1] += (int) (passCounts[1] + passCounts[3]);
+        if (stats != null) {
+            mark = stats.endPhase(Phase.ELIMINATE, mark);
+        }
+
+        double[][] marginals = new double[cards.length][];
+        for (int var = 0; var < cards.length; var++) {
+            if (assignment[var] != -1) {
+                continue;
+            }
+            ScaledDouble[] joints = new ScaledDouble[cards[var]];
+            for (int value = 0; value < joints.length; value++) {
+                int node = indicatorBase[var] + value;
+                joints[value] = new ScaledDouble(derivatives[node], scaled ? derivativeExponents[node] : 0);
+            }
+            marginals[var] = normalize(joints, opCounts);
+        }
+        if (stats != null) {
+            stats.endPhase(Phase.NORMALIZE, mark);
+        }
+        return marginals;
+    }
+
+    // Summing k joints costs k - 1 additions, plus one more for the normalization itself
+    private static double[] normalize(ScaledDouble[] joints, int[] opCounts) {
+        ScaledDouble total = ScaledDouble.ZERO;
+        for (ScaledDouble joint : joints) {
+            total = total.add(joint);
+        }
+        if (total.mantissa == 0) {
+            throw new ArithmeticException("Cannot normalize factor: total probability is zero.");
+        }
+        double[] table = new double[joints.length];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = joints[i].divide(total);
+        }
+        opCounts[0] += joints.length;
+        return table;
+    }
+
+    // Value of every node under the evidence; exponents is null in plain arithmetic
+    private void upward(int[] assignment, double[] values, int[] exponents) {
+        for (int var = 0; var < cards.length; var++) {
+            int observed = assignment[var];
+            for (int value = 0; value < cards[var]; value++) {
+                values[indicatorBase[var] + value] = observed == -1 || observed == value ? 1 : 0;
+            }
+        }
+        System.arraycopy(parameters, 0, values, indicatorCount, parameters.length);
+
+        if (exponents == null) {
+            for (int op = 0, node = leafCount; op < operations.length; op++, node++) {
+                int end = childStart[op + 1];
+                int e = childStart[op];
+                double value = values[children[e]];
+                if (operations[op] == PRODUCT) {
+                    while (++e < end) {
+                        value *= values[children[e]];
+                    }
+                } else {
+                    while (++e < end) {
+                        value += values[children[e]];
+                    }
+                }
+                values[node] = value;
+            }
+            return;
+        }
+
+        Arrays.fill(exponents, 0, leafCount, 0);
+        for (int op = 0, node = leafCount; op < operations.length; op++, node++) {
+            int end = childStart[op + 1];
+            int e = childStart[op];
+            values[node] = values[children[e]];
+            exponents[node] = exponents[children[e]];
+            if (operations[op] == PRODUCT) {
+                while (++e < end) {
+                    multiplyInto(values, exponents, node, values[children[e]], exponents[children[e]]);
+                }
+            } else {
+                while (++e < end) {
+                    addInto(values, exponents, node, values[children[e]], exponents[children[e]]);
+                }
+            }
+        }
+    }
+
+    // Derivative of the root with respect to every node, parents before children
+    private void downward(double[] values, int[] exponents, double[] derivatives, int[] derivativeExponents,
+                          FactorArena arena) {
+        Arrays.fill(derivatives, 0, nodeCount, 0);
+        derivatives[root] = 1;
+        double[] prefix = FactorArena.table(arena, maxArity);
+
+        if (exponents == null) {
+            for (int op = operations.length - 1, node = nodeCount - 1; op >= 0; op--, node--) {
+                int start = childStart[op];
+                int end = childStart[op + 1];
+                double derivative = derivatives[node];
+                if (operations[op] == SUM) {
+                    for (int e = start; e < end; e++) {
+                        derivatives[children[e]] += derivative;
+                    }
+                    continue;
+                }
+                // Each child gets the derivative times the product of its siblings
+                prefix[0] = derivative;
+                for (int e = start + 1; e < end; e++) {
+                    prefix[e - start] = prefix[e - start - 1] * values[children[e - 1]];
+                }
+                derivatives[children[end - 1]] += prefix[end - 1 - start];
+                double suffix = values[children[end - 1]];
+                for (int e = end - 2; e >= start; e--) {
+                    derivatives[children[e]] += prefix[e - start] * suffix;
+                    if (e > start) {
+                        suffix *= values[children[e]];
+                    }
+                }
+            }
+            return;
+        }
+
+        Arrays.fill(derivativeExponents, 0, nodeCount, 0);
+        int[] prefixExponents = new int[maxArity];
+        for (int op = operations.length - 1, node = nodeCount - 1; op >= 0; op--, node--) {
+            int start = childStart[op];
+            int end = childStart[op + 1];
+            double derivative = derivatives[node];
+            int exponent = derivativeExponents[node];
+            if (operations[op] == SUM) {
+                for (int e = start; e < end; e++) {
+                    addInto(derivatives, derivativeExponents, children[e], derivative, exponent);
+                }
+                continue;
+            }
+            prefix[0] = derivative;
+            prefixExponents[0] = exponent;
+            for (int e = start + 1; e < end; e++) {
+                prefix[e - start] = prefix[e - start - 1];
+                prefixExponents[e - start] = prefixExponents[e - start - 1];
+                multiplyInto(prefix, prefixExponents, e - start, values[children[e - 1]], exponents[children[e - 1]]);
+            }
+            addInto(derivatives, derivativeExponents, children[end - 1], prefix[end - 1 - start],
+                    prefixExponents[end - 1 - start]);
+            double suffix = values[children[end - 1]];
+            int suffixExponent = exponents[children[end - 1]];
+            for (int e = end - 2; e >= start; e--) {
+                double term = prefix[e - start] * suffix;
+                int termExponent = prefixExponents[e - start] + suffixExponent;
+                if (term != 0 && term < ScaledDouble.RESCALE_BELOW) {
+                    int shift = ScaledDouble.shiftFor(term);
+                    term = Math.scalb(term, shift);
+                    termExponent -= shift;
+                }
+                addInto(derivatives, derivativeExponents, children[e], term, termExponent);
+                if (e > start) {
+                    suffix *= values[children[e]];
+                    suffixExponent += exponents[children[e]];
+                    if (suffix != 0 && suffix < ScaledDouble.RESCALE_BELOW) {
+                        int shift = ScaledDouble.shiftFor(suffix);
+                        suffix = Math.scalb(suffix, shift);
+                        suffixExponent -= shift;
+                    }
+                }
+            }
+        }
+    }
+
+    // mantissas[i] * 2^exponents[i] times mantissa * 2^exponent, rescaled as ScaledDouble values are
+    private static void multiplyInto(double[] mantissas, int[] exponents, int i, double mantissa, int exponent) {
+        double product = mantissas[i] * mantissa;
+        int productExponent = exponents[i] + exponent;
+        if (product != 0 && product < ScaledDouble.RESCALE_BELOW) {
+            int shift = ScaledDouble.shiftFor(product);
+            product = Math.scalb(product, shift);
+            productExponent -= shift;
+        }
+        mantissas[i] = product;
+        exponents[i] = product == 0 ? 0 : productExponent;
+    }
+
+    // Adds at the scale of the larger value, as ScaledDouble.add does
+    private static void addInto(double[] mantissas, int[] exponents, int i, double mantissa, int exponent) {
+        if (mantissa == 0) {
+            return;
+        }
+        if (mantissas[i] == 0) {
+            mantissas[i] = mantissa;
+            exponents[i] = exponent;
+        } else if (exponents[i] == exponent) {
+            mantissas[i] += mantissa;
+        } else if (ScaledDouble.magnitude(mantissas[i], exponents[i]) > ScaledDouble.magnitude(mantissa, exponent)) {
+            mantissas[i] += Math.scalb(mantissa, exponent - exponents[i]);
+        } else {
+            mantissas[i] = Math.scalb(mantissas[i], exponents[i] - exponent) + mantissa;
+            exponents[i] = exponent;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.Arrays;
+
+/**
+ * Bayes-ball relevance analysis (Shachter 1998). Starting from the query variable, a ball
+ * is bounced through the network under the evidence; the variables it marks "on top" are
+ * the only ones whose CPTs can influence P(query | evidence). Barren nodes and nodes
+ * d-separated from the query are never marked, so their CPTs can be dropped.
+ */
+final class BayesBall {
+    private BayesBall() {
+    }
+
+    static boolean[] requisiteVariables(CompiledNetwork network, Query query) {
+        return requisiteVariables(network, new int[]{query.queryVar}, query.evidenceVars);
+    }
+
+    // Requisite for the joint posterior of several query variables: the ball starts from each of them
+    static boolean[] requisiteVariables(CompiledNetwork network, int[] queryVars, int[] evidenceVars) {
+        int n = network.size();
+        boolean[] observed = new boolean[n];
+        for (int var : evidenceVars) {
+            observed[var] = true;
+        }
+
+        boolean[] top = new boolean[n];
+        boolean[] bottom = new boolean[n];
+
+        // Pending visits: variable id and whether the ball arrives from a child
+        int[] pendingVars = new int[2 * n + queryVars.length];
+        boolean[] pendingFromChild = new boolean[2 * n + queryVars.length];
+        int size = 0;
+        for (int queryVar : queryVars) {
+            pendingVars[size] = queryVar;
+            pendingFromChild[size++] = true;
+        }
+
+        // Each variable passes the ball to its parents once (top mark) and its children once (bottom mark)
+        while (size > 0) {
+            size--;
+            int var = pendingVars[size];
+            boolean fromChild = pendingFromChild[size];
+
+            boolean passUp = false;
+            boolean passDown = false;
+            if (!observed[var]) {
+                if (fromChild && !top[var]) {
+                    top[var] = true;
+                    passUp = true;
+                }
+                if (!bottom[var]) {
+                    bottom[var] = true;
+                    passDown = true;
+                }
+            } else if (!fromChild && !top[var]) {
+                top[var] = true;
+                passUp = true;
+            }
+
+            int needed = size + (passUp ? network.getParents(var).length : 0)
+                    + (passDown ? network.getChildren(var).length : 0);
+            if (needed > pendingVars.length) {
+                int capacity = Math.max(needed, pendingVars.length * 2);
+                pendingVars = Arrays.copyOf(pendingVars, capacity);
+                pendingFromChild = Arrays.copyOf(pendingFromChild, capacity);
+            }
+            if (passUp) {
+                for (int parent : network.getParents(var)) {
+                    pendingVars[size] = parent;
+                    pendingFromChild[size++] = true;
+                }
+            }
+            if (passDown) {
+                for (int child : network.getChildren(var)) {
+                    pendingVars[size] = child;
+                    pendingFromChild[size++] = false;
+                }
+            }
+        }
+
+        return top;
+    }
+}
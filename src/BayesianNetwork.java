@@ -1,18 +1,76 @@
-
+import java.util.List;
 
 public class BayesianNetwork {
-    private final NetworkParser parser;
-    private final NetworkStructure structure;
+    // Number of query results kept by default; 0 disables the cache
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+
+    private final CompiledNetwork compiled;
     private final QueryProcessor queryProcessor;
+    private final QueryCache queryCache;
     private final InferenceEngine inferenceEngine;
+    private final String fileName;
+    private final long loadNanos;
 
     public BayesianNetwork(String xmlFileName) throws Exception {
-        this.parser = new NetworkParser();
-        parser.parse(xmlFileName);
+        this(xmlFileName, DEFAULT_CACHE_SIZE);
+    }
+
+    public BayesianNetwork(String xmlFileName, int cacheSize) throws Exception {
+        this(xmlFileName, cacheSize, InferenceEngine.DEFAULT_ARITHMETIC);
+    }
+
+    public BayesianNetwork(String xmlFileName, int cacheSize, Arithmetic arithmetic) throws Exception {
+        this(xmlFileName, cacheSize, arithmetic, SamplingSettings.DEFAULT);
+    }
+
+    public BayesianNetwork(String xmlFileName, int cacheSize, Arithmetic arithmetic, SamplingSettings sampling) throws Exception {
+        // A fresh precompiled .bnc next to the XML skips parsing it
+        long start = System.nanoTime();
+        this.compiled = NetworkFile.load(xmlFileName);
+        // and a .bac compiled from this network skips compiling the arithmetic circuit of algorithm 7
+        ArithmeticCircuit circuit = CircuitFile.load(xmlFileName, compiled);
+        this.loadNanos = System.nanoTime() - start;
+        this.fileName = xmlFileName;
+        this.queryProcessor = new QueryProcessor(compiled);
+        this.queryCache = cacheSize > 0 ? new QueryCache(cacheSize) : null;
+        this.inferenceEngine = new InferenceEngine(compiled, queryProcessor, queryCache, arithmetic, sampling);
+        if (circuit != null) {
+            inferenceEngine.setCircuit(circuit);
+        }
+    }
+
+    public CompiledNetwork getCompiledNetwork() {
+        return compiled;
+    }
+
+    // Measures loading (reported right away) and every query from now on; null turns it off
+    public void setInstrumentation(Instrumentation instrumentation) {
+        if (instrumentation != null) {
+            instrumentation.networkLoaded(fileName, loadNanos);
+        }
+        inferenceEngine.setInstrumentation(instrumentation);
+    }
+
+    // Largest table any one query may build, and what to do with queries over it
+    public void setMemoryBudget(MemoryBudget budget) {
+        inferenceEngine.setMemoryBudget(budget);
+    }
 
-        this.structure = new NetworkStructure(parser.getVariables(), parser.getCPTs());
-        this.queryProcessor = new QueryProcessor(structure, parser.getCPTs());
-        this.inferenceEngine = new InferenceEngine(structure, parser.getCPTs(), queryProcessor);
+    // Pre-flight estimate of a conditional query under algorithm 1 to 4 or 7; nothing is computed
+    public CostEstimate cost(String query, int algorithm) {
+        return inferenceEngine.cost(query, algorithm);
+    }
+
+    public CostEstimate cost(String query, int algorithm, EliminationHeuristic heuristic) {
+        return inferenceEngine.cost(query, algorithm, heuristic);
+    }
+
+    public long getCacheHits() {
+        return queryCache == null ? 0 : queryCache.getHits();
+    }
+
+    public long getCacheMisses() {
+        return queryCache == null ? 0 : queryCache.getMisses();
     }
 
     public Result jointProbability(String query) {
@@ -22,4 +80,45 @@ public class BayesianNetwork {
     public Result conditionalProbability(String query, int algorithm) {
         return inferenceEngine.conditionalProbability(query, algorithm);
     }
-}
\ No newline at end of file
+
+    public Result conditionalProbability(String query, int algorithm, EliminationHeuristic heuristic) {
+        return inferenceEngine.conditionalProbability(query, algorithm, heuristic);
+    }
+
+    // Every outcome of one or more query variables given the evidence, e.g. P(B,E|J=T,M=T)
+    public Posterior posterior(String query, int algorithm) {
+        return inferenceEngine.posterior(query, algorithm);
+    }
+
+    public Posterior posterior(String query, int algorithm, EliminationHeuristic heuristic) {
+        return inferenceEngine.posterior(query, algorithm, heuristic);
+    }
+
+    // Posterior of every unobserved variable given evidence such as P(J=T,M=T), from the arithmetic circuit
+    public List<Posterior> marginals(String evidence) {
+        return inferenceEngine.marginals(evidence);
+    }
+
+    // Stateful evidence for interactive use: observe or retract one variable at a time and re-ask posteriors
+    public EvidenceSession openSession() {
+        return inferenceEngine.openSession();
+    }
+
+    // Compiles a signature such as P(B|J,M) once; execute it with the observed values, e.g. execute("T", "T")
+    public PreparedQuery prepare(String signature) {
+        return inferenceEngine.prepare(signature, 3);
+    }
+
+    public PreparedQuery prepare(String signature, int algorithm) {
+        return inferenceEngine.prepare(signature, algorithm);
+    }
+
+    public PreparedQuery prepare(String signature, int algorithm, EliminationHeuristic heuristic) {
+        return inferenceEngine.prepare(signature, algorithm, heuristic);
+    }
+
+    // Algorithm 5 or 6 with its own budget, seed or target confidence interval
+    public Result estimate(String query, int algorithm, SamplingSettings settings) {
+        return inferenceEngine.estimate(query, algorithm, settings);
+    }
+}
@@ -0,0 +1,322 @@
+import java.util.*;
+
+/**
+ * Records a variable elimination of every variable as an {@link ArithmeticCircuit}. The
+ * factors hold node ids instead of numbers: every CPT entry is a parameter node, every
+ * variable also gets a factor of its indicators, and each multiply and sum-out of the
+ * elimination emits product and sum nodes. The order is the min-weight order the junction
+ * tree uses, so the largest symbolic table is as large as its largest clique.
+ *
+ * Constants are folded while recording: a 0 entry, as in deterministic CPTs, drops every
+ * product it takes part in, and a 1 entry is left out of its products. Nodes the root does
+ * not reach are removed at the end.
+ */
+final class CircuitCompiler {
+    // Operands that are constants rather than nodes
+    private static final int ZERO = -1;
+    private static final int ONE = -2;
+
+    private final CompiledNetwork network;
+    private final int indicatorCount;
+    private int leafCount;
+
+    private final Map<Long, Integer> parameterNodes = new HashMap<>();
+    private double[] parameters = new double[64];
+    private int parameterCount;
+
+    private byte[] operations = new byte[1024];
+    private int[] childStart = new int[1025];
+    private int operationCount;
+    private int[] children = new int[4096];
+    private int edgeCount;
+
+    private CircuitCompiler(CompiledNetwork network) {
+        this.network = network;
+        int indicators = 0;
+        for (int var = 0; var < network.size(); var++) {
+            indicators += network.getCardinality(var);
+        }
+        this.indicatorCount = indicators;
+    }
+
+    static ArithmeticCircuit compile(CompiledNetwork network) {
+        return new CircuitCompiler(network).record();
+    }
+
+    private ArithmeticCircuit record() {
+        int n = network.size();
+
+        // Every parameter node is created before the first operation, so leaves come first
+        List<Table> factors = new ArrayList<>(2 * n);
+        List<int[]> scopes = new ArrayList<>(n);
+        List<Integer> allVars = new ArrayList<>(n);
+        int indicator = 0;
+        for (int var = 0; var < n; var++) {
+            factors.add(cptTable(var));
+            int card = network.getCardinality(var);
+            int[] nodes = new int[card];
+            for (int k = 0; k < card; k++) {
+                nodes[k] = indicator++;
+            }
+            factors.add(new Table(new int[]{var}, new int[]{card}, nodes));
+        }
+        this.leafCount = indicatorCount + parameterCount;
+        for (int var : network.getNameOrder()) {
+            scopes.add(network.getFamily(var));
+            allVars.add(var);
+        }
+
+        for (int var : EliminationOrder.minWeight(network, scopes, allVars)) {
+            List<Table> relevant = new ArrayList<>();
+            List<Table> remaining = new ArrayList<>(factors.size());
+            for (Table factor : factors) {
+                (factor.positionOf(var) == -1 ? remaining : relevant).add(factor);
+            }
+            remaining.add(eliminate(relevant, var));
+            factors = remaining;
+        }
+
+        // Only empty scopes are left, one per connected component
+        int[] operands = new int[factors.size()];
+        int count = 0;
+        for (Table factor : factors) {
+            int node = factor.nodes[0];
+            if (node == ZERO) {
+                throw new IllegalStateException("The network gives every assignment probability zero");
+            }
+            if (node != ONE) {
+                operands[count++] = node;
+            }
+        }
+        int root = product(operands, count);
+        if (root == ONE) {
+            throw new IllegalStateException("The network has no variables to compile");
+        }
+        return build(root);
+    }
+
+    private Table cptTable(int var) {
+        int[] family = network.getFamily(var);
+        int[] cards = new int[family.length];
+        for (int i = 0; i < family.length; i++) {
+            cards[i] = network.getCardinality(family[i]);
+        }
+        double[] table = network.getTable(var);
+        int[] nodes = new int[table.length];
+        for (int i = 0; i < table.length; i++) {
+            nodes[i] = parameter(table[i]);
+        }
+        return new Table(family, cards, nodes);
+    }
+
+    // One node per distinct value, shared by every CPT entry holding it
+    private int parameter(double value) {
+        if (value == 0) {
+            return ZERO;
+        }
+        if (value == 1) {
+            return ONE;
+        }
+        Integer node = parameterNodes.get(Double.doubleToLongBits(value));
+        if (node == null) {
+            if (parameterCount == parameters.length) {
+                parameters = Arrays.copyOf(parameters, 2 * parameterCount);
+            }
+            node = indicatorCount + parameterCount;
+            parameters[parameterCount++] = value;
+            parameterNodes.put(Double.doubleToLongBits(value), node);
+        }
+        return node;
+    }
+
+    // Sum over var of the product of the factors, one sum of products per cell of the result
+    private Table eliminate(List<Table> factors, int var) {
+        int[] scope = new int[0];
+        for (Table factor : factors) {
+            for (int member : factor.vars) {
+                if (member != var && !containsVar(scope, member)) {
+                    scope = Arrays.copyOf(scope, scope.length + 1);
+                    scope[scope.length - 1] = member;
+                }
+            }
+        }
+        int[] cards = new int[scope.length];
+        for (int d = 0; d < scope.length; d++) {
+            cards[d] = network.getCardinality(scope[d]);
+        }
+
+        int m = factors.size();
+        int[][] strideIn = new int[m][scope.length];   // 0 for variables a factor does not mention
+        int[] varStride = new int[m];
+        for (int f = 0; f < m; f++) {
+            Table factor = factors.get(f);
+            for (int d = 0; d < scope.length; d++) {
+                int pos = factor.positionOf(scope[d]);
+                strideIn[f][d] = pos == -1 ? 0 : factor.strides[pos];
+            }
+            varStride[f] = factor.strides[factor.positionOf(var)];
+        }
+
+        int card = network.getCardinality(var);
+        int[] nodes = new int[Factor.tableSize(cards, cards.length)];
+        int[] base = new int[m];
+        int[] counter = new int[scope.length];
+        int[] products = new int[card];
+        int[] operands = new int[m];
+        for (int i = 0; i < nodes.length; i++) {
+            // Every product holds an indicator of var, so none of them is the constant 1
+            int terms = 0;
+            for (int value = 0; value < card; value++) {
+                int count = 0;
+                boolean zero = false;
+                for (int f = 0; f < m && !zero; f++) {
+                    int node = factors.get(f).nodes[base[f] + value * varStride[f]];
+                    zero = node == ZERO;
+                    if (node >= 0) {
+                        operands[count++] = node;
+                    }
+                }
+                if (!zero) {
+                    products[terms++] = product(operands, count);
+                }
+            }
+            nodes[i] = sum(products, terms);
+
+            for (int d = scope.length - 1; d >= 0; d--) {
+                for (int f = 0; f < m; f++) {
+                    base[f] += strideIn[f][d];
+                }
+                if (++counter[d] < cards[d]) {
+                    break;
+                }
+                for (int f = 0; f < m; f++) {
+                    base[f] -= strideIn[f][d] * cards[d];
+                }
+                counter[d] = 0;
+            }
+        }
+        return new Table(scope, cards, nodes);
+    }
+
+    private int product(int[] operands, int count) {
+        if (count == 0) {
+            return ONE;
+        }
+        return count == 1 ? operands[0] : operation(ArithmeticCircuit.PRODUCT, operands, count);
+    }
+
+    private int sum(int[] operands, int count) {
+        if (count == 0) {
+            return ZERO;
+        }
+        return count == 1 ? operands[0] : operation(ArithmeticCircuit.SUM, operands, count);
+    }
+
+    private int operation(byte kind, int[] operands, int count) {
+        if (edgeCount > Factor.MAX_TABLE_SIZE - count) {
+            throw new IllegalStateException("The arithmetic circuit would have more than " + Factor.MAX_TABLE_SIZE
+                    + " edges");
+        }
+        if (operationCount == operations.length) {
+            operations = Arrays.copyOf(operations, 2 * operationCount);
+            childStart = Arrays.copyOf(childStart, 2 * operationCount + 1);
+        }
+        while (edgeCount + count > children.length) {
+            children = Arrays.copyOf(children, (int) Math.min(2L * children.length, Factor.MAX_TABLE_SIZE));
+        }
+        System.arraycopy(operands, 0, children, edgeCount, count);
+        edgeCount += count;
+        operations[operationCount] = kind;
+        childStart[++operationCount] = edgeCount;
+        return leafCount + operationCount - 1;
+    }
+
+    // Keeps what the root reaches, renumbered in the same order; every indicator is kept
+    private ArithmeticCircuit build(int root) {
+        boolean[] reachable = new boolean[leafCount + operationCount];
+        reachable[root] = true;
+        for (int op = operationCount - 1; op >= 0; op--) {
+            if (reachable[leafCount + op]) {
+                for (int e = childStart[op]; e < childStart[op + 1]; e++) {
+                    reachable[children[e]] = true;
+                }
+            }
+        }
+
+        int[] newId = new int[reachable.length];
+        int next = indicatorCount;
+        for (int node = 0; node < indicatorCount; node++) {
+            newId[node] = node;
+        }
+        double[] keptParameters = new double[parameterCount];
+        for (int p = 0; p < parameterCount; p++) {
+            if (reachable[indicatorCount + p]) {
+                keptParameters[next - indicatorCount] = parameters[p];
+                newId[indicatorCount + p] = next++;
+            }
+        }
+        keptParameters = Arrays.copyOf(keptParameters, next - indicatorCount);
+
+        int kept = 0;
+        int keptEdges = 0;
+        for (int op = 0; op < operationCount; op++) {
+            if (reachable[leafCount + op]) {
+                kept++;
+                keptEdges += childStart[op + 1] - childStart[op];
+            }
+        }
+        byte[] keptOperations = new byte[kept];
+        int[] keptStart = new int[kept + 1];
+        int[] keptChildren = new int[keptEdges];
+        int k = 0;
+        int edge = 0;
+        for (int op = 0; op < operationCount; op++) {
+            if (reachable[leafCount + op]) {
+                for (int e = childStart[op]; e < childStart[op + 1]; e++) {
+                    keptChildren[edge++] = newId[children[e]];
+                }
+                keptOperations[k] = operations[op];
+                keptStart[++k] = edge;
+                newId[leafCount + op] = next++;
+            }
+        }
+        return new ArithmeticCircuit(network.getCardinalities(), keptParameters, keptOperations, keptStart, keptChildren,
+                newId[root]);
+    }
+
+    private static boolean containsVar(int[] vars, int var) {
+        for (int v : vars) {
+            if (v == var) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A factor of node ids over a scope, first variable slowest-changing
+    private static final class Table {
+        final int[] vars;
+        final int[] strides;
+        final int[] nodes;
+
+        Table(int[] vars, int[] cards, int[] nodes) {
+            this.vars = vars;
+            this.nodes = nodes;
+            this.strides = new int[cards.length];
+            int stride = 1;
+            for (int i = cards.length - 1; i >= 0; i--) {
+                strides[i] = stride;
+                stride *= cards[i];
+            }
+        }
+
+        int positionOf(int var) {
+            for (int i = 0; i < vars.length; i++) {
+                if (vars[i] == var) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
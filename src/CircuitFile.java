@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Compiled arithmetic circuit files (.bac). A .bac next to the network's XML, compiled from a
+ * network with the same variables, parents and CPTs, is loaded with the network so algorithm
+ * 7 never compiles it. Compile one offline with {@code java CircuitFile network.xml [network.bac]}.
+ *
+ * The circuit holds the CPT values themselves, so a file is matched to its network by a
+ * fingerprint of all of them rather than by the XML's size and time.
+ *
+ * Layout, little-endian throughout:
+ *   header      "BAC1", int version, long network fingerprint, int n, then n cardinalities
+ *   counts      int parameters, int operations, int edges, int root
+ *   parameters  zero padding to a multiple of 8, then the parameter values as raw doubles
+ *   operations  operations + 1 child offsets, then every child id, then one kind byte each
+ */
+public final class CircuitFile {
+    public static final String EXTENSION = ".bac";
+
+    private static final int MAGIC = 0x31434142;   // "BAC1" read as a little-endian int
+    private static final int VERSION = 1;
+
+    private CircuitFile() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java CircuitFile network.xml [network" + EXTENSION + "]");
+            System.exit(2);
+        }
+        Path out = args.length == 2 ? Paths.get(args[1]) : circuitPathFor(args[0]);
+        CompiledNetwork network = NetworkFile.load(args[0]);
+        ArithmeticCircuit circuit = CircuitCompiler.compile(network);
+        write(circuit, network, out);
+        System.err.println("Wrote " + out + ": " + circuit.getNodeCount() + " nodes, " + circuit.getEdgeCount() + " edges");
+    }
+
+    // network.xml -> network.bac in the same directory
+    public static Path circuitPathFor(String xmlFileName) {
+        Path xml = Paths.get(xmlFileName);
+        String name = xml.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return xml.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + EXTENSION);
+    }
+
+    // The circuit in the .bac next to the XML, or null when there is none for this network.
+    // A damaged file or one of another version is ignored too; algorithm 7 then compiles on first use
+    static ArithmeticCircuit load(String xmlFileName, CompiledNetwork network) {
+        Path file = circuitPathFor(xmlFileName);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            return read(file, network);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hash of everything a circuit depends on: the cardinalities, the parents and every CPT
+     * entry bit for bit. Names and outcome labels are not part of it.
+     */
+    static long fingerprint(CompiledNetwork network) {
+        long hash = 0xcbf29ce484222325L;
+        for (int var = 0; var < network.size(); var++) {
+            hash = mix(hash, network.getCardinality(var));
+            hash = mix(hash, network.getParents(var).length);
+            for (int parent : network.getParents(var)) {
+                hash = mix(hash, parent);
+            }
+            for (double p : network.getTable(var)) {
+                hash = mix(hash, Double.doubleToLongBits(p));
+            }
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        return (hash ^ value) * 0x100000001b3L;
+    }
+
+    static void write(ArithmeticCircuit circuit, CompiledNetwork network, Path out) throws IOException {
+        int n = circuit.cards.length;
+        int operations = circuit.operations.length;
+        long length = 4 + 4 + 8 + 4 + 4L * n + 16;
+        int padding = (int) (-length & 7);
+        length += padding + 8L * circuit.parameters.length + 4L * (operations + 1) + 4L * circuit.children.length
+                + operations;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Circuit is too large for a single " + EXTENSION + " file: " + length + " bytes");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(fingerprint(network)).putInt(n);
+        for (int card : circuit.cards) {
+            buffer.putInt(card);
+        }
+        buffer.putInt(circuit.parameters.length).putInt(operations).putInt(circuit.children.length).putInt(circuit.root);
+        buffer.position(buffer.position() + padding);
+        for (double p : circuit.parameters) {
+            buffer.putDouble(p);
+        }
+        for (int start : circuit.childStart) {
+            buffer.putInt(start);
+        }
+        for (int child : circuit.children) {
+            buffer.putInt(child);
+        }
+        buffer.put(circuit.operations);
+        buffer.flip();
+
+        // Written next to the target and moved into place, so readers never see half a file
+        Path absolute = out.toAbsolutePath();
+        Path temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Null when the file was compiled from another network or another version of this one
+    static ArithmeticCircuit read(Path file, CompiledNetwork network) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < 20 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException(file + " is not a version " + VERSION + " " + EXTENSION + " file");
+            }
+            if (buffer.getLong() != fingerprint(network) || buffer.getInt() != network.size()) {
+                return null;
+            }
+            int n = network.size();
+            int[] cards = new int[n];
+            int indicators = 0;
+            for (int var = 0; var < n; var++) {
+                cards[var] = buffer.getInt();
+                indicators += cards[var];
+            }
+
+            int parameterCount = getCount(buffer, 8, file);
+            int operationCount = getCount(buffer, 5, file);
+            int edgeCount = getCount(buffer, 4, file);
+            int root = buffer.getInt();
+            buffer.position(buffer.position() + (-buffer.position() & 7));
+            double[] parameters = new double[parameterCount];
+            buffer.asDoubleBuffer().get(parameters);
+            buffer.position(buffer.position() + 8 * parameterCount);
+
+            // Children must come before their parents, which also keeps every id in range
+            int leafCount = indicators + parameterCount;
+            int[] childStart = new int[operationCount + 1];
+            for (int op = 0; op <= operationCount; op++) {
+                childStart[op] = buffer.getInt();
+                if (op == 0 ? childStart[0] != 0 : childStart[op] <= childStart[op - 1] || childStart[op] > edgeCount) {
+                    throw new IOException(file + " has an invalid child offset for operation " + op);
+                }
+            }
+            if (childStart[operationCount] != edgeCount) {
+                throw new IOException(file + " has " + childStart[operationCount] + " children, expected " + edgeCount);
+            }
+            int[] children = new int[edgeCount];
+            for (int op = 0; op < operationCount; op++) {
+                for (int e = childStart[op]; e < childStart[op + 1]; e++) {
+                    children[e] = buffer.getInt();
+                    if (children[e] < 0 || children[e] >= leafCount + op) {
+                        throw new IOException(file + " refers to node " + children[e] + " from node " + (leafCount + op));
+                    }
+                }
+            }
+            byte[] operations = new byte[operationCount];
+            buffer.get(operations);
+            for (byte kind : operations) {
+                if (kind != ArithmeticCircuit.SUM && kind != ArithmeticCircuit.PRODUCT) {
+                    throw new IOException(file + " has an unknown operation " + kind);
+                }
+            }
+            if (root < 0 || root >= leafCount + operationCount) {
+                throw new IOException(file + " has an invalid root " + root);
+            }
+            return new ArithmeticCircuit(cards, parameters, operations, childStart, children, root);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + " is truncated", e);
+        }
+    }
+
+    // A count of items of the given size, which must fit in what is left of the file
+    private static int getCount(ByteBuffer buffer, int itemBytes, Path file) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || (long) count * itemBytes > buffer.remaining()) {
+            throw new IOException(file + " has an invalid count " + count + " at byte " + (buffer.position() - 4));
+        }
+        return count;
+    }
+}
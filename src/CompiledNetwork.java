@@ -0,0 +1,215 @@
+import java.util.*;
+
+/**
+ * Immutable, integer-indexed form of a parsed network. Variables and outcomes are
+ * dense ids; names are only resolved through the symbol table at the query boundary.
+ * CPT tables keep the XMLBIF layout (parents first, the variable itself fastest-changing).
+ */
+public final class CompiledNetwork {
+    private final String[] names;
+    private final String[][] outcomes;
+    private final int[] cards;
+    private final int[][] parents;
+    private final int[][] family;       // parents followed by the variable itself
+    private final int[][] cptStrides;   // stride of each family member inside the CPT table
+    private final double[][] tables;
+    private final int[] nonZeroCounts;  // non-zero entries of each CPT, deterministic ones have few
+    private final int[][] children;
+    private final int[] topologicalOrder;
+    private final int[] nameOrder;      // ids sorted by variable name
+    private final Map<String, Integer> ids;
+    private final List<Map<String, Integer>> outcomeIds;
+
+    CompiledNetwork(String[] names, String[][] outcomes, int[][] parents, double[][] tables, int[] topologicalOrder) {
+        int n = names.length;
+        this.names = names;
+        this.outcomes = outcomes;
+        this.parents = parents;
+        this.tables = tables;
+        this.topologicalOrder = topologicalOrder;
+
+        this.cards = new int[n];
+        this.ids = new HashMap<>(n * 2);
+        this.outcomeIds = new ArrayList<>(n);
+        for (int v = 0; v < n; v++) {
+            cards[v] = outcomes[v].length;
+            ids.put(names[v], v);
+            Map<String, Integer> valueIds = new HashMap<>(cards[v] * 2);
+            for (int k = 0; k < cards[v]; k++) {
+                valueIds.put(outcomes[v][k], k);
+            }
+            outcomeIds.add(valueIds);
+        }
+
+        this.family = new int[n][];
+        this.cptStrides = new int[n][];
+        this.nonZeroCounts = new int[n];
+        int[] childCounts = new int[n];
+        for (int v = 0; v < n; v++) {
+            int[] scope = Arrays.copyOf(parents[v], parents[v].length + 1);
+            scope[parents[v].length] = v;
+            family[v] = scope;
+
+            int[] strides = new int[scope.length];
+            int stride = 1;
+            for (int i = scope.length - 1; i >= 0; i--) {
+                strides[i] = stride;
+                stride *= cards[scope[i]];
+            }
+            cptStrides[v] = strides;
+
+            if (tables[v].length != stride) {
+                throw new IllegalStateException("CPT for " + names[v] + " has " + tables[v].length
+                        + " entries, expected " + stride);
+            }
+            for (double p : tables[v]) {
+                if (p != 0) {
+                    nonZeroCounts[v]++;
+                }
+            }
+            for (int parent : parents[v]) {
+                childCounts[parent]++;
+            }
+        }
+
+        this.children = new int[n][];
+        for (int v = 0; v < n; v++) {
+            children[v] = new int[childCounts[v]];
+            childCounts[v] = 0;
+        }
+        for (int v = 0; v < n; v++) {
+            for (int parent : parents[v]) {
+                children[parent][childCounts[parent]++] = v;
+            }
+        }
+
+        Integer[] sorted = new Integer[n];
+        for (int v = 0; v < n; v++) {
+            sorted[v] = v;
+        }
+        Arrays.sort(sorted, Comparator.comparing(v -> names[v]));
+        this.nameOrder = new int[n];
+        for (int i = 0; i < n; i++) {
+            nameOrder[i] = sorted[i];
+        }
+    }
+
+    public static CompiledNetwork compile(NetworkStructure structure, Map<String, CPT> cpts) {
+        Map<String, Variable> variables = structure.getVariables();
+        int n = variables.size();
+        String[] names = new String[n];
+        String[][] outcomes = new String[n][];
+        for (Variable var : variables.values()) {
+            names[var.getId()] = var.getName();
+            outcomes[var.getId()] = var.getValues().toArray(new String[0]);
+        }
+
+        int[][] parents = new int[n][];
+        double[][] tables = new double[n][];
+        for (int v = 0; v < n; v++) {
+            CPT cpt = cpts.get(names[v]);
+            if (cpt == null) {
+                throw new IllegalStateException("Missing CPT for variable " + names[v]);
+            }
+            List<String> parentNames = cpt.getParents();
+            parents[v] = new int[parentNames.size()];
+            for (int i = 0; i < parentNames.size(); i++) {
+                Variable parent = variables.get(parentNames.get(i));
+                if (parent == null) {
+                    throw new IllegalStateException("Unknown parent " + parentNames.get(i) + " of " + names[v]);
+                }
+                parents[v][i] = parent.getId();
+            }
+            tables[v] = cpt.getTable().clone();
+        }
+
+        List<String> order = structure.getTopologicalOrder();
+        int[] topologicalOrder = new int[order.size()];
+        for (int i = 0; i < order.size(); i++) {
+            topologicalOrder[i] = variables.get(order.get(i)).getId();
+        }
+
+        return new CompiledNetwork(names, outcomes, parents, tables, topologicalOrder);
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public int getId(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            throw new IllegalArgumentException("Unknown variable: " + name);
+        }
+        return id;
+    }
+
+    public int getOutcomeIndex(int var, String value) {
+        Integer index = outcomeIds.get(var).get(value);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown value " + value + " for variable " + names[var]);
+        }
+        return index;
+    }
+
+    public String getName(int var) {
+        return names[var];
+    }
+
+    public String getOutcome(int var, int index) {
+        return outcomes[var][index];
+    }
+
+    public int getCardinality(int var) {
+        return cards[var];
+    }
+
+    public int[] getCardinalities() {
+        return cards;
+    }
+
+    // The arrays below are shared, callers must not modify them
+
+    public int[] getParents(int var) {
+        return parents[var];
+    }
+
+    public int[] getFamily(int var) {
+        return family[var];
+    }
+
+    public int[] getCptStrides(int var) {
+        return cptStrides[var];
+    }
+
+    public double[] getTable(int var) {
+        return tables[var];
+    }
+
+    public int getNonZeroCount(int var) {
+        return nonZeroCounts[var];
+    }
+
+    public int[] getChildren(int var) {
+        return children[var];
+    }
+
+    public int[] getTopologicalOrder() {
+        return topologicalOrder;
+    }
+
+    public int[] getNameOrder() {
+        return nameOrder;
+    }
+
+    // P(var = assignment[var] | parents = assignment[parents]), every family member must be assigned
+    public double getProbability(int var, int[] assignment) {
+        int[] scope = family[var];
+        int[] strides = cptStrides[var];
+        int index = 0;
+        for (int i = 0; i < scope.length; i++) {
+            index += assignment[scope[i]] * strides[i];
+        }
+        return tables[var][index];
+    }
+}
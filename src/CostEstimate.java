@@ -0,0 +1,56 @@
+/**
+ * What a query is expected to cost before any table is built: the entries of the largest
+ * table, the operation counts under the same conventions as {@link Result}, and the induced
+ * width of the elimination. Counts that are not estimated for an algorithm are -1, and
+ * values too large for a long saturate at Long.MAX_VALUE.
+ *
+ * Multiplications are those the query will report. Additions are an upper bound for variable
+ * elimination: summing out the last variable only counts the cells the running sum exceeds,
+ * which depends on the values, so zero cells before the first non-zero one are not counted.
+ */
+public final class CostEstimate {
+    private final long peakTableEntries;
+    private final long additions;
+    private final long multiplications;
+    private final int width;
+
+    CostEstimate(long peakTableEntries, long additions, long multiplications, int width) {
+        this.peakTableEntries = peakTableEntries;
+        this.additions = additions;
+        this.multiplications = multiplications;
+        this.width = width;
+    }
+
+    public long getPeakTableEntries() {
+        return peakTableEntries;
+    }
+
+    // A dense table of doubles; sparse tables of mostly-zero factors take less
+    public long getPeakTableBytes() {
+        return saturatedMultiply(peakTableEntries, Double.BYTES);
+    }
+
+    public long getAdditions() {
+        return additions;
+    }
+
+    public long getMultiplications() {
+        return multiplications;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    static long saturatedMultiply(long a, long b) {
+        long high = Math.multiplyHigh(a, b);
+        long low = a * b;
+        return high != 0 || low < 0 ? Long.MAX_VALUE : low;
+    }
+
+    @Override
+    public String toString() {
+        return "peak table " + peakTableEntries + " entries (" + getPeakTableBytes() + " bytes), "
+                + additions + " additions, " + multiplications + " multiplications, width " + width;
+    }
+}
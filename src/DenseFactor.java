@@ -0,0 +1,257 @@
+// Factor holding every entry of its table, first variable slowest-changing
+final class DenseFactor extends Factor {
+    // Never modified once the factor is built, so CPT tables can be shared. Tables from a
+    // FactorArena may be longer than the factor, only the first size entries belong to it
+    private final double[] table;
+
+    DenseFactor(int[] varIds, int[] cards, double[] table, int exponent) {
+        super(varIds, cards, exponent);
+        this.table = table;
+    }
+
+    // A freshly computed table of size entries, stored sparse instead when few of them are non-zero
+    static Factor create(int[] varIds, int[] cards, double[] table, int size, int nonZeros, int exponent) {
+        if (isSparse(size, nonZeros)) {
+            return SparseFactor.fromDense(varIds, cards, table, size, nonZeros, exponent);
+        }
+        return new DenseFactor(varIds, cards, table, exponent);
+    }
+
+    @Override
+    public double getValue(int index) {
+        return table[index];
+    }
+
+    @Override
+    int entryCount() {
+        return size;
+    }
+
+    @Override
+    int entryIndex(int entry) {
+        return entry;
+    }
+
+    @Override
+    double entryValue(int entry) {
+        return table[entry];
+    }
+
+    @Override
+    long tableBytes() {
+        return 8L * size;
+    }
+
+    @Override
+    Factor restrict(int variable, int valueIndex, FactorArena arena) {
+        int pos = positionOf(variable);
+        if (pos == -1) {
+            return this;
+        }
+
+        // Find all variables except the restricted one
+        int n = varIds.length - 1;
+        int[] newIds = without(varIds, pos);
+        int[] newCards = without(cards, pos);
+        int[] srcStrides = without(strides, pos);
+
+        int newSize = size / cards[pos];
+        double[] newTable = FactorArena.table(arena, newSize);
+        int nonZeros = 0;
+
+        // Walk the new table in order, tracking the matching offset in the original one
+        int srcIndex = valueIndex * strides[pos];
+        int[] counter = new int[n];
+        for (int i = 0; i < newSize; i++) {
+            double value = table[srcIndex];
+            newTable[i] = value;
+            if (value != 0) {
+                nonZeros++;
+            }
+            for (int d = n - 1; d >= 0; d--) {
+                srcIndex += srcStrides[d];
+                if (++counter[d] < newCards[d]) {
+                    break;
+                }
+                srcIndex -= srcStrides[d] * newCards[d];
+                counter[d] = 0;
+            }
+        }
+
+        return create(newIds, newCards, newTable, newSize, nonZeros, exponent);
+    }
+
+    Factor multiplyDense(DenseFactor other, int[] newIds, int[] newCards, int[] strideB, int newSize, int newExponent,
+                         FactorArena arena) {
+        // Stride of every output variable inside this factor (0 past its own scope)
+        int n = newIds.length;
+        int[] strideA = new int[n];
+        System.arraycopy(strides, 0, strideA, 0, strides.length);
+
+        double[] newTable = FactorArena.table(arena, newSize);
+        double[] tableA = this.table;
+        double[] tableB = other.table;
+        int nonZeros = 0;
+
+        // Odometer walk over the output, advancing both operand offsets incrementally
+        int[] counter = new int[n];
+        int indexA = 0;
+        int indexB = 0;
+        for (int i = 0; i < newSize; i++) {
+            double value = tableA[indexA] * tableB[indexB];
+            newTable[i] = value;
+            if (value != 0) {
+                nonZeros++;
+            }
+            for (int d = n - 1; d >= 0; d--) {
+                indexA += strideA[d];
+                indexB += strideB[d];
+                if (++counter[d] < newCards[d]) {
+                    break;
+                }
+                indexA -= strideA[d] * newCards[d];
+                indexB -= strideB[d] * newCards[d];
+                counter[d] = 0;
+            }
+        }
+
+        return create(newIds, newCards, newTable, newSize, nonZeros, newExponent);
+    }
+
+    @Override
+    Factor sumOut(int pos, FactorArena arena) {
+        // Find all variables except the summed out one
+        int n = varIds.length - 1;
+        int[] newIds = without(varIds, pos);
+        int[] newCards = without(cards, pos);
+        int[] srcStrides = without(strides, pos);
+
+        int newSize = size / cards[pos];
+        double[] newTable = FactorArena.table(arena, newSize);
+        int eliminatedStride = strides[pos];
+        int eliminatedCard = cards[pos];
+        int nonZeros = 0;
+
+        // For each output cell, add up the run of source cells along the eliminated variable
+        int[] counter = new int[n];
+        int srcIndex = 0;
+        for (int i = 0; i < newSize; i++) {
+            double sum = 0.0;
+            for (int k = 0, offset = srcIndex; k < eliminatedCard; k++, offset += eliminatedStride) {
+                sum += table[offset];
+            }
+            newTable[i] = sum;
+            if (sum != 0) {
+                nonZeros++;
+            }
+            for (int d = n - 1; d >= 0; d--) {
+                srcIndex += srcStrides[d];
+                if (++counter[d] < newCards[d]) {
+                    break;
+                }
+                srcIndex -= srcStrides[d] * newCards[d];
+                counter[d] = 0;
+            }
+        }
+
+        return create(newIds, newCards, newTable, newSize, nonZeros, exponent);
+    }
+
+    /**
+     * Fused kernel behind Factor.productSumOut: one odometer walk over the output cells, and
+     * for each one a run over the eliminated variable's values that multiplies the factors'
+     * entries left to right and adds the products up, as the pairwise kernels would have.
+     */
+    static Factor productSumOut(DenseFactor[] factors, int[] unionIds, int[] unionCards, int variable, int[] opCounts,
+                                FactorArena arena) {
+        int pos = -1;
+        for (int d = 0; d < unionIds.length; d++) {
+            if (unionIds[d] == variable) {
+                pos = d;
+            }
+        }
+        int fullSize = tableSize(unionCards, unionCards.length);
+        int n = unionIds.length - 1;
+        int[] newIds = without(unionIds, pos);
+        int[] newCards = without(unionCards, pos);
+        int eliminatedCard = unionCards[pos];
+        int newSize = fullSize / eliminatedCard;
+
+        // Stride of every output variable, and of the eliminated one, inside each factor
+        int k = factors.length;
+        double[][] tables = new double[k][];
+        int[][] outStrides = new int[k][n];
+        int[] eliminatedStrides = new int[k];
+        int exponent = 0;
+        for (int j = 0; j < k; j++) {
+            DenseFactor factor = factors[j];
+            tables[j] = factor.table;
+            exponent += factor.exponent;
+            for (int d = 0; d < n; d++) {
+                int p = factor.positionOf(newIds[d]);
+                outStrides[j][d] = p == -1 ? 0 : factor.strides[p];
+            }
+            int p = factor.positionOf(variable);
+            eliminatedStrides[j] = p == -1 ? 0 : factor.strides[p];
+        }
+
+        // Only the eliminated variable is left: a scalar, counted like the scalar sumOut
+        if (n == 0) {
+            double sum = 0;
+            for (int v = 0; v < eliminatedCard; v++) {
+                double value = tables[0][v * eliminatedStrides[0]];
+                for (int j = 1; j < k; j++) {
+                    value *= tables[j][v * eliminatedStrides[j]];
+                }
+                sum += value;
+                if (sum > value) {
+                    opCounts[0]++; // Count addition
+                }
+            }
+            double[] scalar = FactorArena.table(arena, 1);
+            scalar[0] = sum;
+            return new DenseFactor(newIds, newCards, scalar, exponent);
+        }
+        opCounts[0] += fullSize; // Count one addition per entry of the product
+
+        double[] newTable = FactorArena.table(arena, newSize);
+        int nonZeros = 0;
+        int[] counter = new int[n];
+        int[] offsets = new int[k];
+        for (int i = 0; i < newSize; i++) {
+            double sum = 0.0;
+            for (int v = 0; v < eliminatedCard; v++) {
+                double value = tables[0][offsets[0] + v * eliminatedStrides[0]];
+                for (int j = 1; j < k; j++) {
+                    value *= tables[j][offsets[j] + v * eliminatedStrides[j]];
+                }
+                sum += value;
+            }
+            newTable[i] = sum;
+            if (sum != 0) {
+                nonZeros++;
+            }
+            for (int d = n - 1; d >= 0; d--) {
+                boolean carry = ++counter[d] == newCards[d];
+                for (int j = 0; j < k; j++) {
+                    offsets[j] += carry ? -outStrides[j][d] * (newCards[d] - 1) : outStrides[j][d];
+                }
+                if (!carry) {
+                    break;
+                }
+                counter[d] = 0;
+            }
+        }
+
+        return create(newIds, newCards, newTable, newSize, nonZeros, exponent);
+    }
+
+    @Override
+    Factor map(double divisor, int shift, int newExponent, FactorArena arena) {
+        double[] newTable = FactorArena.table(arena, size);
+        for (int i = 0; i < size; i++) {
+            newTable[i] = Math.scalb(table[i] / divisor, shift);
+        }
+        return new DenseFactor(varIds, cards, newTable, newExponent);
+    }
+}
@@ -0,0 +1,26 @@
+// Greedy scores for picking the next variable to eliminate; lower is better
+public enum EliminationHeuristic {
+    MIN_DEGREE("min-degree"),               // number of neighbours
+    MIN_FILL("min-fill"),                   // number of fill edges elimination would add
+    WEIGHTED_MIN_FILL("weighted-min-fill"), // fill edges weighted by the product of their endpoints' domain sizes
+    MIN_WEIGHT("min-weight");               // size of the factor elimination would create
+
+    private final String label;
+
+    EliminationHeuristic(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public static EliminationHeuristic fromLabel(String label) {
+        for (EliminationHeuristic heuristic : values()) {
+            if (heuristic.label.equals(label)) {
+                return heuristic;
+            }
+        }
+        throw new IllegalArgumentException("Unknown elimination heuristic: " + label);
+    }
+}
@@ -0,0 +1,17 @@
+import java.util.*;
+
+// Heuristic elimination orders computed over factor scopes only, without touching any tables
+final class EliminationOrder {
+    private EliminationOrder() {
+    }
+
+    // Greedy order under the given heuristic. Ties go to the variable that comes first in varsToEliminate
+    static List<Integer> compute(CompiledNetwork network, List<int[]> scopes, List<Integer> varsToEliminate,
+                                 EliminationHeuristic heuristic) {
+        return new InteractionGraph(network, scopes).eliminationOrder(varsToEliminate, heuristic);
+    }
+
+    static List<Integer> minWeight(CompiledNetwork network, List<int[]> scopes, List<Integer> varsToEliminate) {
+        return compute(network, scopes, varsToEliminate, EliminationHeuristic.MIN_WEIGHT);
+    }
+}
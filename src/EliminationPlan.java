@@ -0,0 +1,202 @@
+import java.util.*;
+
+/**
+ * Variable elimination worked out on scopes alone. Which CPTs take part, their scopes once
+ * the evidence is applied and the elimination order depend only on which variables are
+ * queried and observed, not on the observed values, so a plan is compiled once per query
+ * signature into a fixed schedule: factor slots 0..k-1 hold the restricted CPTs, and step s
+ * multiplies its input slots, smallest first, sums out its variable and fills slot k + s.
+ * The same dry run estimates the largest table and the operation counts.
+ */
+final class EliminationPlan {
+    final int[] factorVars;     // CPT in each initial slot, name order
+    final int[][] steps;        // input slots of every step, in multiplication order
+    final int[] stepVars;       // variable summed out by every step
+    final boolean[] stepKept;   // false when a step leaves a constant, which is dropped
+    final int[] finalSlots;     // factors joined over the query variables at the end, in order
+    final CostEstimate cost;
+
+    private EliminationPlan(int[] factorVars, int[][] steps, int[] stepVars, boolean[] stepKept, int[] finalSlots,
+                            CostEstimate cost) {
+        this.factorVars = factorVars;
+        this.steps = steps;
+        this.stepVars = stepVars;
+        this.stepKept = stepKept;
+        this.finalSlots = finalSlots;
+        this.cost = cost;
+    }
+
+    // A null heuristic eliminates in ABC order
+    static EliminationPlan of(CompiledNetwork network, int[] queryVars, int[] evidenceVars, EliminationHeuristic heuristic) {
+        boolean[] requisite = BayesBall.requisiteVariables(network, queryVars, evidenceVars);
+        boolean[] observed = new boolean[network.size()];
+        for (int var : evidenceVars) {
+            observed[var] = true;
+        }
+
+        // Scope of every requisite CPT once the evidence is applied, skipping constant ones
+        List<int[]> scopes = new ArrayList<>();
+        int[] factorVars = new int[network.size()];
+        int factorCount = 0;
+        for (int var : network.getNameOrder()) {
+            if (!requisite[var]) {
+                continue;
+            }
+            int[] family = network.getFamily(var);
+            int[] scope = new int[family.length];
+            int size = 0;
+            for (int member : family) {
+                if (!observed[member]) {
+                    scope[size++] = member;
+                }
+            }
+            scope = Arrays.copyOf(scope, size);
+            if (entries(network, scope) > 1) {
+                scopes.add(scope);
+                factorVars[factorCount++] = var;
+            }
+        }
+
+        List<Integer> varsToEliminate = new ArrayList<>();
+        for (int var : network.getNameOrder()) {
+            if (requisite[var] && !contains(queryVars, var) && !observed[var]) {
+                varsToEliminate.add(var);
+            }
+        }
+        List<Integer> order = heuristic == null ? varsToEliminate
+                : EliminationOrder.compute(network, scopes, varsToEliminate, heuristic);
+
+        return schedule(network, Arrays.copyOf(factorVars, factorCount), scopes, order);
+    }
+
+    /**
+     * Replays the elimination on scopes, keeping the factors in the order the numeric run
+     * would and counting as the kernels do: each step multiplies its factors smallest first,
+     * one multiplication per entry of every partial product, then adds up every entry of the
+     * full product. The last sum-out's additions depend on the values, so they are an upper
+     * bound, see {@link CostEstimate}. The peak is the full product of a step even though the
+     * fused kernel never stores it, since sparse operands go pairwise.
+     */
+    private static EliminationPlan schedule(CompiledNetwork network, int[] factorVars, List<int[]> initialScopes,
+                                            List<Integer> order) {
+        long peak = 0;
+        long additions = 0;
+        long multiplications = 0;
+        int width = 0;
+
+        List<int[]> scopes = new ArrayList<>(initialScopes);   // by slot
+        List<Integer> live = new ArrayList<>();
+        for (int slot = 0; slot < scopes.size(); slot++) {
+            live.add(slot);
+            peak = Math.max(peak, entries(network, scopes.get(slot)));
+        }
+
+        List<int[]> steps = new ArrayList<>();
+        int[] stepVars = new int[order.size()];
+        boolean[] stepKept = new boolean[order.size()];
+        for (int var : order) {
+            List<Integer> relevant = new ArrayList<>();
+            List<Integer> remaining = new ArrayList<>();
+            for (int slot : live) {
+                (contains(scopes.get(slot), var) ? relevant : remaining).add(slot);
+            }
+            if (relevant.isEmpty()) {
+                continue;
+            }
+            relevant.sort(Comparator.comparingLong(slot -> entries(network, scopes.get(slot))));
+
+            int[] union = scopes.get(relevant.get(0));
+            for (int i = 1; i < relevant.size(); i++) {
+                union = union(union, scopes.get(relevant.get(i)));
+                multiplications = saturatedAdd(multiplications, entries(network, union));
+            }
+            long size = entries(network, union);
+            peak = Math.max(peak, size);
+            width = Math.max(width, union.length - 1);
+
+            // Summing out the last variable adds the entries to each other, one fewer addition. The
+            // kernel skips leading zero cells too, which scopes cannot tell, so this is a bound
+            additions = saturatedAdd(additions, union.length == 1 ? size - 1 : size);
+
+            int[] summedOut = without(union, var);
+            int step = steps.size();
+            stepVars[step] = var;
+            steps.add(toArray(relevant));
+            scopes.add(summedOut);
+            if (entries(network, summedOut) > 1) {
+                stepKept[step] = true;
+                remaining.add(scopes.size() - 1);
+            }
+            live = remaining;
+        }
+
+        // Joining what is left over the query variables, then normalizing it
+        if (!live.isEmpty()) {
+            int[] product = scopes.get(live.get(0));
+            for (int i = 1; i < live.size(); i++) {
+                product = union(product, scopes.get(live.get(i)));
+                multiplications = saturatedAdd(multiplications, entries(network, product));
+            }
+            long size = entries(network, product);
+            peak = Math.max(peak, size);
+            additions = saturatedAdd(additions, size);
+        }
+
+        int stepCount = steps.size();
+        return new EliminationPlan(factorVars, steps.toArray(new int[stepCount][]), Arrays.copyOf(stepVars, stepCount),
+                Arrays.copyOf(stepKept, stepCount), toArray(live), new CostEstimate(peak, additions, multiplications, width));
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    static long entries(CompiledNetwork network, int[] scope) {
+        long size = 1;
+        for (int var : scope) {
+            size = CostEstimate.saturatedMultiply(size, network.getCardinality(var));
+        }
+        return size;
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    // a's variables followed by the ones only b has, as Factor.multiply orders them
+    private static int[] union(int[] a, int[] b) {
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        int size = a.length;
+        for (int var : b) {
+            if (!contains(a, var)) {
+                result[size++] = var;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private static int[] without(int[] scope, int var) {
+        int[] result = new int[scope.length - 1];
+        int size = 0;
+        for (int member : scope) {
+            if (member != var) {
+                result[size++] = member;
+            }
+        }
+        return result;
+    }
+
+    private static boolean contains(int[] vars, int var) {
+        for (int v : vars) {
+            if (v == var) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,234 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Depth-first enumeration of a joint distribution over a topological order of CPTs.
+ * Depth d holds the product of the first d CPTs, so every prefix product is computed once
+ * and shared by all the branches below it; a zero prefix skips its whole subtree. Memory is
+ * one assignment array and one partial product per depth.
+ *
+ * Query variables are enumerated in the same pass as the hidden ones: every full joint term
+ * is added to the sum of its query assignment, so one walk gives P(query, evidence) for all
+ * of them.
+ */
+final class Enumeration {
+    // Below this many joint terms a query is summed on the calling thread
+    private static final long PARALLEL_THRESHOLD = 1 << 16;
+    // Prefix tasks a large query is split into: enough for uneven subtrees (zero pruning) to
+    // balance on any core count, and fixed so the grouping of partial sums, and with it the
+    // result, never depends on the pool
+    private static final int PREFIXES = 256;
+
+    private final CompiledNetwork network;
+    private final int[] order;          // requisite variables, parents before children
+    private final boolean[] free;       // indexed by variable id: hidden or queried, so enumerated
+    private final int[] queryVars;
+    private final int[] queryStride;    // indexed by variable id, 0 for variables not queried
+    private final int size;             // number of query assignments
+    private final boolean rescale;      // keep partial products away from underflow
+    private final long[] leavesBelow;   // leavesBelow[d]: free assignments of order[d..]
+
+    Enumeration(CompiledNetwork network, int[] order, boolean[] hidden, int[] queryVars, Arithmetic arithmetic) {
+        this.network = network;
+        this.order = order;
+        this.queryVars = queryVars;
+        this.rescale = arithmetic == Arithmetic.SCALED;
+
+        // The last query variable varies fastest in the index of a query assignment
+        this.queryStride = new int[network.size()];
+        int stride = 1;
+        for (int i = queryVars.length - 1; i >= 0; i--) {
+            queryStride[queryVars[i]] = stride;
+            stride *= network.getCardinality(queryVars[i]);
+        }
+        this.size = stride;
+        this.free = hidden.clone();
+        for (int var : queryVars) {
+            free[var] = true;
+        }
+
+        this.leavesBelow = new long[order.length + 1];
+        leavesBelow[order.length] = 1;
+        for (int d = order.length - 1; d >= 0; d--) {
+            int var = order[d];
+            leavesBelow[d] = leavesBelow[d + 1] * (free[var] ? network.getCardinality(var) : 1);
+        }
+    }
+
+    // Number of full joint terms summed below the given depth, over every query assignment
+    long terms(int fromDepth) {
+        return leavesBelow[fromDepth];
+    }
+
+    /**
+     * Sums over every value of the free variables at depth fromDepth and below, given that
+     * order[0..fromDepth) are already set in assignment and their CPT product is prefix, one
+     * sum per query assignment. Free entries of assignment at those depths are overwritten.
+     */
+    ScaledDouble[] sum(int[] assignment, int fromDepth, ScaledDouble prefix) {
+        ScaledDouble[] result = new ScaledDouble[size];
+        if (prefix.mantissa == 0) {
+            Arrays.fill(result, ScaledDouble.ZERO);
+            return result;
+        }
+        int depth = order.length;
+        double[] partial = new double[depth + 1];
+        int[] exponents = new int[depth + 1];
+        partial[fromDepth] = prefix.mantissa;
+        exponents[fromDepth] = prefix.exponent;
+
+        double[] sums = new double[size];
+        int[] sumExponents = new int[size];
+        Arrays.fill(sumExponents, prefix.exponent);
+        int d = fromDepth;
+        while (true) {
+            // Descend, giving every free variable its first value
+            while (d < depth) {
+                if (free[order[d]]) {
+                    assignment[order[d]] = 0;
+                }
+                if (!extend(d, assignment, partial, exponents)) {
+                    break;
+                }
+                d++;
+            }
+            if (d == depth) {
+                int index = 0;
+                for (int var : queryVars) {
+                    index += assignment[var] * queryStride[var];
+                }
+                double term = partial[depth];
+                int exponent = exponents[depth];
+                double sum = sums[index];
+                int sumExponent = sumExponents[index];
+                if (exponent == sumExponent) {
+                    sums[index] = sum + term;
+                } else if (sum == 0 || ScaledDouble.magnitude(term, exponent) > ScaledDouble.magnitude(sum, sumExponent)) {
+                    // Add at the scale of the larger value so only negligible bits are lost
+                    sums[index] = Math.scalb(sum, sumExponent - exponent) + term;
+                    sumExponents[index] = exponent;
+                } else {
+                    sums[index] = sum + Math.scalb(term, exponent - sumExponent);
+                }
+                d--;
+            }
+
+            // Move to the next sibling, backtracking over observed and exhausted variables
+            while (true) {
+                while (d >= fromDepth && !(free[order[d]] && assignment[order[d]] + 1 < network.getCardinality(order[d]))) {
+                    d--;
+                }
+                if (d < fromDepth) {
+                    for (int i = 0; i < size; i++) {
+                        result[i] = new ScaledDouble(sums[i], sumExponents[i]);
+                    }
+                    return result;
+                }
+                assignment[order[d]]++;
+                if (extend(d, assignment, partial, exponents)) {
+                    d++;
+                    break;
+                }
+            }
+        }
+    }
+
+    // Multiplies in the CPT at depth d, returns false when the product is zero
+    private boolean extend(int d, int[] assignment, double[] partial, int[] exponents) {
+        double product = partial[d] * network.getProbability(order[d], assignment);
+        int exponent = exponents[d];
+        if (rescale && product < ScaledDouble.RESCALE_BELOW && product != 0) {
+            int shift = ScaledDouble.shiftFor(product);
+            product = Math.scalb(product, shift);
+            exponent -= shift;
+        }
+        partial[d + 1] = product;
+        exponents[d + 1] = exponent;
+        return product != 0;
+    }
+
+    /**
+     * Same sums as {@link #sum} from depth 0, split over the pool when the query is big enough.
+     * The first free variables in topological order are fixed to every combination of their
+     * values and each prefix is summed as its own task. Partial sums are added along a fixed
+     * binary tree over the prefix range, so the result does not depend on scheduling or on
+     * the size of the pool; only how the tasks are run does.
+     */
+    ScaledDouble[] parallelSum(int[] assignment, ForkJoinPool pool) {
+        int splitDepth = splitDepth();
+        if (splitDepth == 0) {
+            return sum(assignment, 0, ScaledDouble.ONE);
+        }
+        return pool.invoke(new PrefixRange(assignment, splitDepth, 0, terms(0) / terms(splitDepth)));
+    }
+
+    // Shallowest depth with at least PREFIXES free prefixes, 0 to stay sequential
+    private int splitDepth() {
+        if (terms(0) < PARALLEL_THRESHOLD) {
+            return 0;
+        }
+        for (int d = 1; d <= order.length; d++) {
+            if (free[order[d - 1]] && terms(0) / terms(d) >= PREFIXES) {
+                return d;
+            }
+        }
+        return 0;
+    }
+
+    private final class PrefixRange extends RecursiveTask<ScaledDouble[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] assignment;     // observed values, shared read-only between tasks
+        private final int splitDepth;
+        private final long from;
+        private final long to;
+
+        PrefixRange(int[] assignment, int splitDepth, long from, long to) {
+            this.assignment = assignment;
+            this.splitDepth = splitDepth;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected ScaledDouble[] compute() {
+            if (to - from == 1) {
+                return sumPrefix(from);
+            }
+            long middle = (from + to) >>> 1;
+            PrefixRange left = new PrefixRange(assignment, splitDepth, from, middle);
+            left.fork();
+            ScaledDouble[] right = new PrefixRange(assignment, splitDepth, middle, to).compute();
+            ScaledDouble[] sums = left.join();
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] = sums[i].add(right[i]);
+            }
+            return sums;
+        }
+
+        private ScaledDouble[] sumPrefix(long prefix) {
+            int[] local = assignment.clone();
+
+            // Decode the prefix number, the last free variable before splitDepth varies fastest
+            for (int d = splitDepth - 1; d >= 0; d--) {
+                int var = order[d];
+                if (free[var]) {
+                    int card = network.getCardinality(var);
+                    local[var] = (int) (prefix % card);
+                    prefix /= card;
+                }
+            }
+
+            double[] partial = new double[splitDepth + 1];
+            int[] exponents = new int[splitDepth + 1];
+            partial[0] = 1.0;
+            for (int d = 0; d < splitDepth; d++) {
+                if (!extend(d, local, partial, exponents)) {
+                    return sum(local, splitDepth, ScaledDouble.ZERO);
+                }
+            }
+            return sum(local, splitDepth, new ScaledDouble(partial[splitDepth], exponents[splitDepth]));
+        }
+    }
+}
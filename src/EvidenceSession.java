@@ -0,0 +1,57 @@
+/**
+ * Evidence that changes one variable at a time, for interactive use. The session keeps a
+ * calibrated junction tree of its network, and observing, changing or retracting a variable
+ * only redoes the messages that depend on it, so an update costs about the depth of the tree
+ * rather than the size of the network. Posteriors are read from the calibrated cliques; the
+ * counts of each one include the updates made since the previous one.
+ * A session is not thread-safe; open one per user.
+ */
+public final class EvidenceSession {
+    private final CompiledNetwork network;
+    private final JunctionTree.Incremental calibration;
+    private final int[] pendingCounts = new int[2];   // [additions, multiplications] since the last posterior
+
+    EvidenceSession(CompiledNetwork network, JunctionTree tree) {
+        this.network = network;
+        this.calibration = tree.incremental(pendingCounts);
+    }
+
+    // Observes the variable at the given outcome, replacing any earlier observation of it
+    public void observe(String variable, String outcome) {
+        int var = network.getId(variable);
+        calibration.update(var, network.getOutcomeIndex(var, outcome), pendingCounts);
+    }
+
+    public void retract(String variable) {
+        calibration.update(network.getId(variable), -1, pendingCounts);
+    }
+
+    public void retractAll() {
+        for (int var = 0; var < network.size(); var++) {
+            calibration.update(var, -1, pendingCounts);
+        }
+    }
+
+    // Observed outcome of the variable, or null when it is not observed
+    public String getObservation(String variable) {
+        int var = network.getId(variable);
+        int value = calibration.getValue(var);
+        return value == -1 ? null : network.getOutcome(var, value);
+    }
+
+    // Posterior of one or more unobserved variables given the current evidence
+    public Posterior posterior(String... variables) {
+        if (variables.length == 0) {
+            throw new IllegalArgumentException("No query variables");
+        }
+        int[] queryVars = new int[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            queryVars[i] = network.getId(variables[i]);
+        }
+        int[] opCounts = {pendingCounts[0], pendingCounts[1]};
+        double[] table = calibration.table(queryVars, opCounts);
+        pendingCounts[0] = 0;
+        pendingCounts[1] = 0;
+        return new Posterior(network, queryVars, table, opCounts[0], opCounts[1]);
+    }
+}
@@ -2,39 +2,77 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
-import java.text.DecimalFormat;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class Ex1 {
+    private static final String USAGE =
+            "Usage: java Ex1 [--threads N | --virtual] [--in-flight N] [--heuristic NAME] [--arithmetic NAME]\n"
+            + "                [--samples N] [--ci-half-width W] [--seed S] [--metrics FILE]\n"
+            + "                [--memory-budget SIZE] [--over-budget reject|fallback]\n"
+            + "                [--serve | --port N] [--network FILE]...";
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    // The options of USAGE:
+    //   no option         run the queries one after another on the main thread
+    //   --threads N       spread the queries over a fixed pool of N worker threads
+    //   --virtual         run every query on its own virtual thread (Java 21+)
+    //   --in-flight N     with a pool, at most N queries are read ahead of the output
+    //   --heuristic NAME  elimination heuristic for algorithm 3: min-degree, min-fill,
+    //                     weighted-min-fill or min-weight (default)
+    //   --arithmetic NAME plain (default) or scaled, which keeps deep networks with long
+    //                     evidence vectors from underflowing to 0
+    //   --samples N       sample budget of algorithms 5 (likelihood weighting) and 6 (Gibbs)
+    //   --ci-half-width W stop sampling once the 95% confidence interval is within +-W
+    //   --seed S          seed of the samplers, fixed by default so reruns agree
+    //   --metrics FILE    time every phase of every query and write the histograms to FILE at
+    //                     the end, as JSON if it ends in .json and Prometheus text otherwise
+    //   --memory-budget SIZE  largest table one query may build, in bytes with an optional
+    //                     k, m or g suffix; algorithms 2 to 4 and 7 are checked before they run
+    //   --over-budget P   reject (default) answers a query over the budget with an "ERROR message"
+    //                     line and goes on to the next one, fallback answers
+    //                     it by enumeration, or by likelihood weighting when that is too slow
+    //   --serve           answer queries from stdin on stdout instead of input.txt, until stdin ends
+    //   --port N          answer queries from any number of connections to the loopback port N
+    //                     (0 picks a free one, printed on stderr) until the process is stopped
+    //   --network FILE    with --serve or --port, load FILE up front; the first one answers
+    //                     queries sent before any network line
+    //
+    // In server mode the input.txt format is spoken line by line: a line naming an XML file
+    // switches to that network, loaded once and kept for every client, and each query gets
+    // one line back in order, "ERROR message" when it fails. Queries may be pipelined.
+    //
+    // Sampled answers get their standard error as a fourth field: probability,additions,multiplications,error
+    //
+    // Algorithm 7 answers from an arithmetic circuit compiled once per network. Compile it ahead
+    // of time with "java CircuitFile network.xml" and the network.bac it writes is loaded instead.
+    //
+    // input.txt is streamed: queries are read lazily and written as soon as they are done,
+    // so memory stays constant no matter how many queries the file holds.
     public static void main(String[] args) {
         try {
-            // Read input file
-            BufferedReader reader = new BufferedReader(new FileReader("input.txt"));
-            String xmlFileName = reader.readLine();
-            List<String> queries = new ArrayList<>();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (!line.trim().isEmpty()) {
-                    queries.add(line);
+            Options options = Options.parse(args);
+            MetricsRegistry metrics = options.metricsFile == null ? null : new MetricsRegistry();
+            ExecutorService executor = options.createExecutor();
+            QueryServer server = new QueryServer(fileName -> loadNetwork(fileName, options, metrics), options.heuristic,
+                    executor, options.maxInFlight());
+            try {
+                if (options.serve || options.port >= 0) {
+                    serve(server, options, metrics);
+                } else {
+                    answerInputFile(server);
+                }
+            } finally {
+                if (executor != null) {
+                    executor.shutdownNow();
                 }
             }
-            reader.close();
-
-            // Parse XML and build the Bayesian network
-            BayesianNetwork network = new BayesianNetwork(xmlFileName);
-
-            // Process queries and write output
-            BufferedWriter writer = new BufferedWriter(new FileWriter("output.txt"));
-            for (String query : queries) {
-                Result result = processQuery(query, network);
-                DecimalFormat df = new DecimalFormat("0.00000");
-                writer.write(df.format(result.probability) + "," +
-                        result.additions + "," +
-                        result.multiplications);
-                writer.newLine();
+            if (metrics != null) {
+                writeMetrics(metrics, options.metricsFile);
             }
-            writer.close();
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -42,29 +80,204 @@ public class Ex1 {
 
     }
 
-    private static Result processQuery(String query, BayesianNetwork network) {
-        if (query.contains("|")) {
-            // Split on the last comma to correctly handle conditional queries
-            int lastCommaIndex = query.lastIndexOf(",");
+    private static void answerInputFile(QueryServer server) throws Exception {
+        // The first line names the network, every following non-blank line is a query
+        try (BufferedReader reader = new BufferedReader(new FileReader("input.txt"), IO_BUFFER_SIZE)) {
+            String xmlFileName = reader.readLine();
+
+            // Parse XML and build the Bayesian network
+            BayesianNetwork network = server.network(xmlFileName);
+
+            // Process queries and write output. The network is read-only once built, so workers share it.
+            // Only a bounded window of queries is in flight and the oldest one is written first, which keeps input order.
+            // Closing the writer even when a query fails keeps every answer written before it
+            try (ResultWriter writer = new ResultWriter(new BufferedWriter(new FileWriter("output.txt"), IO_BUFFER_SIZE))) {
+                server.answer(reader, writer, network, true);
+            }
+        }
+    }
+
+    // Networks named with --network are loaded up front, the first one answers streams that name none
+    private static void serve(QueryServer server, Options options, MetricsRegistry metrics) throws Exception {
+        BayesianNetwork network = null;
+        for (String fileName : options.networks) {
+            BayesianNetwork loaded = server.network(fileName);
+            network = network == null ? loaded : network;
+        }
+        if (options.serve) {
+            server.serveStandardStreams(network);
+        } else {
+            if (metrics != null) {
+                // The socket server only stops when the process is, so the metrics are written on the way out
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        writeMetrics(metrics, options.metricsFile);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }));
+            }
+            server.listen(options.port, network);
+        }
+    }
+
+    private static BayesianNetwork loadNetwork(String fileName, Options options, MetricsRegistry metrics) throws Exception {
+        BayesianNetwork network = new BayesianNetwork(fileName, BayesianNetwork.DEFAULT_CACHE_SIZE, options.arithmetic,
+                options.samplingSettings());
+        network.setInstrumentation(metrics);
+        if (options.memoryBudget > 0) {
+            network.setMemoryBudget(new MemoryBudget(options.memoryBudget, options.overBudget));
+        }
+        return network;
+    }
+
+    private static void writeMetrics(MetricsRegistry metrics, String fileName) throws IOException {
+        try (FileWriter out = new FileWriter(fileName)) {
+            out.write(fileName.endsWith(".json") ? metrics.toJson() : metrics.toPrometheus());
+        }
+    }
+
+    private static final class Options {
+        private int threads;            // 0 runs sequentially on the main thread
+        private boolean virtualThreads;
+        private int inFlight;           // 0 picks a default from the pool size
+        private EliminationHeuristic heuristic = InferenceEngine.DEFAULT_HEURISTIC;
+        private Arithmetic arithmetic = InferenceEngine.DEFAULT_ARITHMETIC;
+        private long samples = SamplingSettings.DEFAULT_MAX_SAMPLES;
+        private double ciHalfWidth;     // 0 always draws the whole budget
+        private long seed = SamplingSettings.DEFAULT_SEED;
+        private String metricsFile;     // null when nothing is measured
+        private long memoryBudget;      // 0 is unlimited
+        private MemoryBudget.Policy overBudget = MemoryBudget.Policy.REJECT;
+        private boolean serve;
+        private int port = -1;          // -1 when not listening
+        private final List<String> networks = new ArrayList<>();
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads":
+                        options.threads = Integer.parseInt(valueOf(args, ++i));
+                        if (options.threads < 1) {
+                            throw new IllegalArgumentException("Thread count must be positive: " + options.threads);
+                        }
+                        break;
+                    case "--virtual":
+                        options.virtualThreads = true;
+                        break;
+                    case "--in-flight":
+                        options.inFlight = Integer.parseInt(valueOf(args, ++i));
+                        if (options.inFlight < 1) {
+                            throw new IllegalArgumentException("In-flight limit must be positive: " + options.inFlight);
+                        }
+                        break;
+                    case "--heuristic":
+                        options.heuristic = EliminationHeuristic.fromLabel(valueOf(args, ++i));
+                        break;
+                    case "--arithmetic":
+                        options.arithmetic = Arithmetic.fromLabel(valueOf(args, ++i));
+                        break;
+                    case "--samples":
+                        options.samples = Long.parseLong(valueOf(args, ++i));
+                        break;
+                    case "--ci-half-width":
+                        options.ciHalfWidth = Double.parseDouble(valueOf(args, ++i));
+                        break;
+                    case "--seed":
+                        options.seed = Long.parseLong(valueOf(args, ++i));
+                        break;
+                    case "--metrics":
+                        options.metricsFile = valueOf(args, ++i);
+                        break;
+                    case "--memory-budget":
+                        options.memoryBudget = parseSize(valueOf(args, ++i));
+                        break;
+                    case "--over-budget":
+                        options.overBudget = MemoryBudget.Policy.fromLabel(valueOf(args, ++i));
+                        break;
+                    case "--serve":
+                        options.serve = true;
+                        break;
+                    case "--port":
+                        options.port = Integer.parseInt(valueOf(args, ++i));
+                        if (options.port < 0 || options.port > 65535) {
+                            throw new IllegalArgumentException("Invalid port: " + options.port);
+                        }
+                        break;
+                    case "--network":
+                        options.networks.add(valueOf(args, ++i));
+                        break;
+                    default:
+                        throw new IllegalArgumentException(USAGE);
+                }
+            }
+            if (options.virtualThreads && options.threads > 0
+                    || options.serve && options.port >= 0
+                    || !options.networks.isEmpty() && !options.serve && options.port < 0) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            options.samplingSettings();     // rejects a bad budget or interval before any work is done
+            return options;
+        }
+
+        SamplingSettings samplingSettings() {
+            return new SamplingSettings(samples, ciHalfWidth, seed);
+        }
 
-            if (lastCommaIndex == -1) {
-                throw new IllegalArgumentException("Invalid query format: " + query);
+        // Bytes, optionally with a k, m or g suffix (powers of 1024)
+        private static long parseSize(String value) {
+            String digits = value.trim().toLowerCase(Locale.ROOT);
+            int shift = 0;
+            if (!digits.isEmpty()) {
+                switch (digits.charAt(digits.length() - 1)) {
+                    case 'k': shift = 10; break;
+                    case 'm': shift = 20; break;
+                    case 'g': shift = 30; break;
+                    default: break;
+                }
+            }
+            if (shift > 0) {
+                digits = digits.substring(0, digits.length() - 1);
+            }
+            long size = Long.parseLong(digits);
+            if (size < 1 || size > Long.MAX_VALUE >> shift) {
+                throw new IllegalArgumentException("Invalid memory budget: " + value);
             }
+            return size << shift;
+        }
 
-            // Extract parts correctly
-            String conditionalQuery = query.substring(0, lastCommaIndex);
-            String algorithmString = query.substring(lastCommaIndex + 1).trim();
+        private static String valueOf(String[] args, int i) {
+            if (i >= args.length) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            return args[i];
+        }
 
+        int maxInFlight() {
+            if (inFlight > 0) {
+                return inFlight;
+            }
+            // Enough queued work to keep every worker busy while the writer drains the head
+            int workers = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+            return virtualThreads ? 256 * workers : 4 * workers;
+        }
 
+        ExecutorService createExecutor() {
+            if (threads > 0) {
+                return Executors.newFixedThreadPool(threads);
+            }
+            if (!virtualThreads) {
+                return null;
+            }
             try {
-                int algorithm = Integer.parseInt(algorithmString);
-                return network.conditionalProbability(conditionalQuery, algorithm);
-            } catch (NumberFormatException e) {
-                throw new IllegalArgumentException("Algorithm must be a valid integer: " + algorithmString);
+                // Looked up reflectively so the project still compiles on Java 17
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                int processors = Runtime.getRuntime().availableProcessors();
+                System.err.println("Virtual threads are not available on this JVM, using " + processors + " platform threads");
+                return Executors.newFixedThreadPool(processors);
             }
-        } else {
-            // Joint probability query
-            return network.jointProbability(query);
         }
     }
-}
\ No newline at end of file
+}
@@ -1,269 +1,362 @@
 import java.util.*;
 
-class Factor {
-    private List<String> variables;
-    private double[] table;
-    private Map<String, Variable> variableObjects;
-    private List<Integer> domainSizes;
-
-    public Factor(CPT cpt, Map<String, Variable> variableObjects) {
-        this.variables = new ArrayList<>();
-        this.variableObjects = variableObjects;
-
-        // Add its parents
-        variables.addAll(cpt.getParents());
-
-        // Add the variable
-        variables.add(cpt.getVariableName());
-
-        // Copy the table
-        this.table = new double[cpt.getTable().length];
-        System.arraycopy(cpt.getTable(), 0, this.table, 0, cpt.getTable().length);
-
-        // Calculate domain sizes
-        this.domainSizes = new ArrayList<>();
-        for (String var : variables) {
-            domainSizes.add(variableObjects.get(var).getValues().size());
+/**
+ * A table over a scope of discrete variables. Mostly-zero tables, such as deterministic CPTs
+ * or anything restricted by evidence on them, are kept as a {@link SparseFactor}, the rest as
+ * a {@link DenseFactor}. Every operation picks the representation of its result from how many
+ * of its entries are non-zero, and sparse operands let restrict, multiply and sumOut skip
+ * their zero regions. Values and op counts do not depend on the representation.
+ */
+abstract class Factor {
+    // A table is stored sparse when at most 1 / SPARSE_DIVISOR of its entries are non-zero
+    private static final int SPARSE_DIVISOR = 4;
+    // Below this size the dense table is always the smaller one
+    private static final int MIN_SPARSE_SIZE = 16;
+    // Largest table a Java array can hold
+    static final int MAX_TABLE_SIZE = Integer.MAX_VALUE - 8;
+
+    // Scope as variable ids, cardinalities and strides, first variable slowest-changing
+    final int[] varIds;
+    final int[] cards;
+    final int[] strides;
+    final int size;
+    final int exponent;      // every entry stands for value * 2^exponent, see rescale()
+
+    Factor(int[] varIds, int[] cards, int exponent) {
+        this.varIds = varIds;
+        this.cards = cards;
+        this.exponent = exponent;
+        this.size = tableSize(cards, cards.length);
+        this.strides = new int[cards.length];
+        int stride = 1;
+        for (int i = cards.length - 1; i >= 0; i--) {
+            strides[i] = stride;
+            stride *= cards[i];
         }
     }
 
-    public Factor(List<String> variables, double[] table, Map<String, Variable> variableObjects) {
-        this.variables = new ArrayList<>(variables);
-        this.table = table;
-        this.variableObjects = variableObjects;
-
-        // Calculate domain sizes
-        this.domainSizes = new ArrayList<>();
-        for (String var : variables) {
-            domainSizes.add(variableObjects.get(var).getValues().size());
+    // Entries of a table over the first count cardinalities, refusing sizes an int index cannot reach
+    static int tableSize(int[] cards, int count) {
+        long size = 1;
+        for (int i = 0; i < count; i++) {
+            size *= cards[i];
+            if (size > MAX_TABLE_SIZE) {
+                throw new IllegalStateException("A factor over " + count + " variables would have more than "
+                        + MAX_TABLE_SIZE + " entries");
+            }
         }
+        return (int) size;
     }
 
-    public List<String> getVariables() {
-        return variables;
+    // The CPT of var as a factor over its family; dense CPTs share the network's table
+    static Factor of(CompiledNetwork network, int var) {
+        int[] family = network.getFamily(var);
+        int[] cards = new int[family.length];
+        for (int i = 0; i < family.length; i++) {
+            cards[i] = network.getCardinality(family[i]);
+        }
+        double[] table = network.getTable(var);
+        if (isSparse(table.length, network.getNonZeroCount(var))) {
+            return SparseFactor.fromDense(family, cards, table, table.length, network.getNonZeroCount(var), 0);
+        }
+        return new DenseFactor(family, cards, table, 0);
     }
 
-    public int getSize() {
-        return table.length;
+    static boolean isSparse(int size, int nonZeros) {
+        return size >= MIN_SPARSE_SIZE && nonZeros <= size / SPARSE_DIVISOR;
     }
 
-    public double getProbability(Map<String, String> assignment) {
-        int index = 0;
-        int multiplier = 1;
-
-        // Loop through the variables in the correct order
-        for (int i = variables.size() - 1; i >= 0; i--) {
-            String varName = variables.get(i);
-            String value = assignment.get(varName);
-            Variable var = variableObjects.get(varName);
-            index += var.getIndex(value) * multiplier;
-            multiplier *= var.getValues().size();
-        }
+    public int[] getVariables() {
+        return varIds;
+    }
 
-        return table[index];
+    public boolean contains(int varId) {
+        return positionOf(varId) != -1;
     }
 
-    public Factor restrict(String variable, String value) {
-        if (!variables.contains(variable)) {
-            return this;
-        }
+    // Number of entries of the full table, whatever the representation
+    public int getSize() {
+        return size;
+    }
 
-        // Find all variables except the restricted one
-        List<String> newVars = new ArrayList<>(variables);
-        int varIndex = newVars.indexOf(variable);
-        newVars.remove(varIndex);
+    // Entry of the full table; the actual value is getValue(index) * 2^getExponent()
+    public abstract double getValue(int index);
 
-        // Calculate size of new table
-        int newSize = 1;
-        for (String var : newVars) {
-            newSize *= variableObjects.get(var).getValues().size();
-        }
+    public int getExponent() {
+        return exponent;
+    }
 
-        double[] newTable = new double[newSize];
+    // Stored entries: every cell for a dense factor, only the non-zero ones for a sparse factor
+    abstract int entryCount();
 
-        // Fill in the new table
-        for (int i = 0; i < newTable.length; i++) {
-            // Convert i to an assignment for the new variables
-            Map<String, String> assignment = indexToAssignment(i, newVars);
+    abstract int entryIndex(int entry);
 
-            // Add the restricted variable
-            assignment.put(variable, value);
+    abstract double entryValue(int entry);
 
-            // Get probability from original table
-            newTable[i] = getProbability(assignment);
-        }
+    // Memory held by the table itself
+    abstract long tableBytes();
 
-        return new Factor(newVars, newTable, variableObjects);
+    // Copy of a per-variable array without the entry at scope position pos
+    static int[] without(int[] array, int pos) {
+        int[] result = new int[array.length - 1];
+        System.arraycopy(array, 0, result, 0, pos);
+        System.arraycopy(array, pos + 1, result, pos, array.length - 1 - pos);
+        return result;
     }
 
-    public Factor multiply(Factor other, int[] opCounts) {
-        // Determine union of variables from both factors
-        Set<String> allVars = new HashSet<>(this.variables);
-        allVars.addAll(other.variables);
-        List<String> newVars = new ArrayList<>(allVars);
-        Collections.reverse(newVars);
-
-        // Find variables that exist in both factors (needs proper alignment)
-        List<String> commonVars = new ArrayList<>(this.variables);
-        commonVars.retainAll(other.variables);
-
-        // Calculate size of new probability table
-        int newSize = 1;
-        for (String var : newVars) {
-            newSize *= variableObjects.get(var).getValues().size();
+    int positionOf(int varId) {
+        for (int i = 0; i < varIds.length; i++) {
+            if (varIds[i] == varId) {
+                return i;
+            }
         }
+        return -1;
+    }
 
-        double[] newTable = new double[newSize];
-
-        // Iterate through all possible assignments of the new variables
-        for (int i = 0; i < newSize; i++) {
-            Map<String, String> assignment = indexToAssignment(i, newVars);
+    // Value at a full-width assignment array indexed by variable id
+    public double getProbability(int[] assignment) {
+        int index = 0;
+        for (int i = 0; i < varIds.length; i++) {
+            index += assignment[varIds[i]] * strides[i];
+        }
+        return getValue(index);
+    }
 
-            double prob1 = this.getProbability(filterAssignment(assignment, this.variables));
-            double prob2 = other.getProbability(filterAssignment(assignment, other.variables));
+    // Full table with the scope reordered to vars, which must list exactly its variables; last one fastest
+    double[] valuesIn(int[] vars) {
+        if (vars.length != varIds.length) {
+            throw new IllegalStateException("Factor over " + varIds.length + " variables read as " + vars.length);
+        }
+        int[] varStrides = new int[vars.length];
+        int[] varCards = new int[vars.length];
+        for (int d = 0; d < vars.length; d++) {
+            int pos = positionOf(vars[d]);
+            if (pos == -1) {
+                throw new IllegalStateException("Factor does not mention variable " + vars[d]);
+            }
+            varStrides[d] = strides[pos];
+            varCards[d] = cards[pos];
+        }
 
-            // Multiply probabilities
-            newTable[i] = prob1 * prob2;
-            opCounts[1]++; // Count one multiplication per entry
+        double[] values = new double[size];
+        int[] counter = new int[vars.length];
+        int index = 0;
+        for (int i = 0; i < size; i++) {
+            values[i] = getValue(index);
+            for (int d = vars.length - 1; d >= 0; d--) {
+                index += varStrides[d];
+                if (++counter[d] < varCards[d]) {
+                    break;
+                }
+                index -= varStrides[d] * varCards[d];
+                counter[d] = 0;
+            }
         }
-        return new Factor(newVars, newTable, variableObjects);
+        return values;
     }
 
-    private Map<String, String> filterAssignment(Map<String, String> fullAssignment, List<String> factorVars) {
-        Map<String, String> filtered = new HashMap<>();
-        for (String var : factorVars) {
-            filtered.put(var, fullAssignment.get(var));
-        }
-        return filtered;
+    public Factor restrict(int variable, int valueIndex) {
+        return restrict(variable, valueIndex, null);
     }
 
-    private Map<String, String> indexToAssignment(int index, List<String> vars) {
-        Map<String, String> assignment = new HashMap<>();
-        int remaining = index;
+    // Each operation can take its new table from an arena; a null arena allocates from the heap
+    abstract Factor restrict(int variable, int valueIndex, FactorArena arena);
 
-        // Traverse in reverse order so the last variable is the fastest-changing
-        List<String> reversedVars = new ArrayList<>(vars);
-        Collections.reverse(reversedVars);
+    public Factor multiply(Factor other, int[] opCounts) {
+        return multiply(other, opCounts, null);
+    }
+
+    Factor multiply(Factor other, int[] opCounts, FactorArena arena) {
+        // Union of both scopes: this factor's variables, then the ones only the other has
+        int n = varIds.length;
+        for (int id : other.varIds) {
+            if (positionOf(id) == -1) {
+                n++;
+            }
+        }
+        int[] newIds = Arrays.copyOf(varIds, n);
+        int[] newCards = Arrays.copyOf(cards, n);
+        for (int i = 0, k = varIds.length; i < other.varIds.length; i++) {
+            if (positionOf(other.varIds[i]) == -1) {
+                newIds[k] = other.varIds[i];
+                newCards[k] = other.cards[i];
+                k++;
+            }
+        }
 
-        for (String var : reversedVars) {
-            Variable varObj = variableObjects.get(var);
-            int numValues = varObj.getValues().size();
-            int valueIndex = remaining % numValues;
-            assignment.put(var, varObj.getValues().get(valueIndex));
-            remaining /= numValues;
+        // Stride of every output variable inside the other operand (0 when it lacks it)
+        int[] strideB = new int[n];
+        int newSize = tableSize(newCards, n);
+        for (int d = 0; d < n; d++) {
+            int posB = other.positionOf(newIds[d]);
+            strideB[d] = posB == -1 ? 0 : other.strides[posB];
         }
+        opCounts[1] += newSize; // Count one multiplication per entry
 
-        return assignment;
+        int newExponent = exponent + other.exponent;
+        if (this instanceof DenseFactor && other instanceof DenseFactor) {
+            return ((DenseFactor) this).multiplyDense((DenseFactor) other, newIds, newCards, strideB, newSize, newExponent,
+                    arena);
+        }
+        return SparseFactor.multiply(this, other, newIds, newCards, strideB, newSize, newExponent, arena);
     }
 
-    // Generate all consistent assignments based on the shared variables
-    private List<Map<String, String>> generateConsistentAssignments(Map<String, String> assignment, Factor other) {
-        List<Map<String, String>> assignments = new ArrayList<>();
-        assignments.add(new HashMap<>(assignment)); // Start with the current assignment
-
-        // Check for variables missing in either factor
-        for (String var : other.variables) {
-            if (!assignment.containsKey(var)) {
-                List<Map<String, String>> expandedAssignments = new ArrayList<>();
-
-                // Expand all current assignments with possible values of the missing variable
-                for (Map<String, String> currentAssignment : assignments) {
-                    for (String value : variableObjects.get(var).getValues()) {
-                        Map<String, String> newAssignment = new HashMap<>(currentAssignment);
-                        newAssignment.put(var, value);
-                        expandedAssignments.add(newAssignment);
-                    }
+    /**
+     * Sums variable out of the product of factors without building the product table. The
+     * counts, values and scope are those of multiplying the factors left to right and then
+     * calling sumOut, so callers can switch freely. With rescale the inputs are shifted to a
+     * largest entry near 1 first, as a pairwise product would have been rescaled. Products
+     * involving a sparse factor go pairwise, the sparse kernels already skip zero regions.
+     */
+    static Factor productSumOut(List<Factor> factors, int variable, boolean rescale, int[] opCounts, FactorArena arena) {
+        boolean allDense = true;
+        for (Factor factor : factors) {
+            allDense &= factor instanceof DenseFactor;
+        }
+        if (factors.size() == 1 || !allDense) {
+            Factor product = factors.get(0);
+            for (int i = 1; i < factors.size(); i++) {
+                product = product.multiply(factors.get(i), opCounts, arena);
+                if (rescale) {
+                    product = product.rescale(arena);
                 }
+            }
+            return product.sumOut(variable, opCounts, arena);
+        }
 
-                assignments = expandedAssignments;
+        // Scope of the pairwise product, counting one multiplication per entry of every step
+        int n = 0;
+        int[] unionIds = new int[0];
+        int[] unionCards = new int[0];
+        for (int i = 0; i < factors.size(); i++) {
+            Factor factor = factors.get(i);
+            for (int d = 0; d < factor.varIds.length; d++) {
+                if (!containsId(unionIds, n, factor.varIds[d])) {
+                    if (n == unionIds.length) {
+                        unionIds = Arrays.copyOf(unionIds, 2 * n + 4);
+                        unionCards = Arrays.copyOf(unionCards, 2 * n + 4);
+                    }
+                    unionIds[n] = factor.varIds[d];
+                    unionCards[n] = factor.cards[d];
+                    n++;
+                }
+            }
+            if (i > 0) {
+                opCounts[1] += tableSize(unionCards, n);
             }
         }
 
-        return assignments;
+        DenseFactor[] dense = new DenseFactor[factors.size()];
+        for (int i = 0; i < dense.length; i++) {
+            dense[i] = (DenseFactor) (rescale ? factors.get(i).unitScaled(arena) : factors.get(i));
+        }
+        return DenseFactor.productSumOut(dense, Arrays.copyOf(unionIds, n), Arrays.copyOf(unionCards, n), variable, opCounts,
+                arena);
     }
 
-
-    public Factor sumOut(String variable, int[] opCounts) {
-        if (!variables.contains(variable)) {
-            return this;
+    private static boolean containsId(int[] ids, int count, int id) {
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == id) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        // Find all variables except the summed out one
-        List<String> newVars = new ArrayList<>(variables);
-        int varIndex = newVars.indexOf(variable);
-        newVars.remove(varIndex);
+    public Factor sumOut(int variable, int[] opCounts) {
+        return sumOut(variable, opCounts, null);
+    }
 
-        // If no variables left, return a factor with a single value that sums to 1
-        if (newVars.isEmpty()) {
-            double sum = 0;
-            for (double value : table) {
-                sum += value;
-                if (sum > value) {
-                    opCounts[0]++; // Count addition
-                }
-            }
-            return new Factor(newVars, new double[]{sum}, variableObjects);
+    Factor sumOut(int variable, int[] opCounts, FactorArena arena) {
+        int pos = positionOf(variable);
+        if (pos == -1) {
+            return this;
         }
 
-        // Calculate size of new table
-        int newSize = 1;
-        for (String var : newVars) {
-            newSize *= variableObjects.get(var).getValues().size();
+        // If no variables left, return a factor with a single value that sums to 1
+        if (varIds.length == 1) {
+            double[] scalar = FactorArena.table(arena, 1);
+            scalar[0] = sumAll(opCounts);
+            return new DenseFactor(new int[0], new int[0], scalar, exponent);
         }
+        opCounts[0] += size; // Count one addition per source entry
+        return sumOut(pos, arena);
+    }
 
-        double[] newTable = new double[newSize];
+    // Sums out the variable at the given scope position, which is not the only one
+    abstract Factor sumOut(int pos, FactorArena arena);
 
-        // Calculate strides for efficient indexing
-        int[] oldStrides = new int[variables.size()];
-        int stride = 1;
-        for (int i = variables.size() - 1; i >= 0; i--) {
-            oldStrides[i] = stride;
-            stride *= variableObjects.get(variables.get(i)).getValues().size();
+    /**
+     * Sum of every entry, counting an addition for each cell after which the running sum
+     * exceeds the cell itself, exactly as a left-to-right pass over the full table would.
+     * Zero cells before the first non-zero one are not counted and all those after it are.
+     */
+    private double sumAll(int[] opCounts) {
+        double sum = 0;
+        int previous = -1;
+        for (int entry = 0; entry < entryCount(); entry++) {
+            double value = entryValue(entry);
+            if (value == 0) {
+                continue;
+            }
+            int index = entryIndex(entry);
+            if (previous != -1) {
+                opCounts[0] += index - previous - 1;
+            }
+            sum += value;
+            if (sum > value) {
+                opCounts[0]++; // Count addition
+            }
+            previous = index;
         }
-
-        int[] newStrides = new int[newVars.size()];
-        stride = 1;
-        for (int i = newVars.size() - 1; i >= 0; i--) {
-            newStrides[i] = stride;
-            stride *= variableObjects.get(newVars.get(i)).getValues().size();
+        if (previous != -1) {
+            opCounts[0] += size - 1 - previous;
         }
+        return sum;
+    }
 
-        // Initialize the new table with zeros
-        Arrays.fill(newTable, 0.0);
-
-        // For each assignment to the variables
-        for (int oldIndex = 0; oldIndex < table.length; oldIndex++) {
-            // Calculate the indices
-            int[] assignment = new int[variables.size()];
-            int tempIndex = oldIndex;
-            for (int i = 0; i < variables.size(); i++) {
-                assignment[i] = tempIndex / oldStrides[i];
-                tempIndex %= oldStrides[i];
-            }
+    /**
+     * Shifts the table by a power of two into the exponent once its largest entry drops below
+     * ScaledDouble.RESCALE_BELOW, so long chains of products cannot underflow. Powers of two
+     * are exact, and factors that never get that small are returned unchanged.
+     */
+    public Factor rescale() {
+        return rescale(null);
+    }
 
-            // Calculate the new index
-            int newIndex = 0;
-            for (int i = 0, j = 0; i < variables.size(); i++) {
-                if (i != varIndex) {
-                    newIndex += assignment[i] * newStrides[j];
-                    j++;
-                }
-            }
+    Factor rescale(FactorArena arena) {
+        double max = 0;
+        for (int entry = 0; entry < entryCount(); entry++) {
+            max = Math.max(max, entryValue(entry));
+        }
+        if (max == 0 || max >= ScaledDouble.RESCALE_BELOW) {
+            return this;
+        }
+        int shift = ScaledDouble.shiftFor(max);
+        return map(1.0, shift, exponent - shift, arena);
+    }
 
-            // Add the value to the new table
-            newTable[newIndex] += table[oldIndex];
-            opCounts[0]++; // Count addition
+    // Same factor shifted by a power of two so that its largest entry lies in [1, 2)
+    Factor unitScaled(FactorArena arena) {
+        double max = 0;
+        for (int entry = 0; entry < entryCount(); entry++) {
+            max = Math.max(max, entryValue(entry));
         }
+        int shift = max == 0 ? 0 : ScaledDouble.shiftFor(max);
+        return shift == 0 ? this : map(1.0, shift, exponent - shift, arena);
+    }
 
-        return new Factor(newVars, newTable, variableObjects);
+    // The exponent cancels out, so the normalized factor holds plain probabilities again
+    public Factor normalize() {
+        return normalize(null);
     }
 
-    public void normalize() {
+    Factor normalize(FactorArena arena) {
         double sum = 0;
 
         // First, calculate the sum of all entries
-        for (double value : table) {
-            sum += value;
+        for (int entry = 0; entry < entryCount(); entry++) {
+            sum += entryValue(entry);
         }
 
         // Avoid division by zero
@@ -271,68 +364,38 @@ class Factor {
             throw new ArithmeticException("Cannot normalize factor: total probability is zero.");
         }
 
-        // Then divide each entry by the sum to normalize
-        for (int i = 0; i < table.length; i++) {
-            table[i] /= sum;
-        }
+        // Then divide each entry by the sum into a new table
+        return map(sum, 0, 0, arena);
     }
 
-    public void printFactorTable() {
-        List<String> variables = new ArrayList<>(this.getVariables()); // Assuming getVariables returns a list of variable names
-        List<List<String>> possibleAssignments = generateAllAssignments(variables); // Assuming generateAllAssignments generates all possible variable assignments
+    // Same scope and representation, every entry divided by divisor and scaled by 2^shift
+    abstract Factor map(double divisor, int shift, int newExponent, FactorArena arena);
 
+    public void printFactorTable(CompiledNetwork network) {
         // Print table header
         StringBuilder header = new StringBuilder();
-        for (String var : variables) {
-            header.append(var).append("\t");
+        for (int var : varIds) {
+            header.append(network.getName(var)).append("\t");
         }
         header.append("Probability");
         System.out.println(header.toString());
 
-        // Print table rows
-        for (List<String> assignment : possibleAssignments) {
-            Map<String, String> assignmentMap = new HashMap<>();
-            for (int i = 0; i < variables.size(); i++) {
-                assignmentMap.put(variables.get(i), assignment.get(i));
-            }
-
-            // Get the probability for the current assignment
-            double probability = this.getProbability(assignmentMap);
-
-            // Print the row
+        // Print table rows, walking the assignments in table order
+        int[] counter = new int[varIds.length];
+        for (int i = 0; i < size; i++) {
             StringBuilder row = new StringBuilder();
-            for (String value : assignment) {
-                row.append(value).append("\t");
+            for (int d = 0; d < varIds.length; d++) {
+                row.append(network.getOutcome(varIds[d], counter[d])).append("\t");
             }
-            row.append(probability);
+            row.append(getValue(i));
             System.out.println(row.toString());
-        }
-    }
-
-    // Helper function to generate all possible assignments for a list of variables
-    private List<List<String>> generateAllAssignments(List<String> variables) {
-        List<List<String>> assignments = new ArrayList<>();
-        int n = variables.size();
-        List<String> values = Arrays.asList("T", "F"); // Assuming the values are "T" and "F"
 
-        // Generate all possible assignments
-        generateAssignmentsRecursive(assignments, new ArrayList<>(), variables, values, 0);
-        return assignments;
-    }
-
-    // Recursive helper function for generating assignments
-    private void generateAssignmentsRecursive(List<List<String>> assignments, List<String> current, List<String> variables, List<String> values, int index) {
-        if (index == variables.size()) {
-            assignments.add(new ArrayList<>(current));
-            return;
-        }
-
-        for (String value : values) {
-            current.add(value);
-            generateAssignmentsRecursive(assignments, current, variables, values, index + 1);
-            current.remove(current.size() - 1);
+            for (int d = varIds.length - 1; d >= 0; d--) {
+                if (++counter[d] < cards[d]) {
+                    break;
+                }
+                counter[d] = 0;
+            }
         }
     }
-
-
-}
\ No newline at end of file
+}
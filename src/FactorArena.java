@@ -0,0 +1,83 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reusable tables for the intermediate factors of one query. Tables are handed out by
+ * power-of-two size class, so a table may be longer than the factor using it, and all of
+ * them return to their free lists when the arena is closed. Factors built on an arena are
+ * only valid until then: whatever outlives the query must be copied out first.
+ *
+ * Arenas are borrowed from a shared pool per query rather than kept per thread, so virtual
+ * threads reuse them too. In steady state a query allocates no tables at all.
+ */
+final class FactorArena implements AutoCloseable {
+    // Tables above 2^MAX_POOLED_CLASS entries (8 MB) come from the heap and are never kept;
+    // filling them costs far more than allocating them
+    private static final int MAX_POOLED_CLASS = 20;
+    // Entries an idle arena keeps in its free lists (32 MB)
+    private static final long MAX_RETAINED_ENTRIES = 1L << 22;
+    // Idle arenas kept in the pool
+    private static final int MAX_POOLED_ARENAS = 4 * Runtime.getRuntime().availableProcessors();
+
+    private static final ConcurrentLinkedQueue<FactorArena> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private final ArrayList<ArrayDeque<double[]>> free = new ArrayList<>(MAX_POOLED_CLASS + 1);
+    private final ArrayList<double[]> inUse = new ArrayList<>();
+    private long retainedEntries;       // in the free lists
+
+    private FactorArena() {
+        for (int sizeClass = 0; sizeClass <= MAX_POOLED_CLASS; sizeClass++) {
+            free.add(new ArrayDeque<>());
+        }
+    }
+
+    static FactorArena acquire() {
+        FactorArena arena = POOL.poll();
+        if (arena == null) {
+            return new FactorArena();
+        }
+        POOLED.decrementAndGet();
+        return arena;
+    }
+
+    // A table of at least size entries, from the arena or from the heap when it is null
+    static double[] table(FactorArena arena, int size) {
+        return arena == null ? new double[size] : arena.table(size);
+    }
+
+    // Contents are left over from earlier factors; kernels overwrite the first size entries
+    double[] table(int size) {
+        int sizeClass = size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+        if (sizeClass > MAX_POOLED_CLASS) {
+            return new double[size];
+        }
+        double[] table = free.get(sizeClass).poll();
+        if (table == null) {
+            table = new double[1 << sizeClass];
+        } else {
+            retainedEntries -= table.length;
+        }
+        inUse.add(table);
+        return table;
+    }
+
+    // Every table handed out goes back to its free list and the arena back to the pool
+    @Override
+    public void close() {
+        for (double[] table : inUse) {
+            if (retainedEntries + table.length <= MAX_RETAINED_ENTRIES) {
+                free.get(Integer.numberOfTrailingZeros(table.length)).push(table);
+                retainedEntries += table.length;
+            }
+        }
+        inUse.clear();
+        if (POOLED.incrementAndGet() <= MAX_POOLED_ARENAS) {
+            POOL.offer(this);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Algorithm 6. Every stream is its own Markov chain over the unobserved requisite variables,
+ * started from a forward sample consistent with the evidence. A sweep resamples each of them
+ * in topological order from its distribution given its Markov blanket: its own CPT row times
+ * the rows of its requisite children. The chain records P(query value | blanket) at each sweep
+ * rather than the sampled value (Rao-Blackwellization), and the standard error comes from the
+ * spread of the chain means, which unlike the per-sweep spread is not fooled by autocorrelation.
+ * Deterministic CPTs can make the chain reducible; use likelihood weighting for those.
+ *
+ * Counts per sweep: for each resampled variable, one multiplication per value and requisite
+ * child, and card - 1 additions to normalize its distribution.
+ */
+final class GibbsSampler extends Sampler<GibbsSampler.Chain> {
+    // Burn-in sweeps per chain, at most this and a tenth of the chain's share of the budget
+    private static final long MAX_BURN_IN = 1000;
+    // Forward samples tried for a starting state with non-zero probability
+    private static final int MAX_START_ATTEMPTS = 10_000;
+
+    private final int[] hidden;             // resampled variables, topological order
+    private final int[][] blanketChildren;  // requisite children of each hidden variable
+    private final int[][] strideInChild;    // stride of the hidden variable inside each child's CPT
+    private final int maxCard;
+    private final int maxChildren;
+    private final long burnIn;
+    private final long additionsPerSweep;
+    private final long multiplicationsPerSweep;
+
+    GibbsSampler(CompiledNetwork network, Query query, SamplingSettings settings) {
+        super(network, query, settings);
+        boolean[] requisite = new boolean[network.size()];
+        for (int var : order) {
+            requisite[var] = true;
+        }
+
+        int[] vars = new int[order.length];
+        int count = 0;
+        for (int var : order) {
+            if (!query.isEvidence(var)) {
+                vars[count++] = var;
+            }
+        }
+        this.hidden = Arrays.copyOf(vars, count);
+
+        this.blanketChildren = new int[count][];
+        this.strideInChild = new int[count][];
+        int cards = 0;
+        int children = 0;
+        long additions = 0;
+        long multiplications = 0;
+        for (int h = 0; h < count; h++) {
+            int var = hidden[h];
+            int[] kept = new int[network.getChildren(var).length];
+            int[] strides = new int[kept.length];
+            int k = 0;
+            for (int child : network.getChildren(var)) {
+                if (requisite[child]) {
+                    int[] family = network.getFamily(child);
+                    int pos = 0;
+                    while (family[pos] != var) {
+                        pos++;
+                    }
+                    kept[k] = child;
+                    strides[k] = network.getCptStrides(child)[pos];
+                    k++;
+                }
+            }
+            blanketChildren[h] = Arrays.copyOf(kept, k);
+            strideInChild[h] = Arrays.copyOf(strides, k);
+
+            int card = network.getCardinality(var);
+            cards = Math.max(cards, card);
+            children = Math.max(children, k);
+            additions += card - 1;
+            multiplications += (long) card * k;
+        }
+        this.maxCard = cards;
+        this.maxChildren = children;
+        this.burnIn = Math.min(MAX_BURN_IN, settings.getMaxSamples() / STREAMS / 10);
+        this.additionsPerSweep = additions;
+        this.multiplicationsPerSweep = multiplications;
+    }
+
+    @Override
+    Chain newStream(SplittableRandom random) {
+        return new Chain(random);
+    }
+
+    @Override
+    double estimate(List<Chain> chains) {
+        double sum = 0;
+        long samples = 0;
+        for (Chain chain : chains) {
+            sum += chain.sum;
+            samples += chain.samples;
+        }
+        return sum / samples;
+    }
+
+    @Override
+    double standardError(List<Chain> chains, double estimate) {
+        int count = 0;
+        double squares = 0;
+        for (Chain chain : chains) {
+            if (chain.samples > 0) {
+                double deviation = chain.sum / chain.samples - estimate;
+                squares += deviation * deviation;
+                count++;
+            }
+        }
+        return count < 2 ? Double.POSITIVE_INFINITY : Math.sqrt(squares / ((double) count * (count - 1)));
+    }
+
+    @Override
+    long additions(long draws) {
+        return draws * additionsPerSweep;
+    }
+
+    @Override
+    long multiplications(long draws) {
+        return draws * multiplicationsPerSweep;
+    }
+
+    final class Chain extends Sampler.Stream {
+        private final int[] assignment;
+        private final double[] distribution;
+        private final int[] childBases;
+        private double sum;             // P(query value | blanket) over the recorded sweeps
+        private boolean started;
+
+        Chain(SplittableRandom random) {
+            super(random);
+            this.assignment = new int[network.size()];
+            this.distribution = new double[maxCard];
+            this.childBases = new int[maxChildren];
+        }
+
+        @Override
+        void draw(long count) {
+            if (!started) {
+                start();
+                for (long s = 0; s < burnIn; s++) {
+                    sweep(false);
+                }
+                draws += burnIn;
+                started = true;
+            }
+            for (long s = 0; s < count; s++) {
+                sweep(true);
+            }
+            samples += count;
+            draws += count;
+        }
+
+        // Forward sample with the evidence clamped, retried until the evidence is possible under it
+        private void start() {
+            Arrays.fill(assignment, -1);
+            for (int i = 0; i < query.evidenceVars.length; i++) {
+                assignment[query.evidenceVars[i]] = query.evidenceValues[i];
+            }
+            for (int attempt = 0; attempt < MAX_START_ATTEMPTS; attempt++) {
+                boolean possible = true;
+                for (int var : order) {
+                    double[] table = network.getTable(var);
+                    int base = rowBase(network, var, assignment);
+                    if (query.isEvidence(var)) {
+                        possible &= table[base + assignment[var]] != 0;
+                    } else {
+                        assignment[var] = sampleRow(table, base, network.getCardinality(var), random.nextDouble());
+                        possible &= table[base + assignment[var]] != 0;
+                    }
+                }
+                if (possible) {
+                    return;
+                }
+            }
+            throw new IllegalStateException("Gibbs sampling found no starting state consistent with the evidence");
+        }
+
+        private void sweep(boolean record) {
+            for (int h = 0; h < hidden.length; h++) {
+                int var = hidden[h];
+                int card = network.getCardinality(var);
+                int[] children = blanketChildren[h];
+                int[] strides = strideInChild[h];
+
+                // CPT rows of var and of its children, with var itself at value 0
+                double[] table = network.getTable(var);
+                int base = rowBase(network, var, assignment);
+                for (int c = 0; c < children.length; c++) {
+                    int child = children[c];
+                    int[] family = network.getFamily(child);
+                    int[] childStrides = network.getCptStrides(child);
+                    int index = 0;
+                    for (int i = 0; i < family.length; i++) {
+                        index += assignment[family[i]] * childStrides[i];
+                    }
+                    childBases[c] = index - assignment[var] * strides[c];
+                }
+
+                double total = 0;
+                for (int value = 0; value < card; value++) {
+                    double p = table[base + value];
+                    for (int c = 0; c < children.length; c++) {
+                        p *= network.getTable(children[c])[childBases[c] + value * strides[c]];
+                    }
+                    distribution[value] = p;
+                    total += p;
+                }
+
+                // An all-zero blanket cannot happen from a consistent state, keep the value if it does
+                if (total > 0) {
+                    assignment[var] = sampleRow(distribution, 0, card, random.nextDouble() * total);
+                }
+                if (record && var == query.queryVar) {
+                    sum += total > 0 ? distribution[query.queryValue] / total
+                            : (assignment[var] == query.queryValue ? 1 : 0);
+                }
+            }
+        }
+    }
+}
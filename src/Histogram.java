@@ -0,0 +1,68 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram over fixed, increasing bucket bounds, Prometheus style: bucket i counts
+ * the values at most bounds[i], and one overflow bucket takes the rest. Safe to record from
+ * several threads.
+ */
+final class Histogram {
+    private final double[] bounds;
+    private final AtomicLongArray counts;   // per bucket, not cumulative; the last one is +Inf
+    private final DoubleAdder sum = new DoubleAdder();
+    private final LongAdder count = new LongAdder();
+
+    Histogram(double[] bounds) {
+        this.bounds = bounds;
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    // count bounds growing by factor from first: first, first * factor, ...
+    static double[] exponentialBounds(double first, double factor, int count) {
+        double[] bounds = new double[count];
+        double bound = first;
+        for (int i = 0; i < count; i++) {
+            bounds[i] = bound;
+            bound *= factor;
+        }
+        return bounds;
+    }
+
+    void record(double value) {
+        int low = 0;
+        int high = bounds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (value <= bounds[middle]) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        counts.incrementAndGet(low);
+        sum.add(value);
+        count.increment();
+    }
+
+    int bucketCount() {
+        return bounds.length + 1;
+    }
+
+    // Upper bound of bucket i, infinite for the overflow bucket
+    double bound(int i) {
+        return i < bounds.length ? bounds[i] : Double.POSITIVE_INFINITY;
+    }
+
+    long bucket(int i) {
+        return counts.get(i);
+    }
+
+    double sum() {
+        return sum.sum();
+    }
+
+    long count() {
+        return count.sum();
+    }
+}
@@ -1,365 +1,699 @@
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class InferenceEngine {
-    private final NetworkStructure network;
-    private final Map<String, CPT> cpts;
+    private final CompiledNetwork network;
     private final QueryProcessor queryProcessor;
+    private final QueryCache cache;     // null when caching is disabled
+    private final Arithmetic arithmetic;
+    private final SamplingSettings sampling;    // algorithms 5 and 6
+    private final Factor[] cptFactors;          // CPT of every variable as a factor, by id; never modified
+    private final PlanCache plans = new PlanCache(PLAN_CACHE_SIZE);
+    private volatile JunctionTree junctionTree;  // built on the first algorithm 4 query
+    private volatile ArithmeticCircuit circuit;  // loaded with the network or compiled on the first algorithm 7 query
+    private volatile Instrumentation instrumentation;   // null when nothing is measured
+    private volatile MemoryBudget budget = MemoryBudget.UNLIMITED;
+
+    // Cache slot used for joint queries, which have no algorithm number
+    static final int JOINT_ALGORITHM = 0;
+    // Highest algorithm number; per-algorithm metrics cover JOINT_ALGORITHM to this
+    static final int MAX_ALGORITHM = 7;
+    // Over budget, enumeration stands in for the table-based algorithms up to this many joint terms
+    private static final long FALLBACK_MAX_TERMS = 1L << 30;
+    // Query signatures whose elimination plans are kept
+    private static final int PLAN_CACHE_SIZE = 1024;
+
+    public static final EliminationHeuristic DEFAULT_HEURISTIC = EliminationHeuristic.MIN_WEIGHT;
+    public static final Arithmetic DEFAULT_ARITHMETIC = Arithmetic.PLAIN;
+
+    public InferenceEngine(CompiledNetwork network, QueryProcessor queryProcessor) {
+        this(network, queryProcessor, null, DEFAULT_ARITHMETIC);
+    }
+
+    public InferenceEngine(CompiledNetwork network, QueryProcessor queryProcessor, Arithmetic arithmetic) {
+        this(network, queryProcessor, null, arithmetic);
+    }
+
+    InferenceEngine(CompiledNetwork network, QueryProcessor queryProcessor, QueryCache cache, Arithmetic arithmetic) {
+        this(network, queryProcessor, cache, arithmetic, SamplingSettings.DEFAULT);
+    }
 
-    public InferenceEngine(NetworkStructure networkStructure,
-                           Map<String, CPT> cpts,
-                           QueryProcessor queryProcessor) {
-        this.network = networkStructure;
-        this.cpts = cpts;
+    InferenceEngine(CompiledNetwork network, QueryProcessor queryProcessor, QueryCache cache, Arithmetic arithmetic,
+                    SamplingSettings sampling) {
+        this.network = network;
         this.queryProcessor = queryProcessor;
+        this.cache = cache;
+        this.arithmetic = arithmetic;
+        this.sampling = sampling;
+        this.cptFactors = new Factor[network.size()];
+        for (int var = 0; var < cptFactors.length; var++) {
+            cptFactors[var] = Factor.of(network, var);
+        }
+    }
+
+    public Arithmetic getArithmetic() {
+        return arithmetic;
+    }
+
+    public SamplingSettings getSamplingSettings() {
+        return sampling;
+    }
+
+    // Receives the measurements of every query from now on, null stops measuring
+    public void setInstrumentation(Instrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
+    // Cached results may have been answered under the old budget, so they are dropped
+    public void setMemoryBudget(MemoryBudget budget) {
+        this.budget = budget;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return budget;
+    }
+
+    // A circuit compiled ahead of time from this network, as read from its .bac file
+    void setCircuit(ArithmeticCircuit circuit) {
+        this.circuit = circuit;
     }
 
     public Result jointProbability(String query) {
-        Map<String, String> assignments = queryProcessor.parseAssignments(query);
+        Instrumentation instrumentation = this.instrumentation;
+        QueryStats stats = instrumentation == null ? null : new QueryStats(JOINT_ALGORITHM);
+        long start = stats == null ? 0 : System.nanoTime();
+
+        Query compiled = queryProcessor.parseJoint(query);
+        Result result = cache == null ? null : cache.get(compiled, JOINT_ALGORITHM, null);
+        if (result == null) {
+            result = jointProbability(compiled);
+            if (cache != null) {
+                cache.put(compiled, JOINT_ALGORITHM, null, result);
+            }
+        } else if (stats != null) {
+            stats.cacheHit();
+        }
+
+        if (stats != null) {
+            stats.finish(start);
+            instrumentation.queryFinished(stats);
+        }
+        return result;
+    }
+
+    Result jointProbability(Query query) {
+        int[] assignment = query.toAssignment(network.size());
         double probability = 1.0;
         int multiplications = 0;
 
-        for (String varName : network.getTopologicalOrder()) {
-            if (!assignments.containsKey(varName)) {
+        for (int var : network.getTopologicalOrder()) {
+            if (assignment[var] == -1) {
                 continue;
             }
 
-            CPT cpt = cpts.get(varName);
-            if (cpt == null) {
-                continue;
-            }
-
-            Map<String, String> parentAssignments = new HashMap<>(cpt.getParents().size());
-            for (String parent : cpt.getParents()) {
-                parentAssignments.put(parent, assignments.get(parent));
-            }
-
-            double prob = cpt.getProbability(assignments.get(varName), parentAssignments);
+            probability *= network.getProbability(var, assignment);
             multiplications++;
-            probability *= prob;
         }
         return new Result(probability, 0, multiplications - 1);
     }
 
     public Result conditionalProbability(String query, int algorithm) {
-        if (queryProcessor.isDirectlyInCPT(query)) {
-            return getFromCPT(query);
+        return conditionalProbability(query, algorithm, DEFAULT_HEURISTIC);
+    }
+
+    // The heuristic only matters for algorithm 3. Algorithms 5 and 6 sample, their results carry a standard error
+    public Result conditionalProbability(String query, int algorithm, EliminationHeuristic heuristic) {
+        Instrumentation instrumentation = this.instrumentation;
+        QueryStats stats = instrumentation == null ? null : new QueryStats(algorithm);
+        long start = stats == null ? 0 : System.nanoTime();
+
+        Query compiled = queryProcessor.parseConditional(query);
+        EliminationHeuristic keyHeuristic = algorithm == 3 ? heuristic : null;
+        Result result = cache == null ? null : cache.get(compiled, algorithm, keyHeuristic);
+        if (result == null) {
+            result = conditionalProbability(compiled, algorithm, heuristic, stats);
+            if (cache != null) {
+                cache.put(compiled, algorithm, keyHeuristic, result);
+            }
+        } else if (stats != null) {
+            stats.cacheHit();
         }
 
-        String[] parts = query.split("\\|");
-        String queryPart = parts[0].substring(2, parts[0].length());
-        String evidencePart = parts.length > 1 ? parts[1].substring(0, parts[1].length() - 1) : "";
+        if (stats != null) {
+            stats.finish(start);
+            instrumentation.queryFinished(stats);
+        }
+        return result;
+    }
 
-        Map<String, String> queryAssignment = queryProcessor.parseAssignments("P(" + queryPart + ")");
-        Map<String, String> evidenceAssignments = queryProcessor.parseAssignments("P(" + evidencePart + ")");
+    // Null stats measure nothing
+    Result conditionalProbability(Query query, int algorithm, EliminationHeuristic heuristic, QueryStats stats) {
+        if (queryProcessor.isDirectlyInCPT(query)) {
+            return getFromCPT(query);
+        }
 
+        int[] queryVars = {query.queryVar};
         switch (algorithm) {
-            case 1: return simpleInference(queryAssignment, evidenceAssignments);
-            case 2: return variableElimination(queryAssignment, evidenceAssignments, false);
-            case 3: return variableElimination(queryAssignment, evidenceAssignments, true);
+            case 1: return simpleInference(query, stats);
+            case 2:
+            case 3: {
+                EliminationPlan plan = plan(queryVars, query, algorithm == 3 ? heuristic : null, stats);
+                if (!budget.allows(plan.cost)) {
+                    return overBudget(query, algorithm, plan.cost, stats);
+                }
+                return variableElimination(query, plan, stats);
+            }
+            case 4: {
+                JunctionTree tree = getJunctionTree();
+                if (!budget.allows(tree.cost())) {
+                    return overBudget(query, algorithm, tree.cost(), stats);
+                }
+                return tree.marginal(query, stats);
+            }
+            case 5: return sample(new LikelihoodWeighting(network, query, sampling), stats);
+            case 6: return sample(new GibbsSampler(network, query, sampling), stats);
+            case 7: {
+                CostEstimate cost = circuitCost(queryVars);
+                if (!budget.allows(cost)) {
+                    return overBudget(query, algorithm, cost, stats);
+                }
+                int[] opCounts = new int[2]; // [additions, multiplications]
+                double[] table = circuitTable(queryVars, query, opCounts, stats);
+                return new Result(table[query.queryValue], opCounts[0], opCounts[1]);
+            }
             default: throw new IllegalArgumentException("Invalid algorithm: " + algorithm);
         }
     }
 
-    private Result simpleInference(Map<String, String> queryAssignment, Map<String, String> evidenceAssignments) {
-        if (queryAssignment.isEmpty()) {
-            throw new IllegalArgumentException("queryAssignment is empty, cannot perform inference");
+    private EliminationPlan plan(int[] queryVars, Query query, EliminationHeuristic heuristic, QueryStats stats) {
+        long start = stats == null ? 0 : System.nanoTime();
+        EliminationPlan plan = plans.get(network, queryVars, query.evidenceVars, heuristic);
+        if (stats != null) {
+            stats.endPhase(Phase.ORDER, start);
         }
+        return plan;
+    }
 
-        String queryVar = queryAssignment.keySet().iterator().next();
-        String queryVal = queryAssignment.get(queryVar);
-
-        // Find all variables
-        Set<String> allVars = new HashSet<>();
-        allVars.addAll(network.getVariables().keySet());
+    // Rejects the query or answers it with enumeration, or with likelihood weighting when that is too slow
+    private Result overBudget(Query query, int algorithm, CostEstimate cost, QueryStats stats) {
+        MemoryBudget budget = this.budget;
+        if (budget.getPolicy() == MemoryBudget.Policy.REJECT) {
+            throw tooLarge(algorithm, cost, budget);
+        }
+        if (enumerationCost(new int[]{query.queryVar}, query).getAdditions() < FALLBACK_MAX_TERMS) {
+            return simpleInference(query, stats);
+        }
+        return sample(new LikelihoodWeighting(network, query, sampling), stats);
+    }
 
-        // Remove query and evidence variables to get hidden variables
-        allVars.removeAll(queryAssignment.keySet());
-        allVars.removeAll(evidenceAssignments.keySet());
-        List<String> hiddenVars = new ArrayList<>(allVars);
+    private static QueryTooLargeException tooLarge(int algorithm, CostEstimate cost, MemoryBudget budget) {
+        return new QueryTooLargeException("Algorithm " + algorithm + " would build a table of " + cost.getPeakTableBytes()
+                + " bytes, over the budget of " + budget.getMaxTableBytes() + " bytes (" + cost + ")", cost);
+    }
 
-        // Generate all possible assignments for hidden variables
-        List<Map<String, String>> hiddenAssignments = queryProcessor.generateAllAssignments(hiddenVars);
+    public CostEstimate cost(String query, int algorithm) {
+        return cost(query, algorithm, DEFAULT_HEURISTIC);
+    }
 
-        double numerator = 0;
-        double denominator = 0;
-        int additions = 0;
-        int multiplications = 0;
+    /**
+     * Estimated cost of a conditional query under algorithm 1 to 4 or 7, without running it.
+     * The junction tree estimate is its largest clique; its operation counts are not estimated.
+     * Until the arithmetic circuit exists, its estimate is that of compiling it, which builds
+     * tables as large as the largest clique.
+     */
+    public CostEstimate cost(String query, int algorithm, EliminationHeuristic heuristic) {
+        Query compiled = queryProcessor.parseConditional(query);
+        if (queryProcessor.isDirectlyInCPT(compiled)) {
+            return new CostEstimate(0, 0, 0, 0);
+        }
+        int[] queryVars = {compiled.queryVar};
+        switch (algorithm) {
+            case 1: return enumerationCost(queryVars, compiled);
+            case 2: return plans.get(network, queryVars, compiled.evidenceVars, null).cost;
+            case 3: return plans.get(network, queryVars, compiled.evidenceVars, heuristic).cost;
+            case 4: return getJunctionTree().cost();
+            case 7: return circuitCost(queryVars);
+            default: throw new IllegalArgumentException("No cost estimate for algorithm: " + algorithm);
+        }
+    }
 
-        // Calculate P(query, evidence)
-        for (Map<String, String> hiddenAssignment : hiddenAssignments) {
-            Map<String, String> fullAssignment = new HashMap<>();
-            fullAssignment.putAll(queryAssignment);
-            fullAssignment.putAll(evidenceAssignments);
-            fullAssignment.putAll(hiddenAssignment);
-
-            Result jointResult = jointProbability("P(" + queryProcessor.assignmentsToString(fullAssignment) + ")");
-            numerator += jointResult.probability;
-            additions++;
-            multiplications += jointResult.multiplications;
-        }
-
-        // Calculate P(evidence)
-        for (String queryValue : network.getVariables().get(queryVar).getValues()) {
-            // Skip if this is the same as our query value - we already computed it
-            if (queryValue.equals(queryVal)) {
-                denominator += numerator;
-//                additions++;
-                continue;
+    // Enumeration keeps no tables; its counts follow the number of full joint terms
+    private CostEstimate enumerationCost(int[] queryVars, Query query) {
+        boolean[] requisite = BayesBall.requisiteVariables(network, queryVars, query.evidenceVars);
+        long terms = 1;
+        int factorCount = 0;
+        for (int var = 0; var < network.size(); var++) {
+            if (requisite[var]) {
+                factorCount++;
+                if (!query.isEvidence(var)) {
+                    terms = CostEstimate.saturatedMultiply(terms, network.getCardinality(var));
+                }
             }
+        }
+        return new CostEstimate(0, terms - 1, CostEstimate.saturatedMultiply(terms, factorCount - 1), 0);
+    }
 
-            Map<String, String> currentQueryAssignment = new HashMap<>();
-            currentQueryAssignment.put(queryVar, queryValue);
+    private static Result sample(Sampler<?> sampler, QueryStats stats) {
+        long start = stats == null ? 0 : System.nanoTime();
+        Result result = sampler.run(ForkJoinPool.commonPool());
+        if (stats != null) {
+            stats.endPhase(Phase.SAMPLE, start);
+        }
+        return result;
+    }
 
-            for (Map<String, String> hiddenAssignment : hiddenAssignments) {
-                Map<String, String> fullAssignment = new HashMap<>();
-                fullAssignment.putAll(currentQueryAssignment);
-                fullAssignment.putAll(evidenceAssignments);
-                fullAssignment.putAll(hiddenAssignment);
+    public Posterior posterior(String query, int algorithm) {
+        return posterior(query, algorithm, DEFAULT_HEURISTIC);
+    }
 
-                Result jointResult = jointProbability("P(" + queryProcessor.assignmentsToString(fullAssignment) + ")");
-                denominator += jointResult.probability;
-                additions++;
-                multiplications += jointResult.multiplications;
+    /**
+     * Full posterior of the listed query variables, P(Q1,Q2,...|E1=e1,...), from one run of
+     * algorithm 1 to 4 or 7.
+     */
+    public Posterior posterior(String query, int algorithm, EliminationHeuristic heuristic) {
+        Instrumentation instrumentation = this.instrumentation;
+        QueryStats stats = instrumentation == null ? null : new QueryStats(algorithm);
+        long start = stats == null ? 0 : System.nanoTime();
+
+        PosteriorQuery compiled = queryProcessor.parsePosterior(query);
+        int[] queryVars = compiled.queryVars;
+        int[] opCounts = new int[2]; // [additions, multiplications]
+        double[] table;
+        Query single = queryVars.length == 1 ? new Query(queryVars[0], 0, compiled.evidence.evidenceVars,
+                compiled.evidence.evidenceValues) : null;
+        if (single != null && queryProcessor.isDirectlyInCPT(single)) {
+            table = getRowFromCPT(single);
+        } else {
+            switch (algorithm) {
+                case 1: table = enumerationTable(queryVars, compiled.evidence, opCounts, stats); break;
+                case 2:
+                case 3: {
+                    EliminationPlan plan = plan(queryVars, compiled.evidence, algorithm == 3 ? heuristic : null, stats);
+                    table = budget.allows(plan.cost) ? eliminationTable(queryVars, compiled.evidence, plan, opCounts, stats)
+                            : overBudgetTable(queryVars, compiled.evidence, algorithm, plan.cost, opCounts, stats);
+                    break;
+                }
+                case 4: {
+                    JunctionTree tree = getJunctionTree();
+                    table = budget.allows(tree.cost()) ? tree.table(queryVars, compiled.evidence, opCounts, stats)
+                            : overBudgetTable(queryVars, compiled.evidence, algorithm, tree.cost(), opCounts, stats);
+                    break;
+                }
+                case 7: {
+                    CostEstimate cost = circuitCost(queryVars);
+                    table = budget.allows(cost) ? circuitTable(queryVars, compiled.evidence, opCounts, stats)
+                            : overBudgetTable(queryVars, compiled.evidence, algorithm, cost, opCounts, stats);
+                    break;
+                }
+                default: throw new IllegalArgumentException("No posterior for algorithm: " + algorithm);
             }
         }
 
-        double probability = numerator / denominator;
-        // Count the division as an addition in normalization
-//        additions++;
-
-        return new Result(probability, additions - 1, multiplications);
+        if (stats != null) {
+            stats.finish(start);
+            instrumentation.queryFinished(stats);
+        }
+        return new Posterior(network, queryVars, table, opCounts[0], opCounts[1]);
     }
 
-    private Result variableElimination(Map<String, String> queryAssignment, Map<String, String> evidenceAssignments, boolean useHeuristic) {
-        String queryVar = queryAssignment.keySet().iterator().next();
+    /**
+     * Posterior of every unobserved variable given evidence written as a joint query, e.g.
+     * P(J=T,M=T), from one upward and one downward pass of the arithmetic circuit. Variables
+     * come in name order; each carries the counts of the shared passes plus its own normalization.
+     * The circuit must fit the memory budget whatever its policy.
+     */
+    public List<Posterior> marginals(String evidence) {
+        Instrumentation instrumentation = this.instrumentation;
+        QueryStats stats = instrumentation == null ? null : new QueryStats(7);
+        long start = stats == null ? 0 : System.nanoTime();
+
+        Query compiled = queryProcessor.parseJoint(evidence);
+        // The peak is the same whichever variable is asked for
+        CostEstimate cost = circuitCost(new int[]{network.getNameOrder()[0]});
+        if (!budget.allows(cost)) {
+            throw tooLarge(7, cost, budget);
+        }
+        int[] opCounts = new int[2]; // [additions, multiplications]
+        double[][] tables;
+        try (FactorArena arena = FactorArena.acquire()) {
+            tables = getCircuit().marginals(compiled, arithmetic == Arithmetic.SCALED, opCounts, stats, arena);
+        }
+        List<Posterior> marginals = new ArrayList<>();
+        for (int var : network.getNameOrder()) {
+            if (tables[var] != null) {
+                marginals.add(new Posterior(network, new int[]{var}, tables[var], opCounts[0], opCounts[1]));
+            }
+        }
 
-        int additions = 0;
-        int multiplications = 0;
-        Map<String, Variable> variables = network.getVariables();
+        if (stats != null) {
+            stats.finish(start);
+            instrumentation.queryFinished(stats);
+        }
+        return marginals;
+    }
 
-        // Creating initial factors from CPTs
-        List<Factor> factors = new ArrayList<>();
-        for (CPT cpt : cpts.values()) {
-            Factor factor = new Factor(cpt, new HashMap<>(cpt.getVariables()));
+    // A session over the junction tree, which must fit the memory budget whatever its policy
+    public EvidenceSession openSession() {
+        JunctionTree tree = getJunctionTree();
+        if (!budget.allows(tree.cost())) {
+            throw tooLarge(4, tree.cost(), budget);
+        }
+        return new EvidenceSession(network, tree);
+    }
 
-            // Restrict factor based on evidence
-            for (Map.Entry<String, String> evidence : evidenceAssignments.entrySet()) {
-                if (factor.getVariables().contains(evidence.getKey())) {
-                    factor = factor.restrict(evidence.getKey(), evidence.getValue());
-                }
-            }
+    public PreparedQuery prepare(String signature, int algorithm) {
+        return prepare(signature, algorithm, DEFAULT_HEURISTIC);
+    }
 
-            // Discard if one-valued (evidence removed all variability)
-            if (factor.getSize() > 1) {
-                factors.add(factor);
+    /**
+     * Compiles a signature such as P(B|J,M), or P(B,E|J,M) for a joint posterior, into a
+     * variable elimination schedule with algorithm 2 or 3. Plans are shared per signature
+     * with each other and with ordinary queries through the plan cache.
+     */
+    public PreparedQuery prepare(String signature, int algorithm, EliminationHeuristic heuristic) {
+        if (algorithm != 2 && algorithm != 3) {
+            throw new IllegalArgumentException("Only variable elimination (algorithm 2 or 3) can be prepared: " + algorithm);
+        }
+        int[][] vars = queryProcessor.parseSignature(signature);
+        int[] queryVars = vars[0];
+
+        // Evidence ids ascending, remembering where each one was written in the signature
+        int count = vars[1].length;
+        int[] evidenceVars = new int[count];
+        int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            int k = i;
+            while (k > 0 && evidenceVars[k - 1] > vars[1][i]) {
+                evidenceVars[k] = evidenceVars[k - 1];
+                positions[k] = positions[k - 1];
+                k--;
             }
+            evidenceVars[k] = vars[1][i];
+            positions[k] = i;
         }
 
-        // Determine hidden variables to eliminate
-        Set<String> varsToEliminate = new HashSet<>(network.getVariables().keySet());
-        varsToEliminate.remove(queryVar);
-        varsToEliminate.removeAll(evidenceAssignments.keySet());
+        EliminationPlan plan = null;
+        if (queryVars.length != 1 || !queryProcessor.isDirectlyInCPT(new Query(queryVars[0], 0, evidenceVars, new int[count]))) {
+            plan = plans.get(network, queryVars, evidenceVars, algorithm == 3 ? heuristic : null);
+        }
+        return new PreparedQuery(this, network, signature, algorithm, queryVars, evidenceVars, positions, plan);
+    }
 
-        // Determine elimination order
-        List<String> eliminationOrder;
-        if (useHeuristic) {
-            eliminationOrder = getHeuristicEliminationOrder(factors, new ArrayList<>(varsToEliminate));
+    // Runs a prepared schedule on the given evidence values; the budget is checked on every run
+    Posterior execute(PreparedQuery prepared, Query evidence) {
+        Instrumentation instrumentation = this.instrumentation;
+        QueryStats stats = instrumentation == null ? null : new QueryStats(prepared.algorithm);
+        long start = stats == null ? 0 : System.nanoTime();
+
+        int[] queryVars = prepared.queryVars;
+        EliminationPlan plan = prepared.plan;
+        int[] opCounts = new int[2]; // [additions, multiplications]
+        double[] table;
+        if (plan == null) {
+            table = getRowFromCPT(new Query(queryVars[0], 0, evidence.evidenceVars, evidence.evidenceValues));
+        } else if (budget.allows(plan.cost)) {
+            table = eliminationTable(queryVars, evidence, plan, opCounts, stats);
+        } else {
+            table = overBudgetTable(queryVars, evidence, prepared.algorithm, plan.cost, opCounts, stats);
         }
-        else {
-            eliminationOrder = new ArrayList<>(varsToEliminate);
-            Collections.sort(eliminationOrder); // ABC order
+
+        if (stats != null) {
+            stats.finish(start);
+            instrumentation.queryFinished(stats);
         }
+        return new Posterior(network, queryVars, table, opCounts[0], opCounts[1]);
+    }
 
+    // Posteriors only fall back to enumeration, sampling estimates a single value
+    private double[] overBudgetTable(int[] queryVars, Query query, int algorithm, CostEstimate cost, int[] opCounts,
+                                     QueryStats stats) {
+        MemoryBudget budget = this.budget;
+        if (budget.getPolicy() == MemoryBudget.Policy.REJECT
+                || enumerationCost(queryVars, query).getAdditions() >= FALLBACK_MAX_TERMS) {
+            throw tooLarge(algorithm, cost, budget);
+        }
+        return enumerationTable(queryVars, query, opCounts, stats);
+    }
 
-        // Eliminate variables
-        for (String var : eliminationOrder) {
-            List<Factor> relevantFactors = new ArrayList<>();
-            List<Factor> irrelevantFactors = new ArrayList<>();
+    // A sampled answer under other settings than the engine's; never cached
+    public Result estimate(String query, int algorithm, SamplingSettings settings) {
+        Instrumentation instrumentation = this.instrumentation;
+        QueryStats stats = instrumentation == null ? null : new QueryStats(algorithm);
+        long start = stats == null ? 0 : System.nanoTime();
+
+        Query compiled = queryProcessor.parseConditional(query);
+        Result result;
+        if (queryProcessor.isDirectlyInCPT(compiled)) {
+            result = getFromCPT(compiled);
+        } else if (algorithm == 5) {
+            result = sample(new LikelihoodWeighting(network, compiled, settings), stats);
+        } else if (algorithm == 6) {
+            result = sample(new GibbsSampler(network, compiled, settings), stats);
+        } else {
+            throw new IllegalArgumentException("Not a sampling algorithm: " + algorithm);
+        }
 
-            // Separate relevant and irrelevant factors
-            for (Factor factor : factors) {
-                if (factor.getVariables().contains(var)) {
-                    relevantFactors.add(factor);
-                }
-                else {
-                    irrelevantFactors.add(factor);
+        if (stats != null) {
+            stats.finish(start);
+            instrumentation.queryFinished(stats);
+        }
+        return result;
+    }
+
+    private JunctionTree getJunctionTree() {
+        JunctionTree tree = junctionTree;
+        if (tree == null) {
+            synchronized (this) {
+                tree = junctionTree;
+                if (tree == null) {
+                    tree = new JunctionTree(network, arithmetic);
+                    junctionTree = tree;
                 }
             }
+        }
+        return tree;
+    }
 
-            // If no relevant factors, skip
-            if (relevantFactors.isEmpty()) {
-                continue;
+    private ArithmeticCircuit getCircuit() {
+        ArithmeticCircuit compiled = circuit;
+        if (compiled == null) {
+            synchronized (this) {
+                compiled = circuit;
+                if (compiled == null) {
+                    compiled = CircuitCompiler.compile(network);
+                    circuit = compiled;
+                }
             }
+        }
+        return compiled;
+    }
 
-            relevantFactors.sort(Comparator.comparingInt(Factor::getSize));
+    // Compiling the circuit builds the same tables as the junction tree's largest clique
+    private CostEstimate circuitCost(int[] queryVars) {
+        ArithmeticCircuit compiled = circuit;
+        return compiled == null ? getJunctionTree().cost() : compiled.cost(queryVars);
+    }
 
-            // Join relevant factors
-            Factor product = relevantFactors.get(0);
-            for (int i = 1; i < relevantFactors.size(); i++) {
-                int[] opCounts = new int[2]; // [additions, multiplications]
-                product = product.multiply(relevantFactors.get(i), opCounts);
-//                additions += opCounts[0];
-                multiplications += opCounts[1];
-            }
+    // P(queryVars | evidence) from the arithmetic circuit, with its per-node arrays from an arena
+    private double[] circuitTable(int[] queryVars, Query query, int[] opCounts, QueryStats stats) {
+        try (FactorArena arena = FactorArena.acquire()) {
+            return getCircuit().table(queryVars, query, arithmetic == Arithmetic.SCALED, opCounts, stats, arena);
+        }
+    }
 
-            // Eliminate (sum out) variable
-            int[] opCountsSum = new int[2];
-            Factor summedOut = product.sumOut(var, opCountsSum);
-            additions += opCountsSum[0];
-//            multiplications += opCountsSum[1];
+    private Result simpleInference(Query query, QueryStats stats) {
+        int[] opCounts = new int[2]; // [additions, multiplications]
+        double[] table = enumerationTable(new int[]{query.queryVar}, query, opCounts, stats);
+        return new Result(table[query.queryValue], opCounts[0], opCounts[1]);
+    }
 
-            // Discard one-valued factors
-            if (summedOut.getSize() > 1) {
-                irrelevantFactors.add(summedOut);
+    // P(queryVars | evidence) by enumeration, one walk summing the joint for every query assignment
+    private double[] enumerationTable(int[] queryVars, Query query, int[] opCounts, QueryStats stats) {
+        long mark = stats == null ? 0 : System.nanoTime();
+        int n = network.size();
+        int[] assignment = new int[n];
+        Arrays.fill(assignment, -1);
+        for (int i = 0; i < query.evidenceVars.length; i++) {
+            assignment[query.evidenceVars[i]] = query.evidenceValues[i];
+        }
+        boolean[] requisite = BayesBall.requisiteVariables(network, queryVars, query.evidenceVars);
+
+        // Only the requisite CPTs take part in the joint, in topological order
+        int[] factorVars = new int[n];
+        int factorCount = 0;
+        for (int var : network.getTopologicalOrder()) {
+            if (requisite[var]) {
+                factorVars[factorCount++] = var;
             }
-
-            factors = irrelevantFactors;
-
         }
+        factorVars = Arrays.copyOf(factorVars, factorCount);
 
-        if (factors.isEmpty()) {
-            throw new RuntimeException("No remaining factors after elimination");
+        // Hidden variables are the requisite ones neither queried nor observed
+        boolean[] hidden = new boolean[n];
+        for (int var : factorVars) {
+            hidden[var] = assignment[var] == -1 && !containsVar(queryVars, var);
+        }
+        Enumeration enumeration = new Enumeration(network, factorVars, hidden, queryVars, arithmetic);
+        if (stats != null) {
+            mark = stats.endPhase(Phase.ORDER, mark);
         }
 
-        // Join all remaining factors
-        Factor finalFactor = factors.get(0);
-        for (int i = 1; i < factors.size(); i++) {
-            int[] opCounts = new int[2];
-            finalFactor = finalFactor.multiply(factors.get(i), opCounts);
-//            additions += opCounts[0];
-            multiplications += opCounts[1];
-        }
-
-        // Normalize
-        String queryVal = queryAssignment.get(queryVar);
-        Map<String, String> assignment = new HashMap<>();
-        assignment.put(queryVar, queryVal);
-
-        double numerator = finalFactor.getProbability(assignment);
-        double denominator = 0;
-
-        for (String value : variables.get(queryVar).getValues()) {
-            Map<String, String> valueAssignment = new HashMap<>();
-            valueAssignment.put(queryVar, value);
-            denominator += finalFactor.getProbability(valueAssignment);
-            if (value != variables.get(queryVar).getValues().get(0)) {
-                additions++;
-            }
+        // P(query, evidence) for every query assignment, the last query variable fastest;
+        // their total is P(evidence)
+        ScaledDouble[] joints = enumeration.parallelSum(assignment, ForkJoinPool.commonPool());
+        int size = joints.length;
+        ScaledDouble denominator = ScaledDouble.ZERO;
+        for (ScaledDouble joint : joints) {
+            denominator = denominator.add(joint);
+        }
+        if (stats != null) {
+            mark = stats.endPhase(Phase.ELIMINATE, mark);
         }
-        finalFactor.normalize();
 
-        double probability = numerator / denominator;
-        additions++;
+        double[] table = new double[size];
+        for (int i = 0; i < size; i++) {
+            table[i] = joints[i].divide(denominator);
+        }
+        if (stats != null) {
+            stats.endPhase(Phase.NORMALIZE, mark);
+        }
 
-        return new Result(probability, additions, multiplications);
+        // Counted as if every full joint term were multiplied out on its own and added to its sum,
+        // which is what the reported numbers have always meant
+        long terms = enumeration.terms(0);
+        opCounts[0] += (int) terms - 1;
+        opCounts[1] += (int) (terms * (factorVars.length - 1));
+        return table;
     }
 
+    private Result variableElimination(Query query, EliminationPlan plan, QueryStats stats) {
+        int[] opCounts = new int[2]; // [additions, multiplications]
+        double[] table = eliminationTable(new int[]{query.queryVar}, query, plan, opCounts, stats);
+        return new Result(table[query.queryValue], opCounts[0], opCounts[1]);
+    }
 
-    private List<String> getHeuristicEliminationOrder(List<Factor> factors, List<String> varsToEliminate) {
-        // Implement min-weight heuristic for variable elimination order
-        List<String> order = new ArrayList<>();
-        Set<String> remainingVars = new HashSet<>(varsToEliminate);
-        Map<String, Variable> variables = network.getVariables();
-
-        while (!remainingVars.isEmpty()) {
-            String bestVar = null;
-            int bestWeight = Integer.MAX_VALUE;
-
-            for (String var : remainingVars) {
-                int weight = computeEliminationWeight(var, factors);
-                if (weight < bestWeight) {
-                    bestWeight = weight;
-                    bestVar = var;
-                }
-            }
-
-            order.add(bestVar);
-            remainingVars.remove(bestVar);
-
-            // Update factors as if we've eliminated this variable
-            List<Factor> relevantFactors = new ArrayList<>();
-            List<Factor> irrelevantFactors = new ArrayList<>();
+    // P(queryVars | evidence) by variable elimination along the plan, the last query variable fastest.
+    // Every intermediate table comes from an arena that is recycled once the answer is copied out
+    private double[] eliminationTable(int[] queryVars, Query query, EliminationPlan plan, int[] opCounts,
+                                      QueryStats stats) {
+        try (FactorArena arena = FactorArena.acquire()) {
+            return eliminationTable(queryVars, query, plan, opCounts, stats, arena);
+        }
+    }
 
-            for (Factor factor : factors) {
-                if (factor.getVariables().contains(bestVar)) {
-                    relevantFactors.add(factor);
-                } else {
-                    irrelevantFactors.add(factor);
-                }
-            }
+    private double[] eliminationTable(int[] queryVars, Query query, EliminationPlan plan, int[] opCounts,
+                                      QueryStats stats, FactorArena arena) {
+        long mark = stats == null ? 0 : System.nanoTime();
+        int additions = 0;
+        int multiplications = 0;
 
-            // Create a new factor that would result from elimination
-            Set<String> newFactorVars = new HashSet<>();
-            for (Factor factor : relevantFactors) {
-                newFactorVars.addAll(factor.getVariables());
+        // Restricting the requisite CPTs into the plan's initial slots; barren and d-separated
+        // variables cannot change the answer, so their CPTs are not in the plan
+        int initialCount = plan.factorVars.length;
+        Factor[] slots = new Factor[initialCount + plan.steps.length];
+        for (int slot = 0; slot < initialCount; slot++) {
+            Factor cpt = cptFactors[plan.factorVars[slot]];
+            Factor factor = cpt;
+            for (int i = 0; i < query.evidenceVars.length; i++) {
+                factor = factor.restrict(query.evidenceVars[i], query.evidenceValues[i], arena);
             }
-            newFactorVars.remove(bestVar);
-
-            // Replace relevant factors with new combined factor for heuristic purposes
-            factors = new ArrayList<>(irrelevantFactors);
-            if (!newFactorVars.isEmpty()) {
-                factors.add(new Factor(new ArrayList<>(newFactorVars), new double[1], variables));
+            slots[slot] = factor;
+            if (stats != null) {
+                stats.factor(factor, factor != cpt || factor instanceof SparseFactor);
             }
         }
+        if (stats != null) {
+            mark = stats.endPhase(Phase.RESTRICT, mark);
+        }
 
-        return order;
-    }
-
-    private int computeEliminationWeight(String var, List<Factor> factors) {
-        // Find all factors involving this variable
+        // Each step joins its factors, smallest first, and sums out its variable in one pass,
+        // never building the product
         List<Factor> relevantFactors = new ArrayList<>();
-        Map<String, Variable> variables = network.getVariables();
+        int[] stepCounts = new int[2];
+        for (int step = 0; step < plan.steps.length; step++) {
+            relevantFactors.clear();
+            for (int slot : plan.steps[step]) {
+                relevantFactors.add(slots[slot]);
+            }
+            if (stats != null) {
+                stats.eliminationStep(relevantFactors);
+            }
 
-        for (Factor factor : factors) {
-            if (factor.getVariables().contains(var)) {
-                relevantFactors.add(factor);
+            stepCounts[0] = 0;
+            stepCounts[1] = 0;
+            Factor summedOut = Factor.productSumOut(relevantFactors, plan.stepVars[step], arithmetic == Arithmetic.SCALED,
+                    stepCounts, arena);
+            additions += stepCounts[0];
+            multiplications += stepCounts[1];
+            slots[initialCount + step] = summedOut;
+            if (stats != null && plan.stepKept[step]) {
+                stats.factor(summedOut, true);
             }
         }
 
-        // If no relevant factors, weight is 0
-        if (relevantFactors.isEmpty()) {
-            return 0;
+        if (plan.finalSlots.length == 0) {
+            throw new RuntimeException("No remaining factors after elimination");
         }
 
-        // Find all variables in these factors
-        Set<String> involvedVars = new HashSet<>();
-        for (Factor factor : relevantFactors) {
-            involvedVars.addAll(factor.getVariables());
+        // Join all remaining factors
+        Factor finalFactor = slots[plan.finalSlots[0]];
+        for (int i = 1; i < plan.finalSlots.length; i++) {
+            stepCounts[1] = 0;
+            finalFactor = rescale(finalFactor.multiply(slots[plan.finalSlots[i]], stepCounts, arena), arena);
+            multiplications += stepCounts[1];
+            if (stats != null) {
+                stats.factor(finalFactor, true);
+            }
+        }
+        if (stats != null) {
+            mark = stats.endPhase(Phase.ELIMINATE, mark);
         }
 
-        // Calculate weight as product of domain sizes
-        int weight = 1;
-        for (String involvedVar : involvedVars) {
-            weight *= variables.get(involvedVar).getValues().size();
+        // Normalize, only the query variables are left in the final factor.
+        // Summing its k entries costs k - 1 additions, plus one more for the normalization itself
+        double[] table = finalFactor.normalize(arena).valuesIn(queryVars);
+        additions += table.length - 1;
+        additions++;
+        if (stats != null) {
+            stats.endPhase(Phase.NORMALIZE, mark);
         }
 
-        return weight;
+        opCounts[0] += additions;
+        opCounts[1] += multiplications;
+        return table;
     }
 
-    private Result getFromCPT(String query) {
-        // Parse the query
-        String[] parts = query.split("\\|");
-        String queryPart = parts[0].trim();
-        String evidencePart = parts[1].trim();
-
-        // Extract query variable and value
-        String queryStr = queryPart.substring(2, queryPart.length() - 1); // Remove P( and )
-        String[] queryVarVal = queryStr.split("=");
-        String queryVar = queryVarVal[0].trim();
-        String queryVal = queryVarVal[1].trim();
-
-        // Extract evidence variables and values
-        String[] evidenceStrs = evidencePart.substring(0, evidencePart.length() - 1).split(",");
-        Map<String, String> evidenceMap = new HashMap<>();
-        for (String evidence : evidenceStrs) {
-            String[] evidenceVarVal = evidence.split("=");
-            evidenceMap.put(evidenceVarVal[0].trim(), evidenceVarVal[1].trim());
+    private static boolean containsVar(int[] vars, int var) {
+        for (int v : vars) {
+            if (v == var) {
+                return true;
+            }
         }
+        return false;
+    }
 
+    private Factor rescale(Factor factor, FactorArena arena) {
+        return arithmetic == Arithmetic.SCALED ? factor.rescale(arena) : factor;
+    }
+
+    private Result getFromCPT(Query query) {
         // Get probability directly from CPT
-        CPT cpt = cpts.get(queryVar);
-        double probability = cpt.getProbability(queryVal, evidenceMap);
+        int[] assignment = query.toAssignment(network.size());
+        double probability = network.getProbability(query.queryVar, assignment);
 
         return new Result(probability, 0, 0);
     }
-}
\ No newline at end of file
+
+    private double[] getRowFromCPT(Query query) {
+        int[] assignment = query.toAssignment(network.size());
+        double[] row = new double[network.getCardinality(query.queryVar)];
+        for (int value = 0; value < row.length; value++) {
+            assignment[query.queryVar] = value;
+            row[value] = network.getProbability(query.queryVar, assignment);
+        }
+        return row;
+    }
+}
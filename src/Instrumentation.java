@@ -0,0 +1,12 @@
+/**
+ * Receives what the engine measured about each query. Set one with
+ * {@link BayesianNetwork#setInstrumentation}; without one nothing is timed or recorded, and
+ * the only cost left is a null check per query and per factor operation. Calls may come from
+ * several query threads at once.
+ */
+public interface Instrumentation {
+    // Time spent loading the network from its XML or precompiled file
+    void networkLoaded(String fileName, long nanos);
+
+    void queryFinished(QueryStats stats);
+}
@@ -0,0 +1,200 @@
+import java.util.*;
+
+/**
+ * Interaction (moral) graph over factor scopes, used to compute greedy elimination orders.
+ * Adjacency is kept as one bitset per variable and candidates sit in an indexed min-heap.
+ * Eliminating a variable only rescores the variables whose score can change: its
+ * neighbours for degree and weight, and additionally their neighbours for fill-based scores.
+ */
+final class InteractionGraph {
+    private final int[] cards;
+    private final BitSet[] adjacency;
+    private final BitSet present;     // variables that appear in at least one scope
+    private final BitSet scratch;
+
+    // Indexed min-heap of candidates ordered by (score, rank)
+    private long[] score;
+    private int[] rank;
+    private int[] heap;
+    private int[] heapPos;
+    private int heapSize;
+
+    InteractionGraph(CompiledNetwork network, List<int[]> scopes) {
+        int n = network.size();
+        this.cards = network.getCardinalities();
+        this.adjacency = new BitSet[n];
+        for (int v = 0; v < n; v++) {
+            adjacency[v] = new BitSet(n);
+        }
+        this.present = new BitSet(n);
+        this.scratch = new BitSet(n);
+
+        for (int[] scope : scopes) {
+            for (int i = 0; i < scope.length; i++) {
+                present.set(scope[i]);
+                for (int j = i + 1; j < scope.length; j++) {
+                    adjacency[scope[i]].set(scope[j]);
+                    adjacency[scope[j]].set(scope[i]);
+                }
+            }
+        }
+    }
+
+    // Greedily eliminates the candidates and returns the order; ties go to the earlier candidate.
+    // The graph is consumed in the process.
+    List<Integer> eliminationOrder(List<Integer> candidates, EliminationHeuristic heuristic) {
+        int n = adjacency.length;
+        this.score = new long[n];
+        this.rank = new int[n];
+        this.heap = new int[candidates.size()];
+        this.heapPos = new int[n];
+        Arrays.fill(heapPos, -1);
+        this.heapSize = 0;
+
+        for (int i = 0; i < candidates.size(); i++) {
+            int var = candidates.get(i);
+            rank[var] = i;
+            score[var] = score(var, heuristic);
+            heap[heapSize] = var;
+            heapPos[var] = heapSize++;
+            siftUp(heapPos[var]);
+        }
+
+        boolean fillBased = heuristic == EliminationHeuristic.MIN_FILL
+                || heuristic == EliminationHeuristic.WEIGHTED_MIN_FILL;
+        BitSet affected = new BitSet(n);
+        List<Integer> order = new ArrayList<>(candidates.size());
+        while (heapSize > 0) {
+            int var = poll();
+            order.add(var);
+
+            BitSet neighbours = adjacency[var];
+            affected.clear();
+            affected.or(neighbours);
+            if (fillBased) {
+                for (int u = neighbours.nextSetBit(0); u >= 0; u = neighbours.nextSetBit(u + 1)) {
+                    affected.or(adjacency[u]);
+                }
+            }
+
+            // Eliminating var turns its neighbourhood into a clique
+            for (int u = neighbours.nextSetBit(0); u >= 0; u = neighbours.nextSetBit(u + 1)) {
+                adjacency[u].or(neighbours);
+                adjacency[u].clear(u);
+                adjacency[u].clear(var);
+            }
+            neighbours.clear();
+            affected.clear(var);
+
+            for (int u = affected.nextSetBit(0); u >= 0; u = affected.nextSetBit(u + 1)) {
+                int pos = heapPos[u];
+                if (pos == -1) {
+                    continue;
+                }
+                long old = score[u];
+                score[u] = score(u, heuristic);
+                if (score[u] < old) {
+                    siftUp(pos);
+                } else if (score[u] > old) {
+                    siftDown(pos);
+                }
+            }
+        }
+        return order;
+    }
+
+    private long score(int var, EliminationHeuristic heuristic) {
+        // A variable outside every factor is free to eliminate
+        if (!present.get(var)) {
+            return 0;
+        }
+
+        BitSet neighbours = adjacency[var];
+        switch (heuristic) {
+            case MIN_DEGREE:
+                return neighbours.cardinality();
+            case MIN_WEIGHT: {
+                long weight = cards[var];
+                for (int u = neighbours.nextSetBit(0); u >= 0; u = neighbours.nextSetBit(u + 1)) {
+                    weight = weight > Long.MAX_VALUE / cards[u] ? Long.MAX_VALUE : weight * cards[u];
+                }
+                return weight;
+            }
+            case MIN_FILL:
+            case WEIGHTED_MIN_FILL: {
+                boolean weighted = heuristic == EliminationHeuristic.WEIGHTED_MIN_FILL;
+                long fill = 0;
+                for (int u = neighbours.nextSetBit(0); u >= 0; u = neighbours.nextSetBit(u + 1)) {
+                    // Neighbours of var after u that u is not yet connected to
+                    scratch.clear();
+                    scratch.or(neighbours);
+                    scratch.clear(0, u + 1);
+                    scratch.andNot(adjacency[u]);
+                    if (!weighted) {
+                        fill += scratch.cardinality();
+                        continue;
+                    }
+                    for (int w = scratch.nextSetBit(0); w >= 0; w = scratch.nextSetBit(w + 1)) {
+                        fill += (long) cards[u] * cards[w];
+                    }
+                }
+                return fill;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported heuristic: " + heuristic);
+        }
+    }
+
+    private boolean less(int a, int b) {
+        return score[a] < score[b] || (score[a] == score[b] && rank[a] < rank[b]);
+    }
+
+    private int poll() {
+        int top = heap[0];
+        heapPos[top] = -1;
+        heapSize--;
+        if (heapSize > 0) {
+            heap[0] = heap[heapSize];
+            heapPos[heap[0]] = 0;
+            siftDown(0);
+        }
+        return top;
+    }
+
+    private void siftUp(int pos) {
+        int var = heap[pos];
+        while (pos > 0) {
+            int parentPos = (pos - 1) >>> 1;
+            int parentVar = heap[parentPos];
+            if (!less(var, parentVar)) {
+                break;
+            }
+            heap[pos] = parentVar;
+            heapPos[parentVar] = pos;
+            pos = parentPos;
+        }
+        heap[pos] = var;
+        heapPos[var] = pos;
+    }
+
+    private void siftDown(int pos) {
+        int var = heap[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && less(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!less(heap[child], var)) {
+                break;
+            }
+            heap[pos] = heap[child];
+            heapPos[heap[pos]] = pos;
+            pos = child;
+        }
+        heap[pos] = var;
+        heapPos[var] = pos;
+    }
+}
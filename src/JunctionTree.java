@@ -0,0 +1,621 @@
+import java.util.*;
+import java.util.function.IntFunction;
+
+/**
+ * Clique tree built once per network from a min-weight elimination of all variables.
+ * Eliminating variable v produces clique C_v = {v} plus its neighbours at that point; its
+ * parent is the clique of the first variable of C_v \ {v} eliminated afterwards, which gives
+ * a tree (forest for disconnected networks) with the running intersection property.
+ *
+ * For each evidence set the tree is calibrated with a Shafer-Shenoy upward and downward
+ * pass; every single-variable posterior is then read from a calibrated clique belief.
+ */
+final class JunctionTree {
+    private final CompiledNetwork network;
+    private final Arithmetic arithmetic;
+    private final int[][] cliques;        // clique i is created by eliminating order[i]
+    private final int[][] separators;     // clique i minus its eliminated variable
+    private final int[] parent;           // -1 for the root of each component
+    private final int[][] children;
+    private final int[][] assignedCpts;   // CPTs (by variable id) whose family lives in clique i
+    private final int[] cliqueOf;         // clique created by eliminating each variable
+    private final int[] homeOf;           // clique each variable's CPT is assigned to
+    private final CostEstimate cost;      // largest clique before evidence; operations are not estimated
+
+    // Most recent calibration, reused while the evidence stays the same
+    private volatile Calibration lastCalibration;
+
+    JunctionTree(CompiledNetwork network, Arithmetic arithmetic) {
+        this.network = network;
+        this.arithmetic = arithmetic;
+        int n = network.size();
+
+        List<int[]> scopes = new ArrayList<>(n);
+        List<Integer> allVars = new ArrayList<>(n);
+        for (int var : network.getNameOrder()) {
+            scopes.add(network.getFamily(var));
+            allVars.add(var);
+        }
+        List<Integer> order = EliminationOrder.minWeight(network, scopes, allVars);
+
+        int[] position = new int[n];
+        for (int i = 0; i < n; i++) {
+            position[order.get(i)] = i;
+        }
+
+        // Replay the elimination on scopes to read off the cliques
+        this.cliques = new int[n][];
+        this.separators = new int[n][];
+        this.parent = new int[n];
+        this.cliqueOf = new int[n];
+        boolean[] inClique = new boolean[n];
+        int[] members = new int[n];
+        for (int i = 0; i < n; i++) {
+            int var = order.get(i);
+            cliqueOf[var] = i;
+
+            int size = 0;
+            members[size++] = var;
+            inClique[var] = true;
+            List<int[]> remaining = new ArrayList<>(scopes.size());
+            for (int[] scope : scopes) {
+                if (!containsVar(scope, var)) {
+                    remaining.add(scope);
+                    continue;
+                }
+                for (int other : scope) {
+                    if (!inClique[other]) {
+                        inClique[other] = true;
+                        members[size++] = other;
+                    }
+                }
+            }
+            for (int k = 0; k < size; k++) {
+                inClique[members[k]] = false;
+            }
+
+            cliques[i] = Arrays.copyOf(members, size);
+            separators[i] = Arrays.copyOfRange(members, 1, size);
+            if (separators[i].length > 0) {
+                remaining.add(separators[i]);
+            }
+            scopes = remaining;
+
+            parent[i] = -1;
+            for (int other : separators[i]) {
+                if (parent[i] == -1 || position[other] < parent[i]) {
+                    parent[i] = position[other];
+                }
+            }
+        }
+
+        int[] childCounts = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (parent[i] != -1) {
+                childCounts[parent[i]]++;
+            }
+        }
+        this.children = new int[n][];
+        for (int i = 0; i < n; i++) {
+            children[i] = new int[childCounts[i]];
+            childCounts[i] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            if (parent[i] != -1) {
+                children[parent[i]][childCounts[parent[i]]++] = i;
+            }
+        }
+
+        // A family is still intact when its first member is eliminated, so that clique holds it
+        int[] assignedCounts = new int[n];
+        int[] home = new int[n];
+        this.homeOf = home;
+        for (int var = 0; var < n; var++) {
+            home[var] = n;
+            for (int member : network.getFamily(var)) {
+                home[var] = Math.min(home[var], position[member]);
+            }
+            assignedCounts[home[var]]++;
+        }
+        this.assignedCpts = new int[n][];
+        for (int i = 0; i < n; i++) {
+            assignedCpts[i] = new int[assignedCounts[i]];
+            assignedCounts[i] = 0;
+        }
+        for (int var = 0; var < n; var++) {
+            assignedCpts[home[var]][assignedCounts[home[var]]++] = var;
+        }
+
+        long peak = 1;
+        int width = 0;
+        for (int[] clique : cliques) {
+            peak = Math.max(peak, EliminationPlan.entries(network, clique));
+            width = Math.max(width, clique.length - 1);
+        }
+        this.cost = new CostEstimate(peak, -1, -1, width);
+    }
+
+    CostEstimate cost() {
+        return cost;
+    }
+
+    Result marginal(Query query, QueryStats stats) {
+        int[] opCounts = new int[2]; // [additions, multiplications]
+        double[] table = table(new int[]{query.queryVar}, query, opCounts, stats);
+        return new Result(table[query.queryValue], opCounts[0], opCounts[1]);
+    }
+
+    // P(queryVars | evidence), the last query variable fastest.
+    // A reused calibration is counted in full, so a query's counts never depend on what ran before it
+    double[] table(int[] queryVars, Query query, int[] opCounts, QueryStats stats) {
+        Query evidence = new Query(-1, -1, query.evidenceVars, query.evidenceValues);
+        Calibration calibration = lastCalibration;
+        if (calibration == null || !calibration.evidence.equals(evidence)) {
+            calibration = calibrate(evidence, new int[2], stats);
+            lastCalibration = calibration;
+        }
+        opCounts[0] += calibration.opCounts[0];
+        opCounts[1] += calibration.opCounts[1];
+        long mark = stats == null ? 0 : System.nanoTime();
+
+        int clique = cliqueCovering(queryVars);
+        Calibration calibrated = calibration;
+        double[] table = clique != -1 ? readBelief(calibration.beliefs[clique], queryVars, opCounts)
+                : subtreeTable(queryVars, calibration.potentials, calibration.upMessages,
+                        c -> calibrated.downMessages[c], opCounts);
+        if (stats != null) {
+            stats.endPhase(Phase.NORMALIZE, mark);
+        }
+        return table;
+    }
+
+    // The clique that eliminated a variable always mentions it, others are searched for; -1 if none holds them all
+    private int cliqueCovering(int[] queryVars) {
+        int clique = cliqueOf[queryVars[0]];
+        if (coversAll(cliques[clique], queryVars)) {
+            return clique;
+        }
+        for (int i = 0; i < cliques.length; i++) {
+            if (coversAll(cliques[i], queryVars)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private double[] readBelief(Factor belief, int[] queryVars, int[] opCounts) {
+        return normalizedValues(marginalizeTo(belief, queryVars, opCounts), queryVars, opCounts);
+    }
+
+    private double[] normalizedValues(Factor marginal, int[] queryVars, int[] opCounts) {
+        if (marginal == null || marginal.getVariables().length != queryVars.length) {
+            throw new IllegalStateException("Calibrated cliques do not cover " + network.getName(queryVars[0]));
+        }
+
+        // Normalization mirrors variable elimination: k - 1 additions for the sum, one for the division
+        double[] table = marginal.normalize().valuesIn(queryVars);
+        opCounts[0] += table.length - 1;
+        opCounts[0]++;
+        return table;
+    }
+
+    /**
+     * Joint posterior of query variables that no single clique holds. The cliques on the
+     * paths between the cliques of the query variables form a subtree; its potentials, the
+     * upward messages from the cliques below it and the downward message into its top stand
+     * for the whole network. Every variable but the query variables is then eliminated from
+     * them in min-weight order, as variable elimination would.
+     */
+    private double[] subtreeTable(int[] queryVars, Factor[] potentials, Factor[] upMessages,
+                                  IntFunction<Factor> downMessage, int[] opCounts) {
+        int n = cliques.length;
+        boolean[] inSubtree = new boolean[n];
+        boolean[] holdsQuery = new boolean[n];
+        for (int var : queryVars) {
+            holdsQuery[cliqueOf[var]] = true;
+            for (int c = cliqueOf[var]; c != -1 && !inSubtree[c]; c = parent[c]) {
+                inSubtree[c] = true;
+            }
+        }
+
+        // Paths were marked up to the roots; each component's subtree starts where they meet
+        List<Factor> factors = new ArrayList<>();
+        for (int root = 0; root < n; root++) {
+            if (parent[root] != -1 || !inSubtree[root]) {
+                continue;
+            }
+            int top = root;
+            while (!holdsQuery[top]) {
+                int only = -1;
+                int count = 0;
+                for (int child : children[top]) {
+                    if (inSubtree[child]) {
+                        only = child;
+                        count++;
+                    }
+                }
+                if (count != 1) {
+                    break;
+                }
+                inSubtree[top] = false;
+                top = only;
+            }
+            if (parent[top] != -1) {
+                addIfPresent(factors, downMessage.apply(top));
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (!inSubtree[i]) {
+                continue;
+            }
+            addIfPresent(factors, potentials[i]);
+            for (int child : children[i]) {
+                if (!inSubtree[child]) {
+                    addIfPresent(factors, upMessages[child]);
+                }
+            }
+        }
+
+        List<int[]> scopes = new ArrayList<>(factors.size());
+        List<Integer> hidden = new ArrayList<>();
+        for (Factor factor : factors) {
+            scopes.add(factor.getVariables());
+            for (int var : factor.getVariables()) {
+                if (!containsVar(queryVars, var) && !hidden.contains(var)) {
+                    hidden.add(var);
+                }
+            }
+        }
+        for (int var : EliminationOrder.minWeight(network, scopes, hidden)) {
+            List<Factor> relevant = new ArrayList<>();
+            List<Factor> remaining = new ArrayList<>(factors.size());
+            for (Factor factor : factors) {
+                (factor.contains(var) ? relevant : remaining).add(factor);
+            }
+            remaining.add(Factor.productSumOut(relevant, var, arithmetic == Arithmetic.SCALED, opCounts, null));
+            factors = remaining;
+        }
+
+        Factor joint = null;
+        for (Factor factor : factors) {
+            joint = multiply(joint, factor, opCounts);
+        }
+        return normalizedValues(joint, queryVars, opCounts);
+    }
+
+    private static void addIfPresent(List<Factor> factors, Factor factor) {
+        if (factor != null) {
+            factors.add(factor);
+        }
+    }
+
+    private static boolean coversAll(int[] clique, int[] vars) {
+        for (int var : vars) {
+            if (!containsVar(clique, var)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Calibration calibrate(Query evidence, int[] opCounts, QueryStats stats) {
+        long mark = stats == null ? 0 : System.nanoTime();
+        int n = cliques.length;
+
+        // Clique potentials: product of the assigned CPTs with the evidence applied
+        Factor[] potentials = new Factor[n];
+        for (int i = 0; i < n; i++) {
+            for (int var : assignedCpts[i]) {
+                Factor factor = Factor.of(network, var);
+                for (int k = 0; k < evidence.evidenceVars.length; k++) {
+                    factor = factor.restrict(evidence.evidenceVars[k], evidence.evidenceValues[k]);
+                }
+                // Constant factors only rescale the result, normalization removes them
+                if (factor.getSize() > 1) {
+                    potentials[i] = multiply(potentials[i], factor, opCounts);
+                }
+            }
+        }
+        if (stats != null) {
+            mark = stats.endPhase(Phase.RESTRICT, mark);
+        }
+
+        // Upward pass: children always come before their parent in elimination order
+        Factor[] upMessages = new Factor[n];
+        for (int i = 0; i < n; i++) {
+            if (parent[i] == -1) {
+                continue;
+            }
+            Factor product = potentials[i];
+            for (int child : children[i]) {
+                product = multiply(product, upMessages[child], opCounts);
+            }
+            upMessages[i] = marginalizeTo(product, separators[i], opCounts);
+        }
+
+        // Downward pass from the roots, each child gets everything except its own message back
+        Factor[] downMessages = new Factor[n];
+        for (int i = n - 1; i >= 0; i--) {
+            for (int child : children[i]) {
+                Factor product = multiply(potentials[i], downMessages[i], opCounts);
+                for (int sibling : children[i]) {
+                    if (sibling != child) {
+                        product = multiply(product, upMessages[sibling], opCounts);
+                    }
+                }
+                downMessages[child] = marginalizeTo(product, separators[child], opCounts);
+            }
+        }
+
+        Factor[] beliefs = new Factor[n];
+        for (int i = 0; i < n; i++) {
+            Factor belief = multiply(potentials[i], downMessages[i], opCounts);
+            for (int child : children[i]) {
+                belief = multiply(belief, upMessages[child], opCounts);
+            }
+            beliefs[i] = belief;
+            if (stats != null && belief != null) {
+                stats.factor(belief, true);
+                stats.eliminationStep(Collections.singletonList(belief));
+            }
+        }
+        if (stats != null) {
+            stats.endPhase(Phase.ELIMINATE, mark);
+        }
+
+        return new Calibration(evidence, potentials, upMessages, downMessages, beliefs, opCounts);
+    }
+
+    Incremental incremental(int[] opCounts) {
+        return new Incremental(opCounts);
+    }
+
+    /**
+     * A calibration kept up to date one evidence change at a time. Changing the value of v
+     * only touches the potentials of the cliques holding the CPTs of v and its children, and
+     * the upward messages on their paths to the root. Downward messages and beliefs are
+     * recomputed lazily, along the path from the root to a queried clique, and only when a
+     * change outside their subtree made them stale: a message is valid while its epoch is the
+     * current one, and an update only carries over the epochs of the cliques above every
+     * change. Messages are built in the same order as calibrate() builds them, so the answers
+     * are those of a full calibration with the same evidence.
+     */
+    final class Incremental {
+        private final int[] evidence;           // value of every variable, -1 when unobserved
+        private int observedCount;
+        private final Factor[] potentials;
+        private final Factor[] upMessages;
+        private final Factor[] downMessages;
+        private final Factor[] beliefs;
+        private final long[] downEpochs;        // epoch in which each downward message was built
+        private final long[] beliefEpochs;
+        private final int[] pathCounts;         // scratch for update(), all zero in between
+        private final int[] path;               // scratch cliques, at most one per clique
+        private long epoch = 1;
+
+        private Incremental(int[] opCounts) {
+            int n = cliques.length;
+            this.evidence = new int[network.size()];
+            Arrays.fill(evidence, -1);
+            this.potentials = new Factor[n];
+            this.upMessages = new Factor[n];
+            this.downMessages = new Factor[n];
+            this.beliefs = new Factor[n];
+            this.downEpochs = new long[n];
+            this.beliefEpochs = new long[n];
+            this.pathCounts = new int[n];
+            this.path = new int[n];
+            for (int i = 0; i < n; i++) {
+                potentials[i] = potential(i, opCounts);
+            }
+            for (int i = 0; i < n; i++) {
+                updateUpMessage(i, opCounts);
+            }
+        }
+
+        int getValue(int var) {
+            return evidence[var];
+        }
+
+        // Observes var at value, or retracts it with -1
+        void update(int var, int value, int[] opCounts) {
+            if (evidence[var] == value) {
+                return;
+            }
+            observedCount += (value != -1 ? 1 : 0) - (evidence[var] != -1 ? 1 : 0);
+            evidence[var] = value;
+
+            // Cliques holding a CPT that mentions var, and every clique on their paths to the root
+            int[] childVars = network.getChildren(var);
+            int[] dirty = new int[1 + childVars.length];
+            int dirtyCount = 0;
+            for (int k = -1; k < childVars.length; k++) {
+                int home = homeOf[k == -1 ? var : childVars[k]];
+                boolean seen = false;
+                for (int d = 0; d < dirtyCount; d++) {
+                    seen |= dirty[d] == home;
+                }
+                if (!seen) {
+                    dirty[dirtyCount++] = home;
+                }
+            }
+            int[] touched = path;
+            int touchedCount = 0;
+            for (int d = 0; d < dirtyCount; d++) {
+                potentials[dirty[d]] = potential(dirty[d], opCounts);
+                for (int clique = dirty[d]; clique != -1; clique = parent[clique]) {
+                    if (pathCounts[clique]++ == 0) {
+                        touched[touchedCount++] = clique;
+                    }
+                }
+            }
+
+            // Children come before their parent in elimination order
+            Arrays.sort(touched, 0, touchedCount);
+            for (int t = 0; t < touchedCount; t++) {
+                updateUpMessage(touched[t], opCounts);
+            }
+
+            // Downward messages into a clique above every change only depend on what did not change
+            epoch++;
+            for (int t = 0; t < touchedCount; t++) {
+                int clique = touched[t];
+                if (pathCounts[clique] == dirtyCount && downEpochs[clique] == epoch - 1) {
+                    downEpochs[clique] = epoch;
+                }
+                pathCounts[clique] = 0;
+            }
+        }
+
+        // P(queryVars | evidence), from the subtree between their cliques when no one clique holds them all;
+        // evidence on exactly a single query variable's parents is read from its CPT, as posterior() does
+        double[] table(int[] queryVars, int[] opCounts) {
+            for (int var : queryVars) {
+                if (evidence[var] != -1) {
+                    throw new IllegalArgumentException("Variable " + network.getName(var) + " is observed");
+                }
+            }
+            if (queryVars.length == 1 && isCptRow(queryVars[0])) {
+                return cptRow(queryVars[0]);
+            }
+            int clique = cliqueCovering(queryVars);
+            if (clique == -1) {
+                return subtreeTable(queryVars, potentials, upMessages, c -> downMessage(c, opCounts), opCounts);
+            }
+            if (beliefEpochs[clique] != epoch) {
+                Factor belief = multiply(potentials[clique], downMessage(clique, opCounts), opCounts);
+                for (int child : children[clique]) {
+                    belief = multiply(belief, upMessages[child], opCounts);
+                }
+                beliefs[clique] = belief;
+                beliefEpochs[clique] = epoch;
+            }
+            return readBelief(beliefs[clique], queryVars, opCounts);
+        }
+
+        // Evidence on exactly the parents of var, which posterior() answers from the CPT as well
+        private boolean isCptRow(int var) {
+            int[] parents = network.getParents(var);
+            if (parents.length != observedCount) {
+                return false;
+            }
+            for (int p : parents) {
+                if (evidence[p] == -1) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private double[] cptRow(int var) {
+            int[] assignment = evidence.clone();
+            double[] row = new double[network.getCardinality(var)];
+            for (int value = 0; value < row.length; value++) {
+                assignment[var] = value;
+                row[value] = network.getProbability(var, assignment);
+            }
+            return row;
+        }
+
+        private Factor potential(int clique, int[] opCounts) {
+            Factor potential = null;
+            for (int var : assignedCpts[clique]) {
+                Factor factor = Factor.of(network, var);
+                for (int member : network.getFamily(var)) {
+                    if (evidence[member] != -1) {
+                        factor = factor.restrict(member, evidence[member]);
+                    }
+                }
+                // Constant factors only rescale the result, normalization removes them
+                if (factor.getSize() > 1) {
+                    potential = multiply(potential, factor, opCounts);
+                }
+            }
+            return potential;
+        }
+
+        private void updateUpMessage(int clique, int[] opCounts) {
+            if (parent[clique] == -1) {
+                return;
+            }
+            Factor product = potentials[clique];
+            for (int child : children[clique]) {
+                product = multiply(product, upMessages[child], opCounts);
+            }
+            upMessages[clique] = marginalizeTo(product, separators[clique], opCounts);
+        }
+
+        // Rebuilds the stale downward messages on the path from the root, top down
+        private Factor downMessage(int clique, int[] opCounts) {
+            int length = 0;
+            for (int c = clique; parent[c] != -1 && downEpochs[c] != epoch; c = parent[c]) {
+                path[length++] = c;
+            }
+            for (int k = length - 1; k >= 0; k--) {
+                int child = path[k];
+                int p = parent[child];
+                Factor product = multiply(potentials[p], parent[p] == -1 ? null : downMessages[p], opCounts);
+                for (int sibling : children[p]) {
+                    if (sibling != child) {
+                        product = multiply(product, upMessages[sibling], opCounts);
+                    }
+                }
+                downMessages[child] = marginalizeTo(product, separators[child], opCounts);
+                downEpochs[child] = epoch;
+            }
+            return parent[clique] == -1 ? null : downMessages[clique];
+        }
+    }
+
+    // A null factor stands for the constant 1
+    private Factor multiply(Factor a, Factor b, int[] opCounts) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        Factor product = a.multiply(b, opCounts);
+        return arithmetic == Arithmetic.SCALED ? product.rescale() : product;
+    }
+
+    private static Factor marginalizeTo(Factor factor, int[] keep, int[] opCounts) {
+        if (factor == null) {
+            return null;
+        }
+        for (int var : factor.getVariables()) {
+            if (!containsVar(keep, var)) {
+                factor = factor.sumOut(var, opCounts);
+            }
+        }
+        return factor;
+    }
+
+    private static boolean containsVar(int[] scope, int var) {
+        for (int v : scope) {
+            if (v == var) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Calibration {
+        private final Query evidence;
+        private final Factor[] potentials;
+        private final Factor[] upMessages;
+        private final Factor[] downMessages;
+        private final Factor[] beliefs;
+        private final int[] opCounts;   // [additions, multiplications] of calibrating
+
+        Calibration(Query evidence, Factor[] potentials, Factor[] upMessages, Factor[] downMessages, Factor[] beliefs,
+                    int[] opCounts) {
+            this.evidence = evidence;
+            this.potentials = potentials;
+            this.upMessages = upMessages;
+            this.downMessages = downMessages;
+            this.beliefs = beliefs;
+            this.opCounts = opCounts;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Algorithm 5. Each sample draws the unobserved requisite variables from their CPTs in
+ * topological order and is weighted by the probability of the evidence given its parents.
+ * The estimate is the weighted share of samples with the query value, and its standard
+ * error is the delta-method error of that ratio.
+ *
+ * Counts: one multiplication per evidence factor after the first and one addition per
+ * sample weight into the total, the same convention as the exact algorithms.
+ */
+final class LikelihoodWeighting extends Sampler<LikelihoodWeighting.WeightedStream> {
+    private final boolean[] observed;   // per position of order
+    private final int evidenceCount;
+
+    LikelihoodWeighting(CompiledNetwork network, Query query, SamplingSettings settings) {
+        super(network, query, settings);
+        this.observed = new boolean[order.length];
+        int count = 0;
+        for (int i = 0; i < order.length; i++) {
+            observed[i] = query.isEvidence(order[i]);
+            if (observed[i]) {
+                count++;
+            }
+        }
+        this.evidenceCount = count;
+    }
+
+    @Override
+    WeightedStream newStream(SplittableRandom random) {
+        return new WeightedStream(random);
+    }
+
+    @Override
+    double estimate(List<WeightedStream> streams) {
+        double total = 0;
+        double matching = 0;
+        for (WeightedStream stream : streams) {
+            total += stream.weight;
+            matching += stream.matchingWeight;
+        }
+        if (total == 0) {
+            throw new ArithmeticException("Cannot estimate: every sample has zero weight given the evidence.");
+        }
+        return matching / total;
+    }
+
+    // sqrt(sum w^2 (1[query] - p)^2) / sum w, expanded into the per-stream sums
+    @Override
+    double standardError(List<WeightedStream> streams, double estimate) {
+        double total = 0;
+        double squares = 0;
+        double matchingSquares = 0;
+        for (WeightedStream stream : streams) {
+            total += stream.weight;
+            squares += stream.squaredWeight;
+            matchingSquares += stream.matchingSquaredWeight;
+        }
+        double deviation = matchingSquares * (1 - 2 * estimate) + squares * estimate * estimate;
+        return Math.sqrt(Math.max(deviation, 0)) / total;
+    }
+
+    @Override
+    long additions(long draws) {
+        return draws - 1;
+    }
+
+    @Override
+    long multiplications(long draws) {
+        return draws * Math.max(evidenceCount - 1, 0);
+    }
+
+    final class WeightedStream extends Sampler.Stream {
+        private final int[] assignment;
+        private double weight;
+        private double matchingWeight;
+        private double squaredWeight;
+        private double matchingSquaredWeight;
+
+        WeightedStream(SplittableRandom random) {
+            super(random);
+            this.assignment = new int[network.size()];
+            Arrays.fill(assignment, -1);
+            for (int i = 0; i < query.evidenceVars.length; i++) {
+                assignment[query.evidenceVars[i]] = query.evidenceValues[i];
+            }
+        }
+
+        @Override
+        void draw(long count) {
+            int queryVar = query.queryVar;
+            int queryValue = query.queryValue;
+            for (long s = 0; s < count; s++) {
+                double w = 1.0;
+                for (int i = 0; i < order.length && w != 0; i++) {
+                    int var = order[i];
+                    double[] table = network.getTable(var);
+                    int base = rowBase(network, var, assignment);
+                    if (observed[i]) {
+                        w *= table[base + assignment[var]];
+                    } else {
+                        assignment[var] = sampleRow(table, base, network.getCardinality(var), random.nextDouble());
+                    }
+                }
+
+                // A zero weight stops the sample early, its values no longer matter
+                double w2 = w * w;
+                weight += w;
+                squaredWeight += w2;
+                if (w != 0 && assignment[queryVar] == queryValue) {
+                    matchingWeight += w;
+                    matchingSquaredWeight += w2;
+                }
+            }
+            samples += count;
+            draws += count;
+        }
+    }
+}
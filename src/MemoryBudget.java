@@ -0,0 +1,59 @@
+/**
+ * Largest table a single query may build. Algorithms 2 and 3 are planned symbolically before
+ * they run, algorithm 4 is checked against its largest clique and algorithm 7 against the
+ * values and derivatives its circuit keeps, see ArithmeticCircuit.cost(), or against the
+ * largest clique while the circuit is not compiled yet. A query over budget is either
+ * rejected with a {@link QueryTooLargeException} or answered by a cheaper algorithm instead:
+ * enumeration, whose memory does not grow with the tables, while its term count stays
+ * reasonable, and likelihood weighting beyond that.
+ */
+public final class MemoryBudget {
+    public static final MemoryBudget UNLIMITED = new MemoryBudget(Long.MAX_VALUE, Policy.REJECT);
+
+    public enum Policy {
+        REJECT("reject"),
+        FALLBACK("fallback");
+
+        private final String label;
+
+        Policy(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public static Policy fromLabel(String label) {
+            for (Policy policy : values()) {
+                if (policy.label.equals(label)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown over-budget policy: " + label);
+        }
+    }
+
+    private final long maxTableBytes;
+    private final Policy policy;
+
+    public MemoryBudget(long maxTableBytes, Policy policy) {
+        if (maxTableBytes < 1) {
+            throw new IllegalArgumentException("Memory budget must be positive: " + maxTableBytes);
+        }
+        this.maxTableBytes = maxTableBytes;
+        this.policy = policy;
+    }
+
+    public long getMaxTableBytes() {
+        return maxTableBytes;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    boolean allows(CostEstimate cost) {
+        return cost.getPeakTableBytes() <= maxTableBytes;
+    }
+}
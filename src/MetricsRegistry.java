@@ -0,0 +1,167 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instrumentation that aggregates every query into histograms and counters, ready to be
+ * dumped as JSON or in the Prometheus text format at the end of a batch. Times are in
+ * seconds and sizes in table entries or bytes.
+ */
+public final class MetricsRegistry implements Instrumentation {
+    private static final double[] SECONDS = Histogram.exponentialBounds(1e-6, 4, 14);     // 1 us to 67 s
+    private static final double[] SIZES = Histogram.exponentialBounds(1, 4, 16);          // 1 to 2^30
+    private static final double[] WIDTHS = Histogram.exponentialBounds(1, 2, 8);          // 1 to 128
+
+    private final Map<String, Histogram> phases = new TreeMap<>();
+    private final Map<String, Histogram> queryTimes = new TreeMap<>();
+    private final Histogram parseTime = new Histogram(SECONDS);
+    private final Histogram peakFactorSize = new Histogram(SIZES);
+    private final Histogram factorBytes = new Histogram(SIZES);
+    private final Histogram factorCount = new Histogram(SIZES);
+    private final Histogram eliminationWidth = new Histogram(WIDTHS);
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+
+    public MetricsRegistry() {
+        for (Phase phase : Phase.values()) {
+            phases.put(phase.getLabel(), phase == Phase.PARSE ? parseTime : new Histogram(SECONDS));
+        }
+        // Algorithm 0 stands for joint queries
+        for (int algorithm = InferenceEngine.JOINT_ALGORITHM; algorithm <= InferenceEngine.MAX_ALGORITHM; algorithm++) {
+            queryTimes.put(Integer.toString(algorithm), new Histogram(SECONDS));
+        }
+    }
+
+    @Override
+    public void networkLoaded(String fileName, long nanos) {
+        parseTime.record(nanos / 1e9);
+    }
+
+    @Override
+    public void queryFinished(QueryStats stats) {
+        queries.increment();
+        Histogram queryTime = queryTimes.get(Integer.toString(stats.getAlgorithm()));
+        if (queryTime != null) {
+            queryTime.record(stats.getTotalNanos() / 1e9);
+        }
+        if (stats.isCacheHit()) {
+            cacheHits.increment();
+            return;
+        }
+        for (Phase phase : Phase.values()) {
+            long nanos = stats.getPhaseNanos(phase);
+            if (nanos > 0) {
+                phases.get(phase.getLabel()).record(nanos / 1e9);
+            }
+        }
+        if (stats.getFactorCount() > 0) {
+            factorCount.record(stats.getFactorCount());
+            factorBytes.record(stats.getFactorBytes());
+            peakFactorSize.record(stats.getPeakFactorSize());
+            eliminationWidth.record(stats.getEliminationWidth());
+        }
+    }
+
+    public long getQueryCount() {
+        return queries.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        counter(out, "bn_queries_total", "Queries answered", queries.sum());
+        counter(out, "bn_cache_hits_total", "Queries answered from the result cache", cacheHits.sum());
+        histogram(out, "bn_phase_seconds", "Wall time per inference phase", "phase", phases);
+        histogram(out, "bn_query_seconds", "Wall time per query by algorithm, 0 for joint queries", "algorithm", queryTimes);
+        histogram(out, "bn_peak_factor_entries", "Largest factor table per query", peakFactorSize);
+        histogram(out, "bn_factor_bytes", "Factor table bytes built per query", factorBytes);
+        histogram(out, "bn_factor_count", "Factors per query", factorCount);
+        histogram(out, "bn_elimination_width", "Induced width of the elimination per query", eliminationWidth);
+        return out.toString();
+    }
+
+    public String toJson() {
+        StringBuilder out = new StringBuilder("{\n");
+        out.append("  \"queries\": ").append(queries.sum()).append(",\n");
+        out.append("  \"cacheHits\": ").append(cacheHits.sum()).append(",\n");
+        out.append("  \"phaseSeconds\": ");
+        json(out, phases);
+        out.append(",\n  \"querySecondsByAlgorithm\": ");
+        json(out, queryTimes);
+        out.append(",\n  \"peakFactorEntries\": ");
+        json(out, peakFactorSize);
+        out.append(",\n  \"factorBytes\": ");
+        json(out, factorBytes);
+        out.append(",\n  \"factorCount\": ");
+        json(out, factorCount);
+        out.append(",\n  \"eliminationWidth\": ");
+        json(out, eliminationWidth);
+        return out.append("\n}\n").toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String help, Histogram histogram) {
+        header(out, name, help);
+        series(out, name, "", histogram);
+    }
+
+    private static void histogram(StringBuilder out, String name, String help, String label, Map<String, Histogram> family) {
+        header(out, name, help);
+        for (Map.Entry<String, Histogram> entry : family.entrySet()) {
+            series(out, name, label + "=\"" + entry.getKey() + "\",", entry.getValue());
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+    }
+
+    // labels is empty or ends with a comma, so le can follow it
+    private static void series(StringBuilder out, String name, String labels, Histogram histogram) {
+        long cumulative = 0;
+        for (int i = 0; i < histogram.bucketCount(); i++) {
+            cumulative += histogram.bucket(i);
+            out.append(name).append("_bucket{").append(labels).append("le=\"").append(bound(histogram.bound(i)))
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        String plain = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.append(name).append("_sum").append(plain).append(' ').append(histogram.sum()).append('\n');
+        out.append(name).append("_count").append(plain).append(' ').append(histogram.count()).append('\n');
+    }
+
+    private static void json(StringBuilder out, Map<String, Histogram> family) {
+        out.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Histogram> entry : family.entrySet()) {
+            out.append(first ? "\n    \"" : ",\n    \"").append(entry.getKey()).append("\": ");
+            json(out, entry.getValue());
+            first = false;
+        }
+        out.append("\n  }");
+    }
+
+    // Buckets are cumulative, as in the Prometheus output
+    private static void json(StringBuilder out, Histogram histogram) {
+        out.append("{\"count\": ").append(histogram.count()).append(", \"sum\": ").append(histogram.sum()).append(", \"buckets\": [");
+        long cumulative = 0;
+        for (int i = 0; i < histogram.bucketCount(); i++) {
+            cumulative += histogram.bucket(i);
+            out.append(i == 0 ? "" : ", ").append("{\"le\": \"").append(bound(histogram.bound(i)))
+                    .append("\", \"count\": ").append(cumulative).append('}');
+        }
+        out.append("]}");
+    }
+
+    private static String bound(double bound) {
+        return bound == Double.POSITIVE_INFINITY ? "+Inf" : Double.toString(bound);
+    }
+}
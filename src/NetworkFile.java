@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * Precompiled network files (.bnc). A .bnc next to the XML, written from the same version of
+ * it, is memory-mapped and loaded instead of parsing the XML. Convert a network with
+ * {@code java NetworkFile network.xml [network.bnc]}.
+ *
+ * Layout, little-endian throughout:
+ *   header   "BNC1", int version, long size and long mtime (ms) of the source XML, int n
+ *   symbols  per variable: name, int k, then k outcome names; strings are an int byte
+ *            length followed by UTF-8
+ *   parents  per variable: int count, then the parents' ids
+ *   tables   zero padding to a multiple of 8, then every CPT as raw doubles in id order;
+ *            lengths follow from the cardinalities of each family
+ *   order    n ids, parents before children
+ */
+public final class NetworkFile {
+    public static final String EXTENSION = ".bnc";
+
+    private static final int MAGIC = 0x31434E42;   // "BNC1" read as a little-endian int
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+    private NetworkFile() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java NetworkFile network.xml [network" + EXTENSION + "]");
+            System.exit(2);
+        }
+        Path out = args.length == 2 ? Paths.get(args[1]) : binaryPathFor(args[0]);
+        convert(args[0], out);
+    }
+
+    // network.xml -> network.bnc in the same directory
+    public static Path binaryPathFor(String xmlFileName) {
+        Path xml = Paths.get(xmlFileName);
+        String name = xml.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return xml.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + EXTENSION);
+    }
+
+    // The compiled network from a fresh .bnc next to the XML if there is one, else from the XML.
+    // A fresh .bnc that turns out damaged or truncated is rewritten from the XML
+    public static CompiledNetwork load(String xmlFileName) throws Exception {
+        Path binary = binaryPathFor(xmlFileName);
+        if (Files.isRegularFile(binary) && isFresh(binary, Paths.get(xmlFileName))) {
+            try {
+                return read(binary);
+            } catch (IOException e) {
+                return rewrite(xmlFileName, binary);
+            }
+        }
+        return parseXml(xmlFileName);
+    }
+
+    // A cache that cannot be replaced, say in a read-only directory, is left alone
+    private static CompiledNetwork rewrite(String xmlFileName, Path binary) throws Exception {
+        Path xml = Paths.get(xmlFileName);
+        long sourceSize = Files.size(xml);
+        long sourceModified = Files.getLastModifiedTime(xml).toMillis();
+        CompiledNetwork network = parseXml(xmlFileName);
+        try {
+            write(network, binary, sourceSize, sourceModified);
+        } catch (IOException e) {
+            // the parsed network is still good
+        }
+        return network;
+    }
+
+    static CompiledNetwork parseXml(String xmlFileName) throws Exception {
+        NetworkParser parser = new NetworkParser();
+        parser.parse(xmlFileName);
+        NetworkStructure structure = new NetworkStructure(parser.getVariables(), parser.getCPTs());
+        return CompiledNetwork.compile(structure, parser.getCPTs());
+    }
+
+    public static void convert(String xmlFileName, Path out) throws Exception {
+        Path xml = Paths.get(xmlFileName);
+        long sourceSize = Files.size(xml);
+        long sourceModified = Files.getLastModifiedTime(xml).toMillis();
+        write(parseXml(xmlFileName), out, sourceSize, sourceModified);
+    }
+
+    // True when the file is a .bnc of this version written from the XML as it is now
+    static boolean isFresh(Path binary, Path xml) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(binary, StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if (channel.read(header) == -1) {
+                    return false;
+                }
+            }
+        }
+        header.flip();
+        return header.getInt() == MAGIC
+                && header.getInt() == VERSION
+                && header.getLong() == Files.size(xml)
+                && header.getLong() == Files.getLastModifiedTime(xml).toMillis();
+    }
+
+    static void write(CompiledNetwork network, Path out, long sourceSize, long sourceModified) throws IOException {
+        int n = network.size();
+        byte[][] names = new byte[n][];
+        byte[][][] outcomes = new byte[n][][];
+        long length = HEADER_SIZE;
+        for (int v = 0; v < n; v++) {
+            names[v] = network.getName(v).getBytes(StandardCharsets.UTF_8);
+            length += 4 + names[v].length + 4;
+            outcomes[v] = new byte[network.getCardinality(v)][];
+            for (int k = 0; k < outcomes[v].length; k++) {
+                outcomes[v][k] = network.getOutcome(v, k).getBytes(StandardCharsets.UTF_8);
+                length += 4 + outcomes[v][k].length;
+            }
+            length += 4 + 4L * network.getParents(v).length;
+        }
+        int padding = (int) (-length & 7);
+        length += padding;
+        for (int v = 0; v < n; v++) {
+            length += 8L * network.getTable(v).length;
+        }
+        length += 4L * n;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Network is too large for a single " + EXTENSION + " file: " + length + " bytes");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(sourceSize).putLong(sourceModified).putInt(n);
+        for (int v = 0; v < n; v++) {
+            putString(buffer, names[v]);
+            buffer.putInt(outcomes[v].length);
+            for (byte[] outcome : outcomes[v]) {
+                putString(buffer, outcome);
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            int[] parents = network.getParents(v);
+            buffer.putInt(parents.length);
+            for (int parent : parents) {
+                buffer.putInt(parent);
+            }
+        }
+        buffer.position(buffer.position() + padding);
+        for (int v = 0; v < n; v++) {
+            for (double p : network.getTable(v)) {
+                buffer.putDouble(p);
+            }
+        }
+        for (int var : network.getTopologicalOrder()) {
+            buffer.putInt(var);
+        }
+        buffer.flip();
+
+        // Written next to the target and moved into place, so readers never see half a file
+        Path absolute = out.toAbsolutePath();
+        Path temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static CompiledNetwork read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException(file + " is not a version " + VERSION + " " + EXTENSION + " file");
+            }
+            buffer.position(buffer.position() + 16);    // source stamp, checked by isFresh
+            int n = getCount(buffer, file);
+
+            String[] names = new String[n];
+            String[][] outcomes = new String[n][];
+            for (int v = 0; v < n; v++) {
+                names[v] = getString(buffer, file);
+                outcomes[v] = new String[getCount(buffer, file)];
+                for (int k = 0; k < outcomes[v].length; k++) {
+                    outcomes[v][k] = getString(buffer, file);
+                }
+            }
+
+            int[][] parents = new int[n][];
+            for (int v = 0; v < n; v++) {
+                parents[v] = new int[getCount(buffer, file)];
+                for (int i = 0; i < parents[v].length; i++) {
+                    parents[v][i] = getId(buffer, n, file);
+                }
+            }
+
+            buffer.position(buffer.position() + (-buffer.position() & 7));
+            DoubleBuffer doubles = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            double[][] tables = new double[n][];
+            for (int v = 0; v < n; v++) {
+                long size = outcomes[v].length;
+                for (int parent : parents[v]) {
+                    size *= outcomes[parent].length;
+                }
+                if (size > doubles.remaining()) {
+                    throw new IOException(file + " is truncated in the CPT of " + names[v]);
+                }
+                tables[v] = new double[(int) size];
+                doubles.get(tables[v]);
+            }
+            buffer.position(buffer.position() + 8 * doubles.position());
+
+            int[] topologicalOrder = new int[n];
+            int[] position = new int[n];
+            Arrays.fill(position, -1);
+            for (int i = 0; i < n; i++) {
+                topologicalOrder[i] = getId(buffer, n, file);
+                position[topologicalOrder[i]] = i;
+            }
+            for (int v = 0; v < n; v++) {
+                boolean valid = position[v] != -1;
+                for (int parent : parents[v]) {
+                    valid &= position[parent] < position[v];
+                }
+                if (!valid) {
+                    throw new IOException(file + " has an invalid topological order");
+                }
+            }
+
+            return new CompiledNetwork(names, outcomes, parents, tables, topologicalOrder);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + " is truncated", e);
+        }
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] utf8) {
+        buffer.putInt(utf8.length).put(utf8);
+    }
+
+    private static String getString(ByteBuffer buffer, Path file) throws IOException {
+        byte[] utf8 = new byte[getCount(buffer, file)];
+        buffer.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    // A length or count, which must fit in what is left of the file
+    private static int getCount(ByteBuffer buffer, Path file) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IOException(file + " has an invalid length " + count + " at byte " + (buffer.position() - 4));
+        }
+        return count;
+    }
+
+    private static int getId(ByteBuffer buffer, int n, Path file) throws IOException {
+        int id = buffer.getInt();
+        if (id < 0 || id >= n) {
+            throw new IOException(file + " refers to variable id " + id + " of " + n);
+        }
+        return id;
+    }
+}
@@ -1,13 +1,21 @@
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.File;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.*;
 
+/**
+ * Reads an XMLBIF file in one streaming pass. Variables and CPTs are built as their elements
+ * end, and TABLE numbers are tokenized straight from the parser's character buffers, so no
+ * document tree or per-number strings are kept. Every table length is checked against the
+ * cardinalities of its family once the whole file has been read.
+ */
 public class NetworkParser {
+    private static final int INPUT_BUFFER_SIZE = 1 << 16;
+
     private final Map<String, Variable> variables;
     private final Map<String, CPT> cpts;
 
@@ -17,52 +25,127 @@ public class NetworkParser {
     }
 
     public void parse(String fileName) throws Exception {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document doc = builder.parse(new File(fileName));
-        doc.getDocumentElement().normalize();
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(fileName), INPUT_BUFFER_SIZE)) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                parseDocument(reader);
+            } finally {
+                reader.close();
+            }
+        }
+        validateTables();
+    }
 
-        parseVariables(doc);
-        parseCPTs(doc);
+    private void parseDocument(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            switch (reader.getLocalName()) {
+                case "VARIABLE":
+                    parseVariable(reader);
+                    break;
+                case "DEFINITION":
+                    parseDefinition(reader);
+                    break;
+                default:
+                    break;
+            }
+        }
     }
 
-    private void parseVariables(Document doc) {
-        NodeList variableNodes = doc.getElementsByTagName("VARIABLE");
-        for (int i = 0; i < variableNodes.getLength(); i++) {
-            Node node = variableNodes.item(i);
-            if (node.getNodeType() == Node.ELEMENT_NODE) {
-                Element element = (Element) node;
-                String name = element.getElementsByTagName("NAME").item(0).getTextContent().trim();
-                NodeList outcomeNodes = element.getElementsByTagName("OUTCOME");
-                List<String> outcomes = new ArrayList<>(outcomeNodes.getLength());
-                for (int j = 0; j < outcomeNodes.getLength(); j++) {
-                    outcomes.add(outcomeNodes.item(j).getTextContent().trim());
+    private void parseVariable(XMLStreamReader reader) throws XMLStreamException {
+        String name = null;
+        List<String> outcomes = new ArrayList<>();
+        for (int depth = 1; depth > 0; ) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String tag = reader.getLocalName();
+                if (tag.equals("NAME") && name == null) {
+                    name = reader.getElementText().trim();
+                } else if (tag.equals("OUTCOME")) {
+                    outcomes.add(reader.getElementText().trim());
+                } else {
+                    depth++;
                 }
-                variables.put(name, new Variable(name, outcomes));
             }
         }
+        if (name == null) {
+            throw new IllegalStateException("VARIABLE without a NAME at line " + reader.getLocation().getLineNumber());
+        }
+        variables.put(name, new Variable(variables.size(), name, outcomes));
     }
 
-    private void parseCPTs(Document doc) {
-        NodeList definitionNodes = doc.getElementsByTagName("DEFINITION");
-        for (int i = 0; i < definitionNodes.getLength(); i++) {
-            Node node = definitionNodes.item(i);
-            if (node.getNodeType() == Node.ELEMENT_NODE) {
-                Element element = (Element) node;
-                String variableName = element.getElementsByTagName("FOR").item(0).getTextContent().trim();
-                NodeList givenNodes = element.getElementsByTagName("GIVEN");
-                List<String> parents = new ArrayList<>(givenNodes.getLength());
-                for (int j = 0; j < givenNodes.getLength(); j++) {
-                    parents.add(givenNodes.item(j).getTextContent().trim());
+    private void parseDefinition(XMLStreamReader reader) throws XMLStreamException {
+        String variableName = null;
+        List<String> parents = new ArrayList<>();
+        double[] table = null;
+        for (int depth = 1; depth > 0; ) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String tag = reader.getLocalName();
+                if (tag.equals("FOR") && variableName == null) {
+                    variableName = reader.getElementText().trim();
+                } else if (tag.equals("GIVEN")) {
+                    parents.add(reader.getElementText().trim());
+                } else if (tag.equals("TABLE") && table == null) {
+                    table = parseTable(reader);
+                } else {
+                    depth++;
                 }
+            }
+        }
+        if (variableName == null || table == null) {
+            throw new IllegalStateException("DEFINITION without a FOR or TABLE at line " + reader.getLocation().getLineNumber());
+        }
+        cpts.put(variableName, new CPT(variableName, parents, table, variables));
+    }
+
+    // Reads the whitespace-separated numbers of a TABLE element, leaving the reader on its end tag
+    private double[] parseTable(XMLStreamReader reader) throws XMLStreamException {
+        NumberTokenizer tokenizer = new NumberTokenizer();
+        while (true) {
+            int event = reader.next();
+            switch (event) {
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    tokenizer.feed(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    return tokenizer.finish();
+                case XMLStreamConstants.START_ELEMENT:
+                    throw new IllegalStateException("Unexpected <" + reader.getLocalName() + "> inside TABLE at line "
+                            + reader.getLocation().getLineNumber());
+                default:
+                    break;  // comments and processing instructions
+            }
+        }
+    }
 
-                String tableStr = element.getElementsByTagName("TABLE").item(0).getTextContent().trim();
-                String[] tableValues = tableStr.split("\\s+");
-                double[] table = new double[tableValues.length];
-                for (int j = 0; j < tableValues.length; j++) {
-                    table[j] = Double.parseDouble(tableValues[j]);
+    private void validateTables() {
+        for (CPT cpt : cpts.values()) {
+            Variable variable = variables.get(cpt.getVariableName());
+            if (variable == null) {
+                throw new IllegalStateException("DEFINITION for undeclared variable " + cpt.getVariableName());
+            }
+            long expected = variable.getValues().size();
+            for (String parent : cpt.getParents()) {
+                Variable parentVariable = variables.get(parent);
+                if (parentVariable == null) {
+                    throw new IllegalStateException("Unknown parent " + parent + " of " + cpt.getVariableName());
                 }
-                cpts.put(variableName, new CPT(variableName, parents, table, variables));
+                expected *= parentVariable.getValues().size();
+            }
+            if (cpt.getTable().length != expected) {
+                throw new IllegalStateException("CPT for " + cpt.getVariableName() + " has " + cpt.getTable().length
+                        + " entries, expected " + expected);
             }
         }
     }
@@ -74,4 +157,114 @@ public class NetworkParser {
     public Map<String, CPT> getCPTs() {
         return cpts;
     }
-}
\ No newline at end of file
+
+    /**
+     * Splits character chunks into numbers. A token may span chunks, so its characters are
+     * gathered in a reusable buffer and parsed from there. Plain decimals with at most 15
+     * significant digits and a small exponent are parsed directly: the digits and the power
+     * of ten are both exact doubles, so the single multiply or divide rounds exactly as
+     * Double.parseDouble does. Anything else is handed to Double.parseDouble.
+     */
+    private static final class NumberTokenizer {
+        private static final double[] POWERS_OF_TEN = {
+                1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+        private static final int MAX_EXACT_DIGITS = 15;
+
+        private char[] token = new char[32];     // the current token, which may span several chunks
+        private int tokenLength;
+        private double[] values = new double[16];
+        private int count;
+
+        void feed(char[] chars, int start, int length) {
+            for (int i = start, end = start + length; i < end; i++) {
+                char c = chars[i];
+                if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B') {
+                    endToken();
+                } else {
+                    if (tokenLength == token.length) {
+                        token = Arrays.copyOf(token, 2 * tokenLength);
+                    }
+                    token[tokenLength++] = c;
+                }
+            }
+        }
+
+        double[] finish() {
+            endToken();
+            return Arrays.copyOf(values, count);
+        }
+
+        private void endToken() {
+            if (tokenLength == 0) {
+                return;
+            }
+            if (count == values.length) {
+                values = Arrays.copyOf(values, 2 * count);
+            }
+            values[count++] = parse(token, tokenLength);
+            tokenLength = 0;
+        }
+
+        private static double parse(char[] s, int length) {
+            int i = 0;
+            boolean negative = false;
+            if (s[0] == '-' || s[0] == '+') {
+                negative = s[0] == '-';
+                i++;
+            }
+
+            long digits = 0;
+            int significant = 0;
+            int scale = 0;              // digits after the decimal point
+            boolean anyDigit = false;
+            boolean point = false;
+            for (; i < length; i++) {
+                char c = s[i];
+                if (c >= '0' && c <= '9') {
+                    anyDigit = true;
+                    if (significant > 0 || c != '0') {
+                        significant++;
+                    }
+                    digits = digits * 10 + (c - '0');
+                    if (point) {
+                        scale++;
+                    }
+                    if (significant > MAX_EXACT_DIGITS) {
+                        return Double.parseDouble(new String(s, 0, length));
+                    }
+                } else if (c == '.' && !point) {
+                    point = true;
+                } else {
+                    break;
+                }
+            }
+
+            int exponent = 0;
+            if (anyDigit && i < length && (s[i] == 'e' || s[i] == 'E')) {
+                int j = i + 1;
+                boolean negativeExponent = false;
+                if (j < length && (s[j] == '-' || s[j] == '+')) {
+                    negativeExponent = s[j] == '-';
+                    j++;
+                }
+                int start = j;
+                for (; j < length && s[j] >= '0' && s[j] <= '9' && exponent < 1000; j++) {
+                    exponent = exponent * 10 + (s[j] - '0');
+                }
+                if (j > start) {
+                    i = j;
+                    exponent = negativeExponent ? -exponent : exponent;
+                }
+            }
+
+            int power = exponent - scale;
+            if (!anyDigit || i != length || power < -22 || power > 22) {
+                return Double.parseDouble(new String(s, 0, length));
+            }
+            double value = power >= 0 ? digits * POWERS_OF_TEN[power] : digits / POWERS_OF_TEN[-power];
+            return negative ? -value : value;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+// Stages whose wall time is reported to an Instrumentation
+public enum Phase {
+    PARSE("parse"),             // loading the network, once per BayesianNetwork
+    RESTRICT("restrict"),       // building the CPT factors and applying the evidence
+    ORDER("order"),             // relevance analysis and choosing the elimination order
+    ELIMINATE("eliminate"),     // summing out hidden variables: elimination, enumeration or calibration
+    SAMPLE("sample"),           // drawing samples, algorithms 5 and 6
+    NORMALIZE("normalize");     // dividing by P(evidence) and reading off the answer
+
+    private final String label;
+
+    Phase(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,74 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of elimination plans by query signature: the query variables, the
+ * evidence variables without their values, and the heuristic (null for ABC order). Plans
+ * are immutable, so they are shared rather than copied.
+ */
+final class PlanCache {
+    private final int capacity;
+    private final LinkedHashMap<Key, EliminationPlan> entries;
+
+    PlanCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Plan cache capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Key, EliminationPlan>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, EliminationPlan> eldest) {
+                return size() > PlanCache.this.capacity;
+            }
+        };
+    }
+
+    // Plans are built outside the lock; two threads racing on a new signature build equal plans
+    EliminationPlan get(CompiledNetwork network, int[] queryVars, int[] evidenceVars, EliminationHeuristic heuristic) {
+        Key key = new Key(queryVars, evidenceVars, heuristic);
+        synchronized (this) {
+            EliminationPlan plan = entries.get(key);
+            if (plan != null) {
+                return plan;
+            }
+        }
+        EliminationPlan plan = EliminationPlan.of(network, queryVars, evidenceVars, heuristic);
+        synchronized (this) {
+            entries.put(key, plan);
+        }
+        return plan;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static final class Key {
+        private final int[] queryVars;
+        private final int[] evidenceVars;
+        private final EliminationHeuristic heuristic;
+
+        Key(int[] queryVars, int[] evidenceVars, EliminationHeuristic heuristic) {
+            this.queryVars = queryVars;
+            this.evidenceVars = evidenceVars;
+            this.heuristic = heuristic;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return Arrays.equals(queryVars, other.queryVars)
+                    && Arrays.equals(evidenceVars, other.evidenceVars)
+                    && heuristic == other.heuristic;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 31 * Arrays.hashCode(queryVars) + Arrays.hashCode(evidenceVars);
+            return 31 * result + (heuristic == null ? 0 : heuristic.ordinal());
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.Arrays;
+
+/**
+ * Posterior distribution of one or more query variables given the evidence, from a single
+ * inference pass. Probabilities are laid out like a CPT: one entry per joint assignment of
+ * the variables in the order they were asked for, the last variable changing fastest.
+ */
+public final class Posterior {
+    private final CompiledNetwork network;
+    private final int[] variables;
+    private final double[] probabilities;
+    private final int additions;
+    private final int multiplications;
+
+    Posterior(CompiledNetwork network, int[] variables, double[] probabilities, int additions, int multiplications) {
+        this.network = network;
+        this.variables = variables;
+        this.probabilities = probabilities;
+        this.additions = additions;
+        this.multiplications = multiplications;
+    }
+
+    public int getVariableCount() {
+        return variables.length;
+    }
+
+    public String getVariable(int i) {
+        return network.getName(variables[i]);
+    }
+
+    public int getCardinality(int i) {
+        return network.getCardinality(variables[i]);
+    }
+
+    public String getOutcome(int i, int value) {
+        return network.getOutcome(variables[i], value);
+    }
+
+    public int size() {
+        return probabilities.length;
+    }
+
+    // Entry in table order, see the class comment
+    public double getProbability(int index) {
+        return probabilities[index];
+    }
+
+    // Probability of the given outcome of every query variable, in query order
+    public double getProbability(String... outcomes) {
+        if (outcomes.length != variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + " outcomes, got " + outcomes.length);
+        }
+        int index = 0;
+        for (int i = 0; i < variables.length; i++) {
+            index = index * network.getCardinality(variables[i]) + network.getOutcomeIndex(variables[i], outcomes[i]);
+        }
+        return probabilities[index];
+    }
+
+    public double[] getProbabilities() {
+        return Arrays.copyOf(probabilities, probabilities.length);
+    }
+
+    public int getAdditions() {
+        return additions;
+    }
+
+    public int getMultiplications() {
+        return multiplications;
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * P(Q1,Q2,...|E1=e1,...) resolved against a {@link CompiledNetwork}: the query variables in
+ * the order they were asked for, and the evidence as a joint {@link Query}.
+ */
+final class PosteriorQuery {
+    final int[] queryVars;
+    final Query evidence;
+
+    PosteriorQuery(int[] queryVars, Query evidence) {
+        this.queryVars = queryVars;
+        this.evidence = evidence;
+    }
+
+    // Number of joint assignments of the query variables
+    int tableSize(CompiledNetwork network) {
+        int size = 1;
+        for (int var : queryVars) {
+            size *= network.getCardinality(var);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * A query signature such as P(B|J,M), compiled once for variable elimination: the requisite
+ * CPTs, the elimination order and every multiply and sum-out step. Executing it with the
+ * observed values only runs the factor kernels. Prepared queries are immutable and may be
+ * executed from any number of threads.
+ */
+public final class PreparedQuery {
+    private final InferenceEngine engine;
+    private final CompiledNetwork network;
+    private final String signature;
+    final int algorithm;
+    final int[] queryVars;              // in signature order
+    final int[] evidenceVars;           // ascending ids, as a Query keeps them
+    private final int[] evidencePosition;   // signature position of each entry of evidenceVars
+    final EliminationPlan plan;         // null when the answer is a row of the query variable's CPT
+
+    PreparedQuery(InferenceEngine engine, CompiledNetwork network, String signature, int algorithm, int[] queryVars,
+                  int[] evidenceVars, int[] evidencePosition, EliminationPlan plan) {
+        this.engine = engine;
+        this.network = network;
+        this.signature = signature;
+        this.algorithm = algorithm;
+        this.queryVars = queryVars;
+        this.evidenceVars = evidenceVars;
+        this.evidencePosition = evidencePosition;
+        this.plan = plan;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+
+    public int getEvidenceCount() {
+        return evidenceVars.length;
+    }
+
+    // Expected cost of every execution; a CPT lookup costs nothing
+    public CostEstimate getCost() {
+        return plan == null ? new CostEstimate(0, 0, 0, 0) : plan.cost;
+    }
+
+    // Posterior of the query variables given one outcome per evidence variable, in signature order
+    public Posterior execute(String... outcomes) {
+        if (outcomes.length != evidenceVars.length) {
+            throw new IllegalArgumentException("Expected " + evidenceVars.length + " evidence outcomes for " + signature
+                    + ", got " + outcomes.length);
+        }
+        int[] values = new int[evidenceVars.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = network.getOutcomeIndex(evidenceVars[i], outcomes[evidencePosition[i]]);
+        }
+        return engine.execute(this, new Query(-1, -1, evidenceVars, values));
+    }
+
+    @Override
+    public String toString() {
+        return signature;
+    }
+}
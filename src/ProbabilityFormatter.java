@@ -0,0 +1,94 @@
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Writes doubles exactly as {@code new DecimalFormat("0.00000")} would, straight into a char
+ * buffer. Fused multiply-adds give the exact sign of value * 10^5 minus the rounding
+ * boundaries, which settles every value that is not within a few ulps of a tie. Near a tie
+ * DecimalFormat's answer depends on the shortest decimal representation of the double, so
+ * those rare values are handed to DecimalFormat itself. Not thread-safe: keep one instance
+ * per writer.
+ */
+final class ProbabilityFormatter {
+    static final int DECIMALS = 5;
+    private static final double SCALE = 1e5;
+    private static final long SCALE_LONG = 100_000L;
+
+    // Above this, value * 10^5 might not fit the exact integer range of a double
+    private static final double FAST_PATH_LIMIT = 1e10;
+
+    private final char zeroDigit;
+    private final char decimalSeparator;
+    private final char[] negativePrefix;
+    private final DecimalFormat fallback;   // NaN, infinities and huge values
+
+    ProbabilityFormatter() {
+        DecimalFormat format = new DecimalFormat("0.00000");
+        DecimalFormatSymbols symbols = format.getDecimalFormatSymbols();
+        this.zeroDigit = symbols.getZeroDigit();
+        this.decimalSeparator = symbols.getDecimalSeparator();
+        this.negativePrefix = format.getNegativePrefix().toCharArray();
+        this.fallback = format;
+    }
+
+    // Longest possible output: sign prefix, the 309 integer digits of Double.MAX_VALUE, separator, decimals
+    static final int MAX_LENGTH = 4 + 309 + 1 + DECIMALS;
+
+    // Formats value into dest starting at offset and returns the offset after the last char.
+    // dest needs MAX_LENGTH free chars, although only the rare fallback path gets near that.
+    int format(double value, char[] dest, int offset) {
+        double magnitude = Math.abs(value);
+        if (!(magnitude < FAST_PATH_LIMIT)) {
+            String text = fallback.format(value);
+            text.getChars(0, text.length(), dest, offset);
+            return offset + text.length();
+        }
+
+        // n = floor(magnitude * 10^5), corrected against the exact product
+        long n = (long) (magnitude * SCALE);
+        while (n > 0 && Math.fma(magnitude, SCALE, -n) < 0) {
+            n--;
+        }
+        while (Math.fma(magnitude, SCALE, -(n + 1)) >= 0) {
+            n++;
+        }
+        double remainder = Math.fma(magnitude, SCALE, -(n + 0.5));
+        if (Math.abs(remainder) <= 2 * SCALE * Math.ulp(magnitude)) {
+            String text = fallback.format(value);
+            text.getChars(0, text.length(), dest, offset);
+            return offset + text.length();
+        }
+        if (remainder > 0) {
+            n++;
+        }
+
+        // DecimalFormat keeps the sign of negative values, even when they round to zero
+        if (value < 0 || (value == 0 && 1 / value < 0)) {
+            System.arraycopy(negativePrefix, 0, dest, offset, negativePrefix.length);
+            offset += negativePrefix.length;
+        }
+
+        long integerPart = n / SCALE_LONG;
+        long fraction = n % SCALE_LONG;
+        offset = writeDigits(integerPart, dest, offset);
+        dest[offset++] = decimalSeparator;
+        for (int i = DECIMALS - 1; i >= 0; i--) {
+            dest[offset + i] = (char) (zeroDigit + fraction % 10);
+            fraction /= 10;
+        }
+        return offset + DECIMALS;
+    }
+
+    // Writes a non-negative number in locale digits and returns the offset after the last one
+    private int writeDigits(long number, char[] dest, int offset) {
+        int length = 1;
+        for (long rest = number / 10; rest > 0; rest /= 10) {
+            length++;
+        }
+        for (int i = offset + length - 1; i >= offset; i--) {
+            dest[i] = (char) (zeroDigit + number % 10);
+            number /= 10;
+        }
+        return offset + length;
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.Arrays;
+
+/**
+ * A query resolved against a {@link CompiledNetwork}. Evidence is kept sorted by
+ * variable id, so two spellings of the same query compile to equal objects.
+ * Joint queries have no query variable and carry all their assignments as evidence.
+ */
+final class Query {
+    final int queryVar;          // -1 for a joint query
+    final int queryValue;
+    final int[] evidenceVars;    // ascending variable ids
+    final int[] evidenceValues;
+
+    Query(int queryVar, int queryValue, int[] evidenceVars, int[] evidenceValues) {
+        this.queryVar = queryVar;
+        this.queryValue = queryValue;
+        this.evidenceVars = evidenceVars;
+        this.evidenceValues = evidenceValues;
+    }
+
+    boolean isJoint() {
+        return queryVar == -1;
+    }
+
+    // Full-width assignment array with -1 for every unassigned variable
+    int[] toAssignment(int size) {
+        int[] assignment = new int[size];
+        Arrays.fill(assignment, -1);
+        for (int i = 0; i < evidenceVars.length; i++) {
+            assignment[evidenceVars[i]] = evidenceValues[i];
+        }
+        if (queryVar != -1) {
+            assignment[queryVar] = queryValue;
+        }
+        return assignment;
+    }
+
+    boolean isEvidence(int var) {
+        return Arrays.binarySearch(evidenceVars, var) >= 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Query)) return false;
+        Query other = (Query) o;
+        return queryVar == other.queryVar
+                && queryValue == other.queryValue
+                && Arrays.equals(evidenceVars, other.evidenceVars)
+                && Arrays.equals(evidenceValues, other.evidenceValues);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 31 * queryVar + queryValue;
+        result = 31 * result + Arrays.hashCode(evidenceVars);
+        result = 31 * result + Arrays.hashCode(evidenceValues);
+        return result;
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of query results. Keys are compiled {@link Query} objects plus the
+ * algorithm number and elimination heuristic (null when it does not apply), so evidence
+ * written in a different order hits the same entry.
+ * Results are copied in and out because {@link Result} is mutable.
+ */
+final class QueryCache {
+    private final int capacity;
+    private final LinkedHashMap<Key, Result> entries;
+    private long hits;
+    private long misses;
+
+    QueryCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+                return size() > QueryCache.this.capacity;
+            }
+        };
+    }
+
+    synchronized Result get(Query query, int algorithm, EliminationHeuristic heuristic) {
+        Result result = entries.get(new Key(query, algorithm, heuristic));
+        if (result == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return copy(result);
+    }
+
+    synchronized void put(Query query, int algorithm, EliminationHeuristic heuristic, Result result) {
+        entries.put(new Key(query, algorithm, heuristic), copy(result));
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    private static Result copy(Result result) {
+        return new Result(result.probability, result.additions, result.multiplications, result.standardError);
+    }
+
+    private static final class Key {
+        private final Query query;
+        private final int algorithm;
+        private final EliminationHeuristic heuristic;
+
+        Key(Query query, int algorithm, EliminationHeuristic heuristic) {
+            this.query = query;
+            this.algorithm = algorithm;
+            this.heuristic = heuristic;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return algorithm == other.algorithm && heuristic == other.heuristic && query.equals(other.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * query.hashCode() + algorithm) + (heuristic == null ? 0 : heuristic.ordinal());
+        }
+    }
+}
@@ -1,12 +1,10 @@
 import java.util.*;
 
 public class QueryProcessor {
-    private final NetworkStructure networkStructure;
-    private final Map<String, CPT> cpts;
+    private final CompiledNetwork network;
 
-    public QueryProcessor(NetworkStructure networkStructure, Map<String, CPT> cpts) {
-        this.networkStructure = networkStructure;
-        this.cpts = cpts;
+    public QueryProcessor(CompiledNetwork network) {
+        this.network = network;
     }
 
     public Map<String, String> parseAssignments(String query) {
@@ -28,72 +26,115 @@ public class QueryProcessor {
         return assignments;
     }
 
-    public String assignmentsToString(Map<String, String> assignments) {
-        StringBuilder sb = new StringBuilder();
-        boolean first = true;
-
-        for (Map.Entry<String, String> entry : assignments.entrySet()) {
-            if (!first) {
-                sb.append(",");
-            }
-            sb.append(entry.getKey()).append("=").append(entry.getValue());
-            first = false;
-        }
-
-        return sb.toString();
+    // P(A=a,B=b,...) -> joint query with every assignment stored as evidence
+    Query parseJoint(String query) {
+        Map<String, String> assignments = parseAssignments(query);
+        int[][] evidence = compileAssignments(assignments);
+        return new Query(-1, -1, evidence[0], evidence[1]);
     }
 
-    public boolean isDirectlyInCPT(String query) {
+    // P(Q=q|E1=e1,...) -> conditional query, the algorithm suffix must already be stripped
+    Query parseConditional(String query) {
         String[] parts = query.split("\\|");
-        if (parts.length != 2) return false;
+        String queryPart = parts[0].substring(2, parts[0].length());
+        String evidencePart = parts.length > 1 ? parts[1].substring(0, parts[1].length() - 1) : "";
 
-        String queryPart = parts[0].trim();
-        String evidencePart = parts[1].trim();
+        Map<String, String> queryAssignment = parseAssignments("P(" + queryPart + ")");
+        Map<String, String> evidenceAssignments = parseAssignments("P(" + evidencePart + ")");
+        if (queryAssignment.isEmpty()) {
+            throw new IllegalArgumentException("queryAssignment is empty, cannot perform inference");
+        }
 
-        String queryStr = queryPart.substring(2, queryPart.length() - 1);
-        String[] queryVarVal = queryStr.split("=");
-        String queryVar = queryVarVal[0].trim();
+        Map.Entry<String, String> queryEntry = queryAssignment.entrySet().iterator().next();
+        int queryVar = network.getId(queryEntry.getKey());
+        int queryValue = network.getOutcomeIndex(queryVar, queryEntry.getValue());
 
-        String[] evidenceStrs = evidencePart.substring(0, evidencePart.length() - 1).split(",");
-        Map<String, String> evidenceMap = new HashMap<>();
-        for (String evidence : evidenceStrs) {
-            String[] evidenceVarVal = evidence.split("=");
-            evidenceMap.put(evidenceVarVal[0].trim(), evidenceVarVal[1].trim());
-        }
+        int[][] evidence = compileAssignments(evidenceAssignments);
+        return new Query(queryVar, queryValue, evidence[0], evidence[1]);
+    }
 
-        CPT cpt = cpts.get(queryVar);
-        if (cpt == null) return false;
+    // P(Q1,Q2,...|E1=e1,...) -> query variables in the given order, evidence as a joint query
+    PosteriorQuery parsePosterior(String query) {
+        String[] parts = query.split("\\|");
+        String queryPart = parts[0].substring(2, parts.length > 1 ? parts[0].length() : parts[0].length() - 1);
+        String evidencePart = parts.length > 1 ? parts[1].substring(0, parts[1].length() - 1) : "";
+
+        int[] queryVars = parseVariables(queryPart, query);
+        int[][] evidence = compileAssignments(parseAssignments("P(" + evidencePart + ")"));
+        Query evidenceQuery = new Query(-1, -1, evidence[0], evidence[1]);
+        for (int var : queryVars) {
+            if (evidenceQuery.isEvidence(var)) {
+                throw new IllegalArgumentException("Variable " + network.getName(var) + " is both queried and observed: " + query);
+            }
+        }
+        return new PosteriorQuery(queryVars, evidenceQuery);
+    }
 
-        List<String> parents = cpt.getParents();
-        if (parents.size() != evidenceMap.size()) return false;
+    // P(Q1,Q2,...|E1,E2,...) -> {query variables, evidence variables}, both in the given order
+    int[][] parseSignature(String signature) {
+        String[] parts = signature.split("\\|");
+        if (parts.length > 2 || !parts[0].startsWith("P(") || !signature.endsWith(")")) {
+            throw new IllegalArgumentException("Invalid query signature: " + signature);
+        }
+        String queryPart = parts[0].substring(2, parts.length > 1 ? parts[0].length() : parts[0].length() - 1);
+        String evidencePart = parts.length > 1 ? parts[1].substring(0, parts[1].length() - 1) : "";
+
+        int[] queryVars = parseVariables(queryPart, signature);
+        int[] evidenceVars = evidencePart.trim().isEmpty() ? new int[0] : parseVariables(evidencePart, signature);
+        for (int var : queryVars) {
+            for (int evidenceVar : evidenceVars) {
+                if (var == evidenceVar) {
+                    throw new IllegalArgumentException("Variable " + network.getName(var) + " is both queried and observed: "
+                            + signature);
+                }
+            }
+        }
+        return new int[][]{queryVars, evidenceVars};
+    }
 
-        return evidenceMap.keySet().containsAll(parents);
+    // Comma-separated variable names without values, each listed once
+    private int[] parseVariables(String list, String query) {
+        String[] names = list.split(",");
+        int[] vars = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim();
+            if (name.isEmpty() || name.contains("=")) {
+                throw new IllegalArgumentException("Expected variables without values: " + query);
+            }
+            vars[i] = network.getId(name);
+            for (int j = 0; j < i; j++) {
+                if (vars[j] == vars[i]) {
+                    throw new IllegalArgumentException("Variable " + name + " is listed twice: " + query);
+                }
+            }
+        }
+        return vars;
     }
 
-    public List<Map<String, String>> generateAllAssignments(List<String> vars) {
-        List<Map<String, String>> allAssignments = new ArrayList<>();
+    private int[][] compileAssignments(Map<String, String> assignments) {
+        int[] vars = new int[assignments.size()];
+        int i = 0;
+        for (String name : assignments.keySet()) {
+            vars[i++] = network.getId(name);
+        }
+        Arrays.sort(vars);
 
-        if (vars.isEmpty()) {
-            allAssignments.add(new HashMap<>());
-            return allAssignments;
+        int[] values = new int[vars.length];
+        for (i = 0; i < vars.length; i++) {
+            values[i] = network.getOutcomeIndex(vars[i], assignments.get(network.getName(vars[i])));
         }
+        return new int[][]{vars, values};
+    }
 
-        // Take first variable
-        String firstVar = vars.get(0);
-        List<String> remainingVars = vars.subList(1, vars.size());
+    public boolean isDirectlyInCPT(Query query) {
+        if (query.isJoint()) return false;
 
-        // Generate all assignments for remaining variables
-        List<Map<String, String>> subAssignments = generateAllAssignments(remainingVars);
+        int[] parents = network.getParents(query.queryVar);
+        if (parents.length != query.evidenceVars.length) return false;
 
-        // Add each possible value of first variable to each assignment
-        for (String value : networkStructure.getVariables().get(firstVar).getValues()) {
-            for (Map<String, String> assignment : subAssignments) {
-                Map<String, String> newAssignment = new HashMap<>(assignment);
-                newAssignment.put(firstVar, value);
-                allAssignments.add(newAssignment);
-            }
+        for (int parent : parents) {
+            if (!query.isEvidence(parent)) return false;
         }
-
-        return allAssignments;
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,195 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Answers streams in the input.txt line format. When serving, a line that is not a query
+ * names the XML file of the network for the queries after it; each file is loaded once and
+ * shared by every stream. Every query gets exactly one output line, in input order, while up to
+ * maxInFlight queries are answered ahead on the executor. Output is flushed whenever the
+ * input has nothing more ready, so a client can send one query at a time or pipeline them.
+ */
+final class QueryServer {
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    interface NetworkLoader {
+        BayesianNetwork load(String fileName) throws Exception;
+    }
+
+    private final NetworkLoader loader;
+    private final EliminationHeuristic heuristic;
+    private final ExecutorService executor;     // null answers every query on the reading thread
+    private final int maxInFlight;
+    private final ConcurrentHashMap<String, FutureTask<BayesianNetwork>> networks = new ConcurrentHashMap<>();
+
+    QueryServer(NetworkLoader loader, EliminationHeuristic heuristic, ExecutorService executor, int maxInFlight) {
+        this.loader = loader;
+        this.heuristic = heuristic;
+        this.executor = executor;
+        this.maxInFlight = executor == null ? 1 : maxInFlight;
+    }
+
+    // The network in the given file, parsed the first time any stream asks for it. Only callers
+    // of the same file wait for the load; a load that fails is forgotten so the next caller retries.
+    BayesianNetwork network(String fileName) throws Exception {
+        FutureTask<BayesianNetwork> load = networks.computeIfAbsent(fileName,
+                name -> new FutureTask<>(() -> loader.load(name)));
+        load.run();
+        try {
+            return load.get();
+        } catch (ExecutionException e) {
+            networks.remove(fileName, load);
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Answers one stream, starting with the given network (null for none). In a batch every
+     * line is a query, and the first one that fails ends the stream with its exception, except
+     * that a query over the memory budget only gets its error line. Otherwise a line that does
+     * not start with "P(" names the network for the queries after it, and a failure is written
+     * as "ERROR message" in place of the answer while the stream goes on. A network line that
+     * fails is reported by the queries after it.
+     */
+    void answer(BufferedReader in, ResultWriter out, BayesianNetwork network, boolean batch) throws Exception {
+        ArrayDeque<Future<Result>> inFlight = new ArrayDeque<>(maxInFlight);
+        Exception unavailable = network == null ? new IllegalStateException("No network selected") : null;
+        String line;
+        while ((line = in.readLine()) != null) {
+            String request = line.trim();
+            if (request.isEmpty()) {
+                continue;
+            }
+            if (!batch && !request.startsWith("P(")) {
+                try {
+                    network = network(request);
+                    unavailable = null;
+                } catch (Exception e) {
+                    network = null;
+                    unavailable = new IllegalStateException("Cannot load " + request + ": " + e.getMessage(), e);
+                }
+                continue;
+            }
+
+            if (inFlight.size() == maxInFlight) {
+                write(out, inFlight.poll(), batch);
+            }
+            inFlight.add(submit(request, network, unavailable));
+            if (!in.ready()) {
+                while (!inFlight.isEmpty()) {
+                    write(out, inFlight.poll(), batch);
+                }
+                out.flush();
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            write(out, inFlight.poll(), batch);
+        }
+        out.flush();
+    }
+
+    private Future<Result> submit(String query, BayesianNetwork network, Exception unavailable) {
+        FutureTask<Result> task = new FutureTask<>(() -> {
+            if (network == null) {
+                throw unavailable;
+            }
+            return processQuery(query, network, heuristic);
+        });
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+        return task;
+    }
+
+    private static void write(ResultWriter out, Future<Result> result, boolean failFast) throws Exception {
+        try {
+            out.write(result.get());
+        } catch (ExecutionException e) {
+            // Surface the query's own exception, as answering it directly would
+            Throwable cause = e.getCause();
+            // A query over the memory budget is rejected on its own line, even in a batch run
+            if (!failFast || cause instanceof QueryTooLargeException) {
+                out.writeError(cause.getMessage() == null ? cause.toString() : cause.getMessage());
+            } else if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else {
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    // Serves stdin and stdout until stdin ends
+    void serveStandardStreams(BayesianNetwork network) throws Exception {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), IO_BUFFER_SIZE);
+        ResultWriter out = new ResultWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8),
+                IO_BUFFER_SIZE));
+        answer(in, out, network, false);
+    }
+
+    // Serves every connection to the loopback port on its own thread until the process is stopped
+    void listen(int port, BayesianNetwork network) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+            System.err.println("Listening on " + server.getLocalSocketAddress());
+            while (true) {
+                Socket socket = server.accept();
+                Thread connection = new Thread(() -> serve(socket, network), "query-connection-" + socket.getPort());
+                connection.setDaemon(true);
+                connection.start();
+            }
+        }
+    }
+
+    private void serve(Socket socket, BayesianNetwork network) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8),
+                     IO_BUFFER_SIZE);
+             ResultWriter out = new ResultWriter(new BufferedWriter(new OutputStreamWriter(s.getOutputStream(),
+                     StandardCharsets.UTF_8), IO_BUFFER_SIZE))) {
+            answer(in, out, network, false);
+        } catch (Exception e) {
+            // A client that goes away only ends its own connection
+            System.err.println("Connection from port " + socket.getPort() + " closed: " + e);
+        }
+    }
+
+    static Result processQuery(String query, BayesianNetwork network, EliminationHeuristic heuristic) {
+        if (query.contains("|")) {
+            // Split on the last comma to correctly handle conditional queries
+            int lastCommaIndex = query.lastIndexOf(",");
+
+            if (lastCommaIndex == -1) {
+                throw new IllegalArgumentException("Invalid query format: " + query);
+            }
+
+            // Extract parts correctly
+            String conditionalQuery = query.substring(0, lastCommaIndex);
+            String algorithmString = query.substring(lastCommaIndex + 1).trim();
+
+
+            try {
+                int algorithm = Integer.parseInt(algorithmString);
+                return network.conditionalProbability(conditionalQuery, algorithm, heuristic);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Algorithm must be a valid integer: " + algorithmString);
+            }
+        } else {
+            // Joint probability query
+            return network.jointProbability(query);
+        }
+    }
+}
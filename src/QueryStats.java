@@ -0,0 +1,105 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measurements of one query, filled in by the engine while it runs and handed to
+ * {@link Instrumentation#queryFinished}. Only created while instrumentation is on.
+ */
+public final class QueryStats {
+    private final int algorithm;        // 0 for joint queries
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private long totalNanos;
+    private boolean cacheHit;
+    private int factorCount;
+    private long factorBytes;
+    private long peakFactorSize;
+    private int eliminationWidth;
+
+    QueryStats(int algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public int getAlgorithm() {
+        return algorithm;
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    // Factors the query worked with: CPT factors after evidence, intermediate and final ones
+    public int getFactorCount() {
+        return factorCount;
+    }
+
+    // Table memory of the factors the query built, shared CPT tables excluded
+    public long getFactorBytes() {
+        return factorBytes;
+    }
+
+    // Entries of the largest table the query built or, for the fused kernel, would have built
+    public long getPeakFactorSize() {
+        return peakFactorSize;
+    }
+
+    // Largest elimination scope minus one, the induced width of the order that was used
+    public int getEliminationWidth() {
+        return eliminationWidth;
+    }
+
+    // Adds the time since start to the phase and returns the current time, so phases can be chained
+    long endPhase(Phase phase, long start) {
+        long now = System.nanoTime();
+        phaseNanos[phase.ordinal()] += now - start;
+        return now;
+    }
+
+    void finish(long start) {
+        totalNanos = System.nanoTime() - start;
+    }
+
+    void cacheHit() {
+        cacheHit = true;
+    }
+
+    // A factor the query holds; built is false for factors sharing a CPT's table
+    void factor(Factor factor, boolean built) {
+        factorCount++;
+        if (built) {
+            factorBytes += factor.tableBytes();
+        }
+        peakFactorSize = Math.max(peakFactorSize, factor.getSize());
+    }
+
+    // One elimination step over the product of the given factors
+    void eliminationStep(List<Factor> factors) {
+        long size = 1;
+        int width = 0;
+        int[] seen = new int[8];
+        for (Factor factor : factors) {
+            for (int d = 0; d < factor.varIds.length; d++) {
+                boolean found = false;
+                for (int i = 0; i < width && !found; i++) {
+                    found = seen[i] == factor.varIds[d];
+                }
+                if (!found) {
+                    if (width == seen.length) {
+                        seen = Arrays.copyOf(seen, 2 * width);
+                    }
+                    seen[width++] = factor.varIds[d];
+                    size *= factor.cards[d];
+                }
+            }
+        }
+        peakFactorSize = Math.max(peakFactorSize, size);
+        eliminationWidth = Math.max(eliminationWidth, width - 1);
+    }
+}
@@ -0,0 +1,15 @@
+// Thrown instead of running a query whose plan does not fit the memory budget
+public class QueryTooLargeException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    private final CostEstimate cost;
+
+    QueryTooLargeException(String message, CostEstimate cost) {
+        super(message);
+        this.cost = cost;
+    }
+
+    public CostEstimate getCost() {
+        return cost;
+    }
+}
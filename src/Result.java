@@ -2,10 +2,16 @@ class Result {
     double probability;
     int additions;
     int multiplications;
+    double standardError;   // of a sampled estimate, NaN for exact answers
 
     public Result(double probability, int additions, int multiplications) {
+        this(probability, additions, multiplications, Double.NaN);
+    }
+
+    public Result(double probability, int additions, int multiplications, double standardError) {
         this.probability = probability;
         this.additions = additions;
         this.multiplications = multiplications;
+        this.standardError = standardError;
     }
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+// Writes "probability,additions,multiplications" lines through one reusable char buffer; sampled
+// results get their standard error as a fourth field, formatted like the probability.
+// A query the server could not answer gets an "ERROR message" line instead
+final class ResultWriter implements Closeable {
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static final int MAX_INT_LENGTH = 11;   // "-2147483648"
+
+    private final Writer out;
+    private final ProbabilityFormatter formatter = new ProbabilityFormatter();
+    private final char[] buffer = new char[2 * (1 + ProbabilityFormatter.MAX_LENGTH) + 2 * (1 + MAX_INT_LENGTH) + LINE_SEPARATOR.length()];
+
+    ResultWriter(Writer out) {
+        this.out = out;
+    }
+
+    void write(Result result) throws IOException {
+        int end = formatter.format(result.probability, buffer, 0);
+        buffer[end++] = ',';
+        end = writeInt(result.additions, end);
+        buffer[end++] = ',';
+        end = writeInt(result.multiplications, end);
+        if (!Double.isNaN(result.standardError)) {
+            buffer[end++] = ',';
+            end = formatter.format(result.standardError, buffer, end);
+        }
+        LINE_SEPARATOR.getChars(0, LINE_SEPARATOR.length(), buffer, end);
+        end += LINE_SEPARATOR.length();
+        out.write(buffer, 0, end);
+    }
+
+    void writeError(String message) throws IOException {
+        out.write("ERROR ");
+        out.write(message.replace('\r', ' ').replace('\n', ' '));
+        out.write(LINE_SEPARATOR);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    // Same characters as Integer.toString, which the counts were written with before
+    private int writeInt(int value, int offset) {
+        long rest = value;
+        if (rest < 0) {
+            buffer[offset++] = '-';
+            rest = -rest;
+        }
+        int length = 1;
+        for (long tmp = rest / 10; tmp > 0; tmp /= 10) {
+            length++;
+        }
+        for (int i = offset + length - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + rest % 10);
+            rest /= 10;
+        }
+        return offset + length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
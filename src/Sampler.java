@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs an approximate algorithm as a fixed number of independent streams, each with its own
+ * SplittableRandom split from the seed in stream order. Samples are drawn in rounds spread
+ * over the streams in parallel; after each round the estimate and its standard error are
+ * taken from the streams in order, so neither the thread count nor the scheduling changes
+ * the answer. Streams preallocate everything they touch, drawing a sample allocates nothing.
+ */
+abstract class Sampler<S extends Sampler.Stream> {
+    // Independent streams, enough to keep every core busy and fixed so results are reproducible
+    static final int STREAMS = 64;
+    // Samples per stream in each round, after which the stopping rule is checked
+    private static final int ROUND_SAMPLES = 1 << 14;
+    // Two-sided 95% normal quantile
+    private static final double Z_95 = 1.959963984540054;
+
+    final CompiledNetwork network;
+    final Query query;
+    final int[] order;      // requisite variables, parents before children
+    private final SamplingSettings settings;
+
+    Sampler(CompiledNetwork network, Query query, SamplingSettings settings) {
+        this.network = network;
+        this.query = query;
+        this.settings = settings;
+
+        // Every unobserved parent of a requisite variable is requisite too, so the order can be sampled top down
+        boolean[] requisite = BayesBall.requisiteVariables(network, query);
+        int[] vars = new int[network.size()];
+        int count = 0;
+        for (int var : network.getTopologicalOrder()) {
+            if (requisite[var]) {
+                vars[count++] = var;
+            }
+        }
+        this.order = Arrays.copyOf(vars, count);
+    }
+
+    abstract S newStream(SplittableRandom random);
+
+    abstract double estimate(List<S> streams);
+
+    abstract double standardError(List<S> streams, double estimate);
+
+    // Arithmetic done for the given number of draws, burn-in included
+    abstract long additions(long draws);
+
+    abstract long multiplications(long draws);
+
+    Result run(ForkJoinPool pool) {
+        List<S> streams = new ArrayList<>(STREAMS);
+        SplittableRandom seed = new SplittableRandom(settings.getSeed());
+        for (int i = 0; i < STREAMS; i++) {
+            streams.add(newStream(seed.split()));
+        }
+
+        long drawn = 0;
+        double estimate;
+        double standardError;
+        while (true) {
+            long round = Math.min(settings.getMaxSamples() - drawn, (long) STREAMS * ROUND_SAMPLES);
+            pool.invoke(new Round(streams, 0, STREAMS, round));
+            drawn += round;
+
+            estimate = estimate(streams);
+            standardError = standardError(streams, estimate);
+            boolean precise = settings.getTargetHalfWidth() > 0 && Z_95 * standardError <= settings.getTargetHalfWidth();
+            if (drawn == settings.getMaxSamples() || precise) {
+                break;
+            }
+        }
+
+        long draws = 0;
+        for (S stream : streams) {
+            draws += stream.draws;
+        }
+        return new Result(estimate, saturated(additions(draws)), saturated(multiplications(draws)), standardError);
+    }
+
+    private static int saturated(long count) {
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    // Value whose cumulative weight in table[base..base + card) first exceeds u
+    static int sampleRow(double[] table, int base, int card, double u) {
+        int value = 0;
+        double cumulative = table[base];
+        while (u >= cumulative && value < card - 1) {
+            value++;
+            cumulative += table[base + value];
+        }
+        return value;
+    }
+
+    // Offset of var's CPT row for the current values of its parents
+    static int rowBase(CompiledNetwork network, int var, int[] assignment) {
+        int[] family = network.getFamily(var);
+        int[] strides = network.getCptStrides(var);
+        int base = 0;
+        for (int i = 0; i < family.length - 1; i++) {
+            base += assignment[family[i]] * strides[i];
+        }
+        return base;
+    }
+
+    abstract static class Stream {
+        final SplittableRandom random;
+        long samples;       // samples that count towards the estimate
+        long draws;         // everything drawn, including discarded burn-in
+
+        Stream(SplittableRandom random) {
+            this.random = random;
+        }
+
+        abstract void draw(long count);
+    }
+
+    // Splits a round's samples as evenly as possible over streams [from, to)
+    private static final class Round extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends Stream> streams;
+        private final int from;
+        private final int to;
+        private final long total;
+
+        Round(List<? extends Stream> streams, int from, int to, long total) {
+            this.streams = streams;
+            this.from = from;
+            this.to = to;
+            this.total = total;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                long share = total / STREAMS + (from < total % STREAMS ? 1 : 0);
+                if (share > 0) {
+                    streams.get(from).draw(share);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Round(streams, from, middle, total), new Round(streams, middle, to, total));
+        }
+    }
+}
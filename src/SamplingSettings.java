@@ -0,0 +1,39 @@
+/**
+ * How long the approximate algorithms (5 and 6) sample. Sampling stops once maxSamples have
+ * been drawn or, when targetHalfWidth is positive, as soon as the 95% confidence interval of
+ * the estimate is at most that wide on either side. The seed fixes every random stream, so a
+ * query gives the same estimate on every run and thread count.
+ */
+public final class SamplingSettings {
+    public static final long DEFAULT_MAX_SAMPLES = 1_000_000;
+    public static final long DEFAULT_SEED = 0x5DEECE66DL;
+    public static final SamplingSettings DEFAULT = new SamplingSettings(DEFAULT_MAX_SAMPLES, 0, DEFAULT_SEED);
+
+    private final long maxSamples;
+    private final double targetHalfWidth;   // 0 always draws the whole budget
+    private final long seed;
+
+    public SamplingSettings(long maxSamples, double targetHalfWidth, long seed) {
+        if (maxSamples < 1) {
+            throw new IllegalArgumentException("Sample budget must be positive: " + maxSamples);
+        }
+        if (!(targetHalfWidth >= 0)) {
+            throw new IllegalArgumentException("Confidence interval half-width must not be negative: " + targetHalfWidth);
+        }
+        this.maxSamples = maxSamples;
+        this.targetHalfWidth = targetHalfWidth;
+        this.seed = seed;
+    }
+
+    public long getMaxSamples() {
+        return maxSamples;
+    }
+
+    public double getTargetHalfWidth() {
+        return targetHalfWidth;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+}
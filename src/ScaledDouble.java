@@ -0,0 +1,60 @@
+/**
+ * A non-negative value stored as mantissa * 2^exponent, for sums and products that would
+ * underflow a plain double. Values are only rescaled once they drop below RESCALE_BELOW, so
+ * anything that never gets that small keeps exponent 0 and exactly the plain double result.
+ */
+final class ScaledDouble {
+    // Rescale threshold: two values above it still multiply to a normal double
+    static final double RESCALE_BELOW = 0x1p-256;
+
+    static final ScaledDouble ZERO = new ScaledDouble(0, 0);
+    static final ScaledDouble ONE = new ScaledDouble(1, 0);
+
+    final double mantissa;
+    final int exponent;
+
+    ScaledDouble(double mantissa, int exponent) {
+        this.mantissa = mantissa;
+        this.exponent = exponent;
+    }
+
+    // Power of two that brings a small positive value back to [1, 2)
+    static int shiftFor(double value) {
+        return -exponentOf(value);
+    }
+
+    // Binary exponent of the represented value, for comparing values kept at different scales
+    static int magnitude(double mantissa, int exponent) {
+        return exponent + exponentOf(mantissa);
+    }
+
+    // Math.getExponent reports every subnormal as -1023, so those are made normal first
+    private static int exponentOf(double value) {
+        if (value != 0 && Math.abs(value) < Double.MIN_NORMAL) {
+            return Math.getExponent(value * 0x1p54) - 54;
+        }
+        return Math.getExponent(value);
+    }
+
+    ScaledDouble add(ScaledDouble other) {
+        if (other.mantissa == 0) {
+            return this;
+        }
+        if (mantissa == 0) {
+            return other;
+        }
+        if (exponent == other.exponent) {
+            return new ScaledDouble(mantissa + other.mantissa, exponent);
+        }
+        // Add at the scale of the larger value, the smaller one only loses bits far below its precision
+        if (magnitude(mantissa, exponent) > magnitude(other.mantissa, other.exponent)) {
+            return new ScaledDouble(mantissa + Math.scalb(other.mantissa, other.exponent - exponent), exponent);
+        }
+        return new ScaledDouble(Math.scalb(mantissa, exponent - other.exponent) + other.mantissa, other.exponent);
+    }
+
+    // this / other as a plain double, which is fine for ratios such as posteriors
+    double divide(ScaledDouble other) {
+        return Math.scalb(mantissa / other.mantissa, exponent - other.exponent);
+    }
+}
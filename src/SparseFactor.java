@@ -0,0 +1,288 @@
+import java.util.*;
+
+/**
+ * Factor storing only its non-zero entries, as full-table indices in increasing order with
+ * their values. Operations walk the stored entries, so their cost follows the number of
+ * non-zero entries rather than the size of the full table.
+ */
+final class SparseFactor extends Factor {
+    private final int[] indices;     // increasing
+    private final double[] values;   // all non-zero
+
+    private SparseFactor(int[] varIds, int[] cards, int[] indices, double[] values, int exponent) {
+        super(varIds, cards, exponent);
+        this.indices = indices;
+        this.values = values;
+    }
+
+    // The non-zero entries among the first size of table
+    static SparseFactor fromDense(int[] varIds, int[] cards, double[] table, int size, int nonZeros, int exponent) {
+        int[] indices = new int[nonZeros];
+        double[] values = new double[nonZeros];
+        for (int i = 0, k = 0; i < size; i++) {
+            if (table[i] != 0) {
+                indices[k] = i;
+                values[k] = table[i];
+                k++;
+            }
+        }
+        return new SparseFactor(varIds, cards, indices, values, exponent);
+    }
+
+    // The first count entries as a factor, expanded to a dense table when they are not few enough
+    private static Factor create(int[] varIds, int[] cards, int size, int[] indices, double[] values, int count, int exponent,
+                                 FactorArena arena) {
+        if (isSparse(size, count)) {
+            return new SparseFactor(varIds, cards, Arrays.copyOf(indices, count), Arrays.copyOf(values, count), exponent);
+        }
+        double[] table = FactorArena.table(arena, size);
+        Arrays.fill(table, 0, size, 0);
+        for (int k = 0; k < count; k++) {
+            table[indices[k]] = values[k];
+        }
+        return new DenseFactor(varIds, cards, table, exponent);
+    }
+
+    @Override
+    public double getValue(int index) {
+        int entry = Arrays.binarySearch(indices, index);
+        return entry < 0 ? 0 : values[entry];
+    }
+
+    @Override
+    int entryCount() {
+        return indices.length;
+    }
+
+    @Override
+    int entryIndex(int entry) {
+        return indices[entry];
+    }
+
+    @Override
+    double entryValue(int entry) {
+        return values[entry];
+    }
+
+    @Override
+    long tableBytes() {
+        return 12L * indices.length;
+    }
+
+    // Index of a cell once the variable at scope position pos is dropped from the table
+    private int dropPosition(int index, int pos) {
+        int stride = strides[pos];
+        return index / (stride * cards[pos]) * stride + index % stride;
+    }
+
+    @Override
+    Factor restrict(int variable, int valueIndex, FactorArena arena) {
+        int pos = positionOf(variable);
+        if (pos == -1) {
+            return this;
+        }
+
+        // Keep the entries with the given value, dropping the variable keeps them in order
+        int stride = strides[pos];
+        int[] newIndices = new int[indices.length];
+        double[] newValues = new double[indices.length];
+        int count = 0;
+        for (int k = 0; k < indices.length; k++) {
+            if (indices[k] / stride % cards[pos] == valueIndex) {
+                newIndices[count] = dropPosition(indices[k], pos);
+                newValues[count] = values[k];
+                count++;
+            }
+        }
+        return create(without(varIds, pos), without(cards, pos), size / cards[pos], newIndices, newValues, count, exponent, arena);
+    }
+
+    @Override
+    Factor sumOut(int pos, FactorArena arena) {
+        int count = indices.length;
+        int[] newIndices = new int[count];
+        double[] newValues = new double[count];
+
+        // Entries that land in the same output cell are added in their original order, which
+        // is the order of the eliminated variable's values, as in the dense kernel
+        long[] keys = new long[count];
+        for (int k = 0; k < count; k++) {
+            keys[k] = (long) dropPosition(indices[k], pos) << 32 | k;
+        }
+        if (strides[pos] != 1) {
+            Arrays.sort(keys);
+        }
+
+        int newCount = 0;
+        for (int k = 0; k < count; k++) {
+            int index = (int) (keys[k] >>> 32);
+            double value = values[(int) keys[k]];
+            if (newCount > 0 && newIndices[newCount - 1] == index) {
+                newValues[newCount - 1] += value;
+            } else {
+                newIndices[newCount] = index;
+                newValues[newCount] = value;
+                newCount++;
+            }
+        }
+        return create(without(varIds, pos), without(cards, pos), size / cards[pos], newIndices, newValues, newCount, exponent, arena);
+    }
+
+    /**
+     * Product for the case where either operand is sparse. The output scope is a's variables
+     * followed by the ones only b has, so each non-zero entry of a covers one contiguous block
+     * of output cells and zero entries of a are skipped whole. A dense b is read cell by cell
+     * across the block; a sparse b only contributes its own non-zero entries, see
+     * {@link #multiplyGrouped}.
+     */
+    static Factor multiply(Factor a, Factor b, int[] newIds, int[] newCards, int[] strideB, int newSize, int newExponent,
+                           FactorArena arena) {
+        if (b instanceof SparseFactor) {
+            return multiplyGrouped(a, (SparseFactor) b, newIds, newCards, strideB, newSize, newExponent, arena);
+        }
+        int n = newIds.length;
+        int sharedCount = a.varIds.length;
+        int blockSize = newSize / a.size;
+
+        Entries out = new Entries(newSize, (long) a.entryCount() * blockSize);
+        int[] counter = new int[n];
+        for (int entry = 0; entry < a.entryCount(); entry++) {
+            double valueA = a.entryValue(entry);
+            if (valueA == 0) {
+                continue;
+            }
+            int indexA = a.entryIndex(entry);
+            int baseB = sharedOffset(a, indexA, sharedCount, strideB);
+
+            // Walk the block of b's extra variables, last one fastest
+            int indexB = baseB;
+            int outIndex = indexA * blockSize;
+            for (int i = 0; i < blockSize; i++, outIndex++) {
+                out.add(outIndex, valueA * b.getValue(indexB));
+                for (int d = n - 1; d >= sharedCount; d--) {
+                    indexB += strideB[d];
+                    if (++counter[d] < newCards[d]) {
+                        break;
+                    }
+                    indexB -= strideB[d] * newCards[d];
+                    counter[d] = 0;
+                }
+            }
+        }
+        return create(newIds, newCards, newSize, out.indices, out.values, out.count, newExponent, arena);
+    }
+
+    /**
+     * Product with a sparse b, whose non-zero entries are grouped once by the cell of the
+     * variables it shares with a. Each non-zero entry of a then finds its group by binary
+     * search and multiplies only that group's entries, so the work follows the non-zero
+     * entries of both operands and the output rather than the blocks of b's extra variables.
+     * Within a group, b's index order is the order of its extra variables, which is output
+     * order, so entries come out increasing as before.
+     */
+    private static Factor multiplyGrouped(Factor a, SparseFactor b, int[] newIds, int[] newCards, int[] strideB,
+                                          int newSize, int newExponent, FactorArena arena) {
+        int n = newIds.length;
+        int sharedCount = a.varIds.length;
+        int blockSize = newSize / a.size;
+
+        // Split every index of b into its shared part and its offset inside an output block
+        int bCount = b.indices.length;
+        long[] keys = new long[bCount];
+        int[] blockOffsets = new int[bCount];
+        for (int k = 0; k < bCount; k++) {
+            int indexB = b.indices[k];
+            int extra = 0;
+            int blockOffset = 0;
+            for (int d = sharedCount, blockStride = blockSize; d < n; d++) {
+                int value = indexB / strideB[d] % newCards[d];
+                blockStride /= newCards[d];
+                extra += value * strideB[d];
+                blockOffset += value * blockStride;
+            }
+            keys[k] = (long) (indexB - extra) << 32 | k;
+            blockOffsets[k] = blockOffset;
+        }
+        if (sharedCount < n) {
+            Arrays.sort(keys);
+        }
+
+        int groupCount = 0;
+        int[] groupKeys = new int[bCount];
+        int[] groupStart = new int[bCount + 1];
+        for (int g = 0; g < bCount; g++) {
+            int shared = (int) (keys[g] >>> 32);
+            if (groupCount == 0 || groupKeys[groupCount - 1] != shared) {
+                groupKeys[groupCount] = shared;
+                groupStart[groupCount++] = g;
+            }
+        }
+        groupStart[groupCount] = bCount;
+
+        Entries out = new Entries(newSize, (long) Math.min(a.entryCount(), groupCount) * blockSize);
+        for (int entry = 0; entry < a.entryCount(); entry++) {
+            double valueA = a.entryValue(entry);
+            if (valueA == 0) {
+                continue;
+            }
+            int indexA = a.entryIndex(entry);
+            int group = Arrays.binarySearch(groupKeys, 0, groupCount, sharedOffset(a, indexA, sharedCount, strideB));
+            if (group < 0) {
+                continue;
+            }
+            int blockStart = indexA * blockSize;
+            for (int g = groupStart[group]; g < groupStart[group + 1]; g++) {
+                int k = (int) keys[g];
+                out.add(blockStart + blockOffsets[k], valueA * b.values[k]);
+            }
+        }
+        return create(newIds, newCards, newSize, out.indices, out.values, out.count, newExponent, arena);
+    }
+
+    // Offset in b of the variables a shares with it, at a's cell indexA
+    private static int sharedOffset(Factor a, int indexA, int sharedCount, int[] strideB) {
+        int offset = 0;
+        for (int d = 0; d < sharedCount; d++) {
+            offset += indexA / a.strides[d] % a.cards[d] * strideB[d];
+        }
+        return offset;
+    }
+
+    // Output entries in increasing index order, grown on demand up to the full table size
+    private static final class Entries {
+        private final int size;
+        int[] indices;
+        double[] values;
+        int count;
+
+        Entries(int size, long expected) {
+            this.size = size;
+            int capacity = (int) Math.min(size, Math.min(expected, 1024));
+            this.indices = new int[capacity];
+            this.values = new double[capacity];
+        }
+
+        void add(int index, double value) {
+            if (value == 0) {
+                return;
+            }
+            if (count == indices.length) {
+                int grown = (int) Math.min(size, Math.max(2L * count, 1));
+                indices = Arrays.copyOf(indices, grown);
+                values = Arrays.copyOf(values, grown);
+            }
+            indices[count] = index;
+            values[count] = value;
+            count++;
+        }
+    }
+
+    @Override
+    Factor map(double divisor, int shift, int newExponent, FactorArena arena) {
+        double[] newValues = new double[values.length];
+        for (int k = 0; k < values.length; k++) {
+            newValues[k] = Math.scalb(values[k] / divisor, shift);
+        }
+        return new SparseFactor(varIds, cards, indices, newValues, newExponent);
+    }
+}
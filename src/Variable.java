@@ -1,12 +1,29 @@
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 class Variable {
+    private int id;
     private String name;
     private List<String> values;
+    private Map<String, Integer> indices;
 
     public Variable(String name, List<String> values) {
+        this(-1, name, values);
+    }
+
+    public Variable(int id, String name, List<String> values) {
+        this.id = id;
         this.name = name;
         this.values = values;
+        this.indices = new HashMap<>(values.size() * 2);
+        for (int i = values.size() - 1; i >= 0; i--) {
+            indices.put(values.get(i), i);
+        }
+    }
+
+    public int getId() {
+        return id;
     }
 
     public String getName() {
@@ -18,6 +35,7 @@ class Variable {
     }
 
     public int getIndex(String value) {
-        return values.indexOf(value);
+        Integer index = indices.get(value);
+        return index == null ? -1 : index;
     }
-}
\ No newline at end of file
+}
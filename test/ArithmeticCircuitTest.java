@@ -0,0 +1,164 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArithmeticCircuitTest {
+    // Largest difference from variable elimination seen on these networks is below 1e-15
+    private static final double TOLERANCE = 1e-15;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void matchesVariableElimination() throws Exception {
+        for (Arithmetic arithmetic : Arithmetic.values()) {
+            for (long seed = 1; seed <= 4; seed++) {
+                Path file = RandomNetworks.write(dir, 30, 3, 6, 0.2, seed);
+                BayesianNetwork network = new BayesianNetwork(file.toString(), 0, arithmetic);
+                SplittableRandom random = new SplittableRandom(seed);
+                for (int i = 0; i < 100; i++) {
+                    String query = randomQuery(network.getCompiledNetwork(), random, 1 + random.nextInt(2), random.nextInt(5));
+                    double[] actual = circuitPosterior(network, query);
+                    if (actual != null) {
+                        assertArrayEquals(network.posterior(query, 2).getProbabilities(), actual, TOLERANCE, query);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void marginalsMatchVariableElimination() throws Exception {
+        Path file = RandomNetworks.write(dir, 30, 3, 6, 0, 7);
+        BayesianNetwork network = new BayesianNetwork(file.toString(), 0);
+        CompiledNetwork compiled = network.getCompiledNetwork();
+        SplittableRandom random = new SplittableRandom(7);
+        for (int i = 0; i < 10; i++) {
+            String joint = randomQuery(compiled, random, 0, 1 + random.nextInt(4));
+            String evidence = joint.substring("P(|".length(), joint.length() - 1);
+            for (Posterior marginal : network.marginals("P(" + evidence + ")")) {
+                String query = "P(" + marginal.getVariable(0) + "|" + evidence + ")";
+                assertArrayEquals(network.posterior(query, 2).getProbabilities(), marginal.getProbabilities(), TOLERANCE,
+                        query);
+            }
+        }
+    }
+
+    @Test
+    void compiledFileGivesIdenticalAnswers() throws Exception {
+        Path file = RandomNetworks.write(dir, 30, 3, 6, 0.2, 8);
+        BayesianNetwork compiledOnUse = new BayesianNetwork(file.toString(), 0);
+        CompiledNetwork compiled = compiledOnUse.getCompiledNetwork();
+        ArithmeticCircuit circuit = CircuitCompiler.compile(compiled);
+        Path bac = CircuitFile.circuitPathFor(file.toString());
+        CircuitFile.write(circuit, compiled, bac);
+
+        ArithmeticCircuit read = CircuitFile.read(bac, compiled);
+        assertNotNull(read);
+        assertEquals(circuit.getNodeCount(), read.getNodeCount());
+        assertEquals(circuit.getEdgeCount(), read.getEdgeCount());
+        assertEquals(circuit.getParameterCount(), read.getParameterCount());
+
+        BayesianNetwork loaded = new BayesianNetwork(file.toString(), 0);
+        SplittableRandom random = new SplittableRandom(8);
+        for (int i = 0; i < 100; i++) {
+            String query = randomQuery(compiled, random, 1 + random.nextInt(2), random.nextInt(5));
+            if (circuitPosterior(compiledOnUse, query) == null) {
+                assertNull(circuitPosterior(loaded, query), query);
+                continue;
+            }
+            Posterior expected = compiledOnUse.posterior(query, 7);
+            Posterior actual = loaded.posterior(query, 7);
+            assertEquals(bits(expected.getProbabilities()), bits(actual.getProbabilities()), query);
+            assertEquals(expected.getAdditions(), actual.getAdditions(), query);
+            assertEquals(expected.getMultiplications(), actual.getMultiplications(), query);
+        }
+    }
+
+    @Test
+    void otherNetworksAndDamagedFilesAreIgnored() throws Exception {
+        Path file = RandomNetworks.write(dir, 20, 2, 4, 0, 9);
+        Path other = RandomNetworks.write(dir, 20, 2, 4, 0, 10);
+        CompiledNetwork network = NetworkFile.load(file.toString());
+        CompiledNetwork otherNetwork = NetworkFile.load(other.toString());
+        Path bac = CircuitFile.circuitPathFor(file.toString());
+
+        CircuitFile.write(CircuitCompiler.compile(otherNetwork), otherNetwork, bac);
+        assertNull(CircuitFile.load(file.toString(), network));
+
+        CircuitFile.write(CircuitCompiler.compile(network), network, bac);
+        assertNotNull(CircuitFile.load(file.toString(), network));
+        byte[] bytes = Files.readAllBytes(bac);
+        Files.write(bac, Arrays.copyOf(bytes, bytes.length / 2));
+        assertNull(CircuitFile.load(file.toString(), network));
+
+        String query = "P(N19|N3=v0)";
+        BayesianNetwork loaded = new BayesianNetwork(file.toString(), 0);
+        assertArrayEquals(loaded.posterior(query, 2).getProbabilities(), loaded.posterior(query, 7).getProbabilities(),
+                TOLERANCE);
+    }
+
+    /**
+     * The circuit's answer, or null when it reports evidence of probability zero, which is
+     * then checked with the chain rule: the first factor P(Ei=ei | E1=e1,...) that is zero.
+     * Algorithms 1 to 4 drop the factors evidence makes constant, so they still answer there.
+     */
+    private static double[] circuitPosterior(BayesianNetwork network, String query) {
+        try {
+            return network.posterior(query, 7).getProbabilities();
+        } catch (ArithmeticException e) {
+            int bar = query.indexOf('|');
+            assertTrue(bar != -1, query);
+            String[] evidence = query.substring(bar + 1, query.length() - 1).split(",");
+            double probability = 1;
+            for (int i = 0; i < evidence.length && probability > 0; i++) {
+                String given = i == 0 ? "" : "|" + String.join(",", Arrays.copyOf(evidence, i));
+                String[] observation = evidence[i].split("=");
+                probability = network.posterior("P(" + observation[0] + given + ")", 2).getProbability(observation[1]);
+            }
+            assertEquals(0, probability, query);
+            return null;
+        }
+    }
+
+    // P(Q1,...|E1=e1,...) over distinct random variables
+    private static String randomQuery(CompiledNetwork network, SplittableRandom random, int queryCount, int evidenceCount) {
+        List<Integer> vars = new ArrayList<>();
+        while (vars.size() < queryCount + evidenceCount) {
+            int var = random.nextInt(network.size());
+            if (!vars.contains(var)) {
+                vars.add(var);
+            }
+        }
+        StringBuilder query = new StringBuilder("P(");
+        for (int i = 0; i < queryCount; i++) {
+            query.append(i > 0 ? "," : "").append(network.getName(vars.get(i)));
+        }
+        for (int i = queryCount; i < vars.size(); i++) {
+            int var = vars.get(i);
+            query.append(i > queryCount ? "," : "|").append(network.getName(var)).append('=')
+                    .append(network.getOutcome(var, random.nextInt(network.getCardinality(var))));
+        }
+        return query.append(')').toString();
+    }
+
+    private static String bits(double[] values) {
+        StringBuilder text = new StringBuilder();
+        for (double value : values) {
+            text.append(Double.toHexString(value)).append(' ');
+        }
+        return text.toString();
+    }
+}
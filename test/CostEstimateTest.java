@@ -0,0 +1,78 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CostEstimateTest {
+    private static final int[] ALGORITHMS = {1, 2, 3, 7};
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void matchesReportedCountsWithoutZeroEntries() throws Exception {
+        for (long seed = 1; seed <= 3; seed++) {
+            Path file = RandomNetworks.write(dir, 14, 3, 5, 0, seed);
+            checkQueries(new BayesianNetwork(file.toString(), 0), seed, true);
+        }
+        checkQueries(new BayesianNetwork("alarm_net.xml", 0), 4, false);
+    }
+
+    @Test
+    void boundsReportedCountsWithZeroEntries() throws Exception {
+        for (long seed = 5; seed <= 7; seed++) {
+            Path file = RandomNetworks.write(dir, 14, 3, 5, 0.3, seed);
+            checkQueries(new BayesianNetwork(file.toString(), 0), seed, false);
+        }
+    }
+
+    // Multiplications must match; additions must match too when exact, and never be exceeded
+    private static void checkQueries(BayesianNetwork network, long seed, boolean exact) {
+        CompiledNetwork compiled = network.getCompiledNetwork();
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < 60; i++) {
+            String query = randomQuery(compiled, random);
+            for (int algorithm : ALGORITHMS) {
+                Result result;
+                try {
+                    result = network.conditionalProbability(query, algorithm);
+                } catch (ArithmeticException e) {
+                    continue;   // evidence of probability zero
+                }
+                CostEstimate cost = network.cost(query, algorithm);
+                String message = query + " with algorithm " + algorithm + ": " + cost;
+                assertEquals(cost.getMultiplications(), result.multiplications, message);
+                if (exact) {
+                    assertEquals(cost.getAdditions(), result.additions, message);
+                } else {
+                    assertTrue(result.additions <= cost.getAdditions(), message + ", reported " + result.additions);
+                }
+            }
+        }
+    }
+
+    // P(Q=q|E1=e1,...) with one to four observed variables
+    private static String randomQuery(CompiledNetwork network, SplittableRandom random) {
+        List<Integer> vars = new ArrayList<>();
+        int count = 2 + random.nextInt(4);
+        while (vars.size() < count) {
+            int var = random.nextInt(network.size());
+            if (!vars.contains(var)) {
+                vars.add(var);
+            }
+        }
+        StringBuilder query = new StringBuilder("P(");
+        for (int i = 0; i < vars.size(); i++) {
+            int var = vars.get(i);
+            query.append(i == 0 ? "" : i == 1 ? "|" : ",").append(network.getName(var)).append('=')
+                    .append(network.getOutcome(var, random.nextInt(network.getCardinality(var))));
+        }
+        return query.append(')').toString();
+    }
+}
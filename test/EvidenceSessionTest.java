@@ -0,0 +1,84 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class EvidenceSessionTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void matchesFullCalibrationBitwise() throws Exception {
+        for (Arithmetic arithmetic : Arithmetic.values()) {
+            for (long seed = 1; seed <= 4; seed++) {
+                Path file = RandomNetworks.write(dir, 40, 3, 8, 0, seed);
+                checkRandomSequence(new BayesianNetwork(file.toString(), 0, arithmetic), seed);
+            }
+        }
+    }
+
+    @Test
+    void matchesFullCalibrationOnAlarm() throws Exception {
+        checkRandomSequence(new BayesianNetwork("alarm_net.xml", 0), 5);
+    }
+
+    // Observes, changes and retracts at random, comparing posteriors of one or two variables after each step
+    private static void checkRandomSequence(BayesianNetwork network, long seed) {
+        CompiledNetwork compiled = network.getCompiledNetwork();
+        int n = compiled.size();
+        SplittableRandom random = new SplittableRandom(seed);
+        EvidenceSession session = network.openSession();
+        int[] observed = new int[n];
+        Arrays.fill(observed, -1);
+        int observedCount = 0;
+
+        for (int step = 0; step < 150; step++) {
+            int var = random.nextInt(n);
+            int action = random.nextInt(10);
+            if (action == 0) {
+                session.retractAll();
+                Arrays.fill(observed, -1);
+                observedCount = 0;
+            } else if (action < 4 && observed[var] != -1) {
+                session.retract(compiled.getName(var));
+                observed[var] = -1;
+                observedCount--;
+            } else if (observed[var] != -1 || observedCount < n / 2) {
+                int value = random.nextInt(compiled.getCardinality(var));
+                session.observe(compiled.getName(var), compiled.getOutcome(var, value));
+                observedCount += observed[var] == -1 ? 1 : 0;
+                observed[var] = value;
+            }
+
+            List<String> query = new ArrayList<>();
+            while (query.size() < 1 + random.nextInt(2)) {
+                int q = random.nextInt(n);
+                if (observed[q] == -1 && !query.contains(compiled.getName(q))) {
+                    query.add(compiled.getName(q));
+                }
+            }
+            StringBuilder text = new StringBuilder("P(").append(String.join(",", query));
+            String separator = "|";
+            for (int e = 0; e < n; e++) {
+                if (observed[e] != -1) {
+                    text.append(separator).append(compiled.getName(e)).append('=').append(compiled.getOutcome(e, observed[e]));
+                    separator = ",";
+                }
+            }
+            text.append(')');
+
+            double[] expected = network.posterior(text.toString(), 4).getProbabilities();
+            double[] actual = session.posterior(query.toArray(new String[0])).getProbabilities();
+            assertEquals(expected.length, actual.length, text::toString);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(actual[i]), text::toString);
+            }
+        }
+    }
+}
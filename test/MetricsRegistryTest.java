@@ -0,0 +1,22 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsRegistryTest {
+    @Test
+    void recordsQueryTimesOfEveryAlgorithm() throws Exception {
+        BayesianNetwork network = new BayesianNetwork("alarm_net.xml", 0);
+        MetricsRegistry metrics = new MetricsRegistry();
+        network.setInstrumentation(metrics);
+        network.jointProbability("P(B=T,E=F,A=T,J=T,M=F)");
+        for (int algorithm = 1; algorithm <= InferenceEngine.MAX_ALGORITHM; algorithm++) {
+            network.conditionalProbability("P(B=T|J=T,M=T)", algorithm);
+        }
+
+        String text = metrics.toPrometheus();
+        for (int algorithm = InferenceEngine.JOINT_ALGORITHM; algorithm <= InferenceEngine.MAX_ALGORITHM; algorithm++) {
+            String count = "bn_query_seconds_count{algorithm=\"" + algorithm + "\"} 1\n";
+            assertTrue(text.contains(count), count);
+        }
+    }
+}
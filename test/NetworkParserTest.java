@@ -0,0 +1,82 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class NetworkParserTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void parsesTableNumbersLikeParseDouble() throws Exception {
+        SplittableRandom random = new SplittableRandom(3);
+        String[] tokens = new String[50_000];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = randomNumber(random);
+        }
+        double[] table = parseSingleTable(tokens);
+        assertEquals(tokens.length, table.length);
+        for (int i = 0; i < tokens.length; i++) {
+            assertEquals(Double.doubleToRawLongBits(Double.parseDouble(tokens[i])), Double.doubleToRawLongBits(table[i]),
+                    tokens[i]);
+        }
+    }
+
+    @Test
+    void rejectsTableOfTheWrongLength() throws IOException {
+        Path file = dir.resolve("short.xml");
+        Files.writeString(file, "<NETWORK><VARIABLE><NAME>A</NAME><OUTCOME>T</OUTCOME><OUTCOME>F</OUTCOME></VARIABLE>"
+                + "<DEFINITION><FOR>A</FOR><TABLE>1</TABLE></DEFINITION></NETWORK>");
+        assertThrows(IllegalStateException.class, () -> new NetworkParser().parse(file.toString()));
+    }
+
+    // One variable with an outcome per token, so its CPT holds exactly the tokens
+    private double[] parseSingleTable(String[] tokens) throws Exception {
+        StringBuilder xml = new StringBuilder("<NETWORK>\n<VARIABLE>\n<NAME>X</NAME>\n");
+        for (int i = 0; i < tokens.length; i++) {
+            xml.append("<OUTCOME>o").append(i).append("</OUTCOME>\n");
+        }
+        xml.append("</VARIABLE>\n<DEFINITION>\n<FOR>X</FOR>\n<TABLE>");
+        String[] separators = {" ", "  ", "\n", "\t", " \r\n "};
+        for (int i = 0; i < tokens.length; i++) {
+            xml.append(separators[i % separators.length]).append(tokens[i]);
+        }
+        xml.append("</TABLE>\n</DEFINITION>\n</NETWORK>\n");
+        Path file = dir.resolve("table.xml");
+        Files.writeString(file, xml);
+
+        NetworkParser parser = new NetworkParser();
+        parser.parse(file.toString());
+        return parser.getCPTs().get("X").getTable();
+    }
+
+    // Plain decimals of every length, exponents inside and outside the fast path, signs and leading zeros
+    private static String randomNumber(SplittableRandom random) {
+        switch (random.nextInt(6)) {
+            case 0:
+                return Double.toString(random.nextDouble());
+            case 1:
+                return String.format(Locale.ROOT, "%." + random.nextInt(1, 20) + "f", random.nextDouble());
+            case 2: {
+                StringBuilder digits = new StringBuilder(random.nextBoolean() ? "0." : "");
+                for (int i = random.nextInt(1, 25); i > 0; i--) {
+                    digits.append((char) ('0' + random.nextInt(10)));
+                }
+                return digits.toString();
+            }
+            case 3:
+                return (random.nextBoolean() ? "-" : "+") + random.nextInt(1_000_000) + "." + random.nextInt(1000);
+            case 4:
+                return random.nextInt(1, 100_000) + (random.nextBoolean() ? "e" : "E") + random.nextInt(-40, 40);
+            default:
+                return Double.toString(Double.longBitsToDouble(random.nextLong() & 0x7fefffffffffffffL));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import org.junit.jupiter.api.Test;
+
+import java.text.DecimalFormat;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ProbabilityFormatterTest {
+    private static final Locale[] LOCALES = {
+            Locale.US, Locale.GERMANY, Locale.FRANCE, Locale.forLanguageTag("ar-EG"), Locale.forLanguageTag("hi-IN-u-nu-deva")
+    };
+
+    @Test
+    void matchesDecimalFormatOnRandomValues() {
+        SplittableRandom random = new SplittableRandom(1);
+        double[] values = new double[40_000];
+        for (int i = 0; i < values.length; i++) {
+            switch (i % 4) {
+                case 0: values[i] = random.nextDouble(); break;
+                case 1: values[i] = -random.nextDouble(); break;
+                case 2: values[i] = random.nextDouble() * Math.pow(10, random.nextInt(-12, 12)); break;
+                default: values[i] = Double.longBitsToDouble(random.nextLong()); break;
+            }
+        }
+        assertFormatsLikeDecimalFormat(values);
+    }
+
+    @Test
+    void matchesDecimalFormatAroundRoundingTies() {
+        SplittableRandom random = new SplittableRandom(2);
+        double[] values = new double[40_000];
+        for (int i = 0; i < values.length; i += 4) {
+            double tie = (random.nextInt(200_000) + 0.5) / 1e5;
+            values[i] = tie;
+            values[i + 1] = Math.nextUp(tie);
+            values[i + 2] = Math.nextDown(tie);
+            values[i + 3] = -tie;
+        }
+        assertFormatsLikeDecimalFormat(values);
+    }
+
+    @Test
+    void matchesDecimalFormatOnSpecialValues() {
+        assertFormatsLikeDecimalFormat(new double[]{
+                0.0, -0.0, 1.0, -1.0, 0.000005, -0.000004, 1e-320, Double.MIN_VALUE, 9.999995, 99999.999995,
+                1e10, 1e15, Double.MAX_VALUE, -Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY
+        });
+    }
+
+    private static void assertFormatsLikeDecimalFormat(double[] values) {
+        Locale saved = Locale.getDefault(Locale.Category.FORMAT);
+        try {
+            for (Locale locale : LOCALES) {
+                Locale.setDefault(Locale.Category.FORMAT, locale);
+                DecimalFormat expected = new DecimalFormat("0.00000");
+                ProbabilityFormatter formatter = new ProbabilityFormatter();
+                char[] buffer = new char[ProbabilityFormatter.MAX_LENGTH];
+                for (double value : values) {
+                    int length = formatter.format(value, buffer, 0);
+                    assertEquals(expected.format(value), new String(buffer, 0, length),
+                            () -> locale + ": " + Double.toHexString(value));
+                }
+            }
+        } finally {
+            Locale.setDefault(Locale.Category.FORMAT, saved);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+
+// Random networks written as XML for the tests: parents come from the previous few nodes
+final class RandomNetworks {
+    private RandomNetworks() {
+    }
+
+    /**
+     * Nodes of two or three outcomes with up to maxParents parents among the window nodes
+     * before them. A deterministic share of CPT rows puts all their mass on one outcome, so
+     * tables hold exact zeros and ones.
+     */
+    static Path write(Path dir, int nodes, int maxParents, int window, double deterministic, long seed) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] cards = new int[nodes];
+        Path file = dir.resolve("random-" + nodes + "-" + seed + ".xml");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("<NETWORK>");
+            for (int i = 0; i < nodes; i++) {
+                cards[i] = random.nextInt(3) == 0 ? 3 : 2;
+                out.print("<VARIABLE>\n<NAME>N" + i + "</NAME>\n");
+                for (int k = 0; k < cards[i]; k++) {
+                    out.print("<OUTCOME>v" + k + "</OUTCOME>\n");
+                }
+                out.println("</VARIABLE>");
+            }
+            for (int i = 0; i < nodes; i++) {
+                out.println("<DEFINITION>\n<FOR>N" + i + "</FOR>");
+                int parents = Math.min(i, random.nextInt(maxParents + 1));
+                TreeSet<Integer> chosen = new TreeSet<>();
+                while (chosen.size() < parents) {
+                    chosen.add(i - 1 - random.nextInt(Math.min(i, window)));
+                }
+                int rows = 1;
+                for (int parent : chosen) {
+                    out.println("<GIVEN>N" + parent + "</GIVEN>");
+                    rows *= cards[parent];
+                }
+                StringBuilder table = new StringBuilder();
+                for (int row = 0; row < rows; row++) {
+                    double[] p = new double[cards[i]];
+                    if (random.nextDouble() < deterministic) {
+                        p[random.nextInt(cards[i])] = 1;
+                    } else {
+                        double total = 0;
+                        for (int k = 0; k < p.length; k++) {
+                            p[k] = 0.05 + random.nextDouble();
+                            total += p[k];
+                        }
+                        for (int k = 0; k < p.length; k++) {
+                            p[k] /= total;
+                        }
+                    }
+                    for (double value : p) {
+                        table.append(value).append(' ');
+                    }
+                }
+                out.println("<TABLE>" + table.toString().trim() + "</TABLE>\n</DEFINITION>");
+            }
+            out.println("</NETWORK>");
+        }
+        return file;
+    }
+}
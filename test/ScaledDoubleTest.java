@@ -0,0 +1,53 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ScaledDoubleTest {
+    @Test
+    void shiftForBringsSubnormalsToUnitRange() {
+        double[] values = {Double.MIN_VALUE, 0x1p-1050, 0x1.8p-1050, Double.MIN_NORMAL / 3, Math.nextDown(Double.MIN_NORMAL)};
+        for (double value : values) {
+            int shift = ScaledDouble.shiftFor(value);
+            double scaled = Math.scalb(value, shift);
+            assertTrue(scaled >= 1 && scaled < 2, value + " scaled to " + scaled);
+            // Scaling a subnormal up is exact, so it comes back unchanged
+            assertEquals(value, Math.scalb(scaled, -shift));
+            assertEquals(-shift, ScaledDouble.magnitude(value, 0));
+        }
+    }
+
+    // A product kept the way Enumeration keeps its partial products, where a step from just above
+    // RESCALE_BELOW by a tiny factor lands below Double.MIN_NORMAL
+    @Test
+    void productChainBelowMinNormalStaysNormalized() {
+        double[] factors = {0x1p-200, 0x1.8p-850, 0x1.4p-900, 0x1p-250, 0x1.2p-810, 0x1.cp-3, 0x1p-1000};
+        double product = 1;
+        int exponent = 0;
+        double log2 = 0;
+        boolean wentSubnormal = false;
+        for (double factor : factors) {
+            product *= factor;
+            log2 += Math.log(factor) / Math.log(2);
+            wentSubnormal |= product != 0 && product < Double.MIN_NORMAL;
+            if (product < ScaledDouble.RESCALE_BELOW && product != 0) {
+                int shift = ScaledDouble.shiftFor(product);
+                product = Math.scalb(product, shift);
+                exponent -= shift;
+                assertTrue(product >= 1 && product < 2, "mantissa " + product);
+            }
+            assertEquals(log2, exponent + Math.log(product) / Math.log(2), 1e-9);
+        }
+        assertTrue(wentSubnormal);
+    }
+
+    @Test
+    void magnitudeTellsSubnormalsApart() {
+        ScaledDouble small = new ScaledDouble(0x1p-1060, 0);
+        ScaledDouble large = new ScaledDouble(0x1p-1040, 0);
+        // Summed at the larger scale, both ways round
+        assertEquals(0x1p-1040 + 0x1p-1060, small.add(large).mantissa);
+        assertEquals(0x1p-1040 + 0x1p-1060, large.add(small).mantissa);
+        assertEquals(20, ScaledDouble.magnitude(0x1p-1040, 0) - ScaledDouble.magnitude(0x1p-1060, 0));
+    }
+}